@@ -0,0 +1,189 @@
+package benchmark;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.options.ChainedOptionsBuilder;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+import java.lang.reflect.Method;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * 画像認識と顔ログインのJMHベンチマーク。計測する処理とフィクスチャはアプリ本体の RecognitionBenchmark と共通。
+ * アプリは無名パッケージにあり（JMHのベンチマークは無名パッケージに置けない）、直接は参照できないので、
+ * @Setup でリフレクション経由で処理（Callable）を受け取り、@Benchmark からはそれを呼ぶだけにする。
+ *
+ * 実行（フィクスチャの Modelimages/・face_data/・haarcascade_frontalface_alt.xml を読むのでリポジトリ直下で）:
+ *   mvn -B package
+ *   java -Djava.library.path=lib/native -jar jmh/target/benchmarks.jar [JMHのオプション]
+ * -prof と -rf/-rff を省略すると -prof gc -rf json -rff jmh_results.json で実行する。
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RecognitionBenchmarks {
+    private static final String SUITE = "RecognitionBenchmark"; // 処理とフィクスチャを持つアプリ本体のクラス
+
+    // FrameState: 480p・1080p・12MPの合成フレームで測る処理
+    @State(Scope.Benchmark)
+    public static class FrameState {
+        @Param({"480p", "1080p", "12MP"})
+        public String frame;
+        private Map<String, Callable<Object>> operations;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            operations = suite("frameOperations", frame);
+        }
+
+        Object run(String name) throws Exception {
+            return operation(operations, name).call();
+        }
+    }
+
+    // FaceState: 登録済みの顔画像で測る処理
+    @State(Scope.Benchmark)
+    public static class FaceState {
+        private Map<String, Callable<Object>> operations;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            operations = suite("faceOperations");
+        }
+    }
+
+    // GalleryState: 合成テンプレートで登録人数を変えたギャラリー（1人4枚）
+    @State(Scope.Benchmark)
+    public static class GalleryState {
+        @Param({"1", "10", "100", "1000", "10000"})
+        public int users;
+        private Callable<Object> identify;
+
+        @Setup(Level.Trial)
+        public void setUp() throws Exception {
+            identify = suite("galleryOperation", users);
+            if (identify == null) {
+                throw new IllegalStateException("face_data/ に登録顔の画像がありません");
+            }
+        }
+
+        @TearDown(Level.Trial)
+        public void tearDown() throws Exception {
+            if (identify instanceof AutoCloseable) {
+                ((AutoCloseable) identify).close();
+            }
+        }
+    }
+
+    @Benchmark
+    public Object imageIoRead(FrameState state) throws Exception {
+        return state.run("ImageIO.read");
+    }
+
+    @Benchmark
+    public Object decode(FrameState state) throws Exception {
+        return state.run("ImageDecoder.decode");
+    }
+
+    @Benchmark
+    public Object analyzeImage(FrameState state) throws Exception {
+        return state.run("ImageAnalyzer.analyzeImage");
+    }
+
+    @Benchmark
+    public Object analyzeImageParallel(FrameState state) throws Exception {
+        return state.run("ImageAnalyzer.analyzeImage.parallel");
+    }
+
+    @Benchmark
+    public Object bufferedImageToMat(FrameState state) throws Exception {
+        return state.run("ImageAnalyzer.bufferedImageToMat");
+    }
+
+    @Benchmark
+    public Object prepareImage(FrameState state) throws Exception {
+        return state.run("ImageAnalyzer.prepareImage");
+    }
+
+    @Benchmark
+    public Object preprocessImage(FrameState state) throws Exception {
+        return state.run("ImageAnalyzer.preprocessImage");
+    }
+
+    @Benchmark
+    public Object compareDescriptors(FrameState state) throws Exception {
+        return state.run("ImageAnalyzer.compareDescriptors");
+    }
+
+    @Benchmark
+    public Object detectMultiScale(FrameState state) throws Exception {
+        return state.run("CascadeClassifier.detectMultiScale");
+    }
+
+    @Benchmark
+    public Object faceTrackerDetect(FrameState state) throws Exception {
+        return state.run("FaceTracker.detect");
+    }
+
+    @Benchmark
+    public Object isFaceMatched(FaceState state) throws Exception {
+        return operation(state.operations, "FaceLogin.isFaceMatched").call();
+    }
+
+    @Benchmark
+    public Object identify(GalleryState state) throws Exception {
+        return state.identify.call();
+    }
+
+    // operation: 名前の処理を返す（フィクスチャがなくて用意されなかった処理は失敗として報告する）
+    private static Callable<Object> operation(Map<String, Callable<Object>> operations, String name) {
+        Callable<Object> operation = operations.get(name);
+        if (operation == null) {
+            throw new IllegalStateException(name + " のフィクスチャがありません（顔検出器か登録顔の画像を確認してください）");
+        }
+        return operation;
+    }
+
+    // suite: RecognitionBenchmark の同名の静的メソッドを呼ぶ
+    @SuppressWarnings("unchecked")
+    private static <T> T suite(String name, Object... args) throws Exception {
+        for (Method method : Class.forName(SUITE).getMethods()) {
+            if (method.getName().equals(name) && method.getParameterCount() == args.length) {
+                return (T) method.invoke(null, args);
+            }
+        }
+        throw new NoSuchMethodException(SUITE + "." + name);
+    }
+
+    // main: JMHのコマンドラインをそのまま受け付け、省略時はGCプロファイラとJSONの結果ファイルを付ける
+    public static void main(String[] args) throws Exception {
+        CommandLineOptions commandLine = new CommandLineOptions(args);
+        if (commandLine.shouldHelp()) {
+            commandLine.showHelp();
+            return;
+        }
+        ChainedOptionsBuilder options = new OptionsBuilder().parent(commandLine);
+        if (commandLine.getProfilers().isEmpty()) {
+            options.addProfiler(GCProfiler.class);
+        }
+        if (!commandLine.getResultFormat().hasValue()) {
+            options.resultFormat(ResultFormatType.JSON);
+        }
+        if (!commandLine.getResult().hasValue()) {
+            options.result("jmh_results.json");
+        }
+        Runner runner = new Runner(options.build());
+        if (commandLine.shouldList()) {
+            runner.list();
+            return;
+        }
+        runner.run();
+    }
+}
@@ -0,0 +1,61 @@
+import org.opencv.features2d.ORB;
+import java.util.Locale;
+
+
+/**
+ * 認識の処理サイズと特徴抽出の設定。
+ * 入力画像は長辺がlongEdge以下になるよう1回だけ縮小してから前処理・特徴抽出するので、
+ * アップロードされた写真の解像度にかかわらず処理時間の上限が決まる。
+ * モデル画像も同じ設定で特徴抽出するため、入力とモデルのスケールが揃う。
+ * ORBはスレッドセーフではないので、使う側（ImageAnalyzerのスレッドごとの作業領域）がcreateDetectorで作って持つ。
+ */
+public enum AnalysisProfile {
+    FAST(320, 300, 4), // 速度優先
+    BALANCED(640, 500, 8), // 標準（ORBの既定値と同じ特徴点数・ピラミッド段数）
+    ACCURATE(1024, 1000, 8); // 精度優先
+
+    private final int longEdge; // 処理サイズの長辺（これより大きい画像は縮小する）
+    private final int features; // ORBで抽出する最大特徴点数
+    private final int levels; // ORBのピラミッド段数
+
+    AnalysisProfile(int longEdge, int features, int levels) {
+        this.longEdge = longEdge;
+        this.features = features;
+        this.levels = levels;
+    }
+
+    // fromSystemProperties: -Danalyzer.profile=fast|balanced|accurate（未指定ならbalanced）
+    public static AnalysisProfile fromSystemProperties() {
+        return valueOf(System.getProperty("analyzer.profile", "BALANCED").toUpperCase(Locale.ROOT));
+    }
+
+    // scaleFor: 画像を処理サイズに収めるための倍率（縮小不要なら1）
+    public double scaleFor(int width, int height) {
+        int edge = Math.max(width, height);
+        return edge <= longEdge ? 1.0 : (double) longEdge / edge;
+    }
+
+    public int getLongEdge() {
+        return longEdge;
+    }
+
+    public int getFeatures() {
+        return features;
+    }
+
+    public int getLevels() {
+        return levels;
+    }
+
+    // createDetector: この設定のORBを作る（スレッドごとに1つ使うこと）
+    ORB createDetector() {
+        // 倍率・エッジ閾値などはORB.create()の既定値のまま、特徴点数と段数だけを変える
+        return ORB.create(features, 1.2f, levels, 31, 0, 2, ORB.HARRIS_SCORE, 31, 20);
+    }
+
+    @Override
+    public String toString() {
+        return String.format(Locale.ROOT, "%s(longEdge=%d, features=%d, levels=%d)",
+                name().toLowerCase(Locale.ROOT), longEdge, features, levels);
+    }
+}
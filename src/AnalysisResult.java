@@ -0,0 +1,219 @@
+import java.util.Locale;
+
+
+public class AnalysisResult {
+    private final String[] classNames; // 動物名
+    private final double[] scores; // 動物ごとの類似度(%)。classNamesと同じ並び
+    private final int topIndex; // 最も類似度が高い動物の番号（-1ならエラー）
+    private final double prepareTimeMs; // 変換と前処理の時間
+    private final double extractTimeMs; // 特徴抽出の時間
+    private final double matchTimeMs; // マッチングの時間
+    private final String error; // エラーメッセージ（正常時はnull）
+    private String engine = "EXACT"; // 使用したマッチング方式
+    private double recall = Double.NaN; // 近似検索の再現率（計測しなかった場合はNaN）
+    private String cascade; // カスケードの設定（使わなかった場合はnull）
+    private int modelsTotal; // モデル総数
+    private int modelsEvaluated; // ORBで比較したモデル数
+    private int modelsEarlyStopped; // 途中で打ち切ったモデル数
+    private ScoreKind[] scoreKinds; // カスケード時の動物ごとの値の種類（nullならすべてEXACT）
+    private double[] upperBounds; // BOUNDEDの動物の類似度の上限(%)。それ以外はNaN
+
+    // ScoreKind: 動物ごとの値が確定した類似度かどうか（カスケードでは比較を省いた動物がある）
+    public enum ScoreKind {
+        EXACT, // 最後まで比較した類似度
+        BOUNDED, // 途中で打ち切ったモデルがあり、上限しか分からない（scoresは確定した下限、なければ0）
+        PRUNED // 画像全体の特徴で候補から外れ、比較していない（scoresは0）
+    }
+
+    // コンストラクタ: 解析結果をセット
+    public AnalysisResult(String[] classNames, double[] scores, double prepareTimeMs, double extractTimeMs, double matchTimeMs) {
+        this.classNames = classNames;
+        this.scores = scores;
+        this.prepareTimeMs = prepareTimeMs;
+        this.extractTimeMs = extractTimeMs;
+        this.matchTimeMs = matchTimeMs;
+        this.error = null;
+        int top = scores.length > 0 ? 0 : -1;
+        for (int c = 1; c < scores.length; c++) {
+            if (scores[c] > scores[top]) {
+                top = c;
+            }
+        }
+        this.topIndex = top;
+    }
+
+    private AnalysisResult(String error) {
+        this.classNames = new String[0];
+        this.scores = new double[0];
+        this.topIndex = -1;
+        this.prepareTimeMs = 0;
+        this.extractTimeMs = 0;
+        this.matchTimeMs = 0;
+        this.error = error;
+    }
+
+    // error: 解析できなかった場合の結果を作る
+    public static AnalysisResult error(String message) {
+        return new AnalysisResult(message);
+    }
+
+    public boolean isError() {
+        return error != null;
+    }
+
+    public String getError() {
+        return error;
+    }
+
+    public String[] getClassNames() {
+        return classNames;
+    }
+
+    public double[] getScores() {
+        return scores;
+    }
+
+    // getScore: 指定した動物の類似度(%)。見つからなければ0
+    public double getScore(String name) {
+        int index = indexOf(name);
+        return index < 0 ? 0.0 : scores[index];
+    }
+
+    public int indexOf(String name) {
+        for (int c = 0; c < classNames.length; c++) {
+            if (classNames[c].equals(name)) {
+                return c;
+            }
+        }
+        return -1;
+    }
+
+    public int getTopIndex() {
+        return topIndex;
+    }
+
+    public String getTopClass() {
+        return topIndex < 0 ? "" : classNames[topIndex];
+    }
+
+    public double getTopScore() {
+        return topIndex < 0 ? 0.0 : scores[topIndex];
+    }
+
+    public double getPrepareTimeMs() {
+        return prepareTimeMs;
+    }
+
+    public double getExtractTimeMs() {
+        return extractTimeMs;
+    }
+
+    public double getMatchTimeMs() {
+        return matchTimeMs;
+    }
+
+    public double getTotalTimeMs() {
+        return prepareTimeMs + extractTimeMs + matchTimeMs;
+    }
+
+    public String getEngine() {
+        return engine;
+    }
+
+    void setEngine(String engine) {
+        this.engine = engine;
+    }
+
+    // getRecall: 厳密なマッチングに対する近似検索の再現率（0〜1、未計測ならNaN）
+    public double getRecall() {
+        return recall;
+    }
+
+    void setRecall(double recall) {
+        this.recall = recall;
+    }
+
+    void setCascade(String cascade, int modelsTotal, int modelsEvaluated, int modelsEarlyStopped,
+                    ScoreKind[] scoreKinds, double[] upperBounds) {
+        this.cascade = cascade;
+        this.modelsTotal = modelsTotal;
+        this.modelsEvaluated = modelsEvaluated;
+        this.modelsEarlyStopped = modelsEarlyStopped;
+        this.scoreKinds = scoreKinds;
+        this.upperBounds = upperBounds;
+    }
+
+    // getScoreKind: 動物ごとの値の種類（EXACT以外のscoresは類似度として表示しないこと）
+    public ScoreKind getScoreKind(int index) {
+        return scoreKinds == null ? ScoreKind.EXACT : scoreKinds[index];
+    }
+
+    public boolean isExact(int index) {
+        return getScoreKind(index) == ScoreKind.EXACT;
+    }
+
+    // getUpperBound: BOUNDEDの動物の類似度の上限(%)。それ以外はNaN
+    public double getUpperBound(int index) {
+        return upperBounds == null ? Double.NaN : upperBounds[index];
+    }
+
+    // getCascade: カスケードの設定（使わなかった場合はnull）
+    public String getCascade() {
+        return cascade;
+    }
+
+    public int getModelsTotal() {
+        return modelsTotal;
+    }
+
+    public int getModelsEvaluated() {
+        return modelsEvaluated;
+    }
+
+    public int getModelsEarlyStopped() {
+        return modelsEarlyStopped;
+    }
+
+    // getPruningRatio: ORB比較を省いたモデルの割合（0〜1）
+    public double getPruningRatio() {
+        return modelsTotal == 0 ? 0.0 : 1.0 - (double) modelsEvaluated / modelsTotal;
+    }
+
+    // toText: 画面表示用の文字列（以前のanalyzeImageの戻り値と同じ形式）
+    public String toText() {
+        if (isError()) {
+            return "エラー: " + error;
+        }
+        StringBuilder result = new StringBuilder();
+        result.append("最も可能性が高い: **").append(getTopClass()).append("** (")
+                .append(String.format(Locale.ROOT, "%.2f", getTopScore())).append("%)\n\n");
+        result.append("類似度解析結果:\n");
+        for (int c = 0; c < classNames.length; c++) {
+            result.append(classNames[c]).append(": ");
+            switch (getScoreKind(c)) {
+                case BOUNDED:
+                    result.append("≤").append(String.format(Locale.ROOT, "%.2f", upperBounds[c])).append("%（打ち切り）\n");
+                    break;
+                case PRUNED:
+                    result.append("—（枝刈り）\n");
+                    break;
+                default:
+                    result.append(String.format(Locale.ROOT, "%.2f", scores[c])).append("%\n");
+            }
+        }
+        if (cascade != null) {
+            result.append("カスケード: ").append(cascade).append(", 比較 ").append(modelsEvaluated).append('/').append(modelsTotal)
+                    .append(", 打ち切り ").append(modelsEarlyStopped).append(", 枝刈り率 ")
+                    .append(String.format(Locale.ROOT, "%.1f", getPruningRatio() * 100)).append("%\n");
+        }
+        if (!Double.isNaN(recall)) {
+            result.append("近似検索の再現率: ").append(String.format(Locale.ROOT, "%.1f", recall * 100)).append("%\n");
+        }
+        return result.toString();
+    }
+
+    @Override
+    public String toString() {
+        return toText();
+    }
+}
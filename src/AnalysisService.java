@@ -0,0 +1,132 @@
+import org.opencv.core.Mat;
+import javax.swing.SwingUtilities;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * 画面の処理（EDT）を止めずに画像認識を行う非同期サービス。
+ * 画像の取得・デコードから認識までを上限付きのワーカープールで実行し、結果はEDTへ戻して通知する。
+ * 新しい画像が来たら実行中・待機中の古いリクエストは中断し、最後の1件の結果だけを表示する（latest wins）。
+ */
+public class AnalysisService {
+    private static final Log LOG = Log.get("AnalysisService");
+    private final ImageAnalyzer analyzer;
+    private final int previewEdge; // 表示用画像の長辺
+    private final ThreadPoolExecutor executor;
+    private final AtomicLong generation = new AtomicLong(); // 最新リクエストの番号
+    private Future<?> inFlight; // 最新リクエストのタスク
+
+    // Source: ワーカースレッドで入力画像を用意する（ファイルのデコードやカメラの撮影）。nullなら取得失敗
+    public interface Source {
+        Mat load() throws Exception;
+    }
+
+    // Listener: EDTで呼ばれる通知先（最新のリクエストの分だけ呼ばれる）
+    public interface Listener {
+        void onImage(BufferedImage preview);
+
+        void onProgress(String stage, int done, int total);
+
+        void onResult(AnalysisResult result);
+
+        void onError(String message);
+    }
+
+    public AnalysisService(ImageAnalyzer analyzer, int workers, int previewEdge) {
+        this.analyzer = analyzer;
+        this.previewEdge = previewEdge;
+        AtomicInteger threadCount = new AtomicInteger();
+        // 待機できるのは1件だけ。あふれた古いリクエストは捨てる（EDTが送信で待たされることはない）
+        this.executor = new ThreadPoolExecutor(workers, workers, 0L, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(1), runnable -> {
+                    Thread thread = new Thread(runnable, "analysis-worker-" + threadCount.getAndIncrement());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.DiscardOldestPolicy());
+    }
+
+    // submit: 新しいリクエストを受け付け、それより前のリクエストを中断する
+    public synchronized void submit(Source source, Listener listener) {
+        long id = generation.incrementAndGet();
+        if (inFlight != null) {
+            inFlight.cancel(true);
+        }
+        inFlight = executor.submit(() -> run(id, source, listener));
+    }
+
+    // cancel: 実行中のリクエストを中断する（結果は通知されない）
+    public synchronized void cancel() {
+        generation.incrementAndGet();
+        if (inFlight != null) {
+            inFlight.cancel(true);
+            inFlight = null;
+        }
+    }
+
+    // run: ワーカースレッドで取得 → 表示用画像の作成 → 認識を行う
+    private void run(long id, Source source, Listener listener) {
+        Mat input = null;
+        try {
+            publish(id, () -> listener.onProgress("画像の取得", 0, 1));
+            input = source.load();
+            if (!isCurrent(id)) {
+                return;
+            }
+            if (input == null || input.empty()) {
+                publish(id, () -> listener.onError("画像を取得できませんでした。"));
+                return;
+            }
+            BufferedImage preview = ImageDecoder.preview(input, previewEdge);
+            publish(id, () -> listener.onImage(preview));
+
+            AnalysisResult result = analyzer.analyzeMat(input, new ImageAnalyzer.Progress() {
+                @Override
+                public void update(String stage, int done, int total) {
+                    publish(id, () -> listener.onProgress(stage, done, total));
+                }
+
+                @Override
+                public boolean isCancelled() {
+                    return !isCurrent(id);
+                }
+            });
+            publish(id, () -> listener.onResult(result));
+        } catch (CancellationException e) {
+            // 新しいリクエストに置き換えられた
+        } catch (IllegalStateException e) {
+            publish(id, () -> listener.onError(e.getMessage())); // 入力を用意できない（カメラがないなど）
+        } catch (Exception e) {
+            LOG.error("解析に失敗しました", e);
+            publish(id, () -> listener.onError("解析に失敗しました: " + e.getMessage()));
+        } finally {
+            if (input != null) {
+                input.release();
+            }
+        }
+    }
+
+    private boolean isCurrent(long id) {
+        return generation.get() == id && !Thread.currentThread().isInterrupted();
+    }
+
+    // publish: EDTで通知する。EDTに届いた時点で古くなっていれば捨てる
+    private void publish(long id, Runnable notification) {
+        if (generation.get() != id) {
+            return;
+        }
+        SwingUtilities.invokeLater(() -> {
+            if (generation.get() == id) {
+                notification.run();
+            }
+        });
+    }
+
+    // shutdown: ワーカーを停止する
+    public void shutdown() {
+        cancel();
+        executor.shutdownNow();
+    }
+}
@@ -0,0 +1,446 @@
+import org.opencv.core.Core;
+import org.opencv.core.Mat;
+import java.io.*;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.AtomicInteger;
+
+
+/**
+ * 画面なしで大量の画像を一括判定するバッチモード。
+ * デコード → 前処理 → 特徴抽出・マッチング をそれぞれ別スレッド数のステージとして
+ * 有界キューでつなぎ、結果は非同期ライターでJSONLまたはCSVに書き出す。
+ *
+ * 使い方: java BatchAnalyzer <ディレクトリ | @ファイル一覧 | 画像...> [--out results.jsonl|results.csv]
+ *         [--decode-threads N] [--preprocess-threads N] [--match-threads N] [--queue N]
+ *         [--engine exact|lsh|bow] [--recall N] [--cascade-topk K] [--cascade-margin M]
+ *         [--profile fast|balanced|accurate]
+ */
+public class BatchAnalyzer {
+    private static final Log LOG = Log.get("BatchAnalyzer");
+    private static final Item END = new Item(-1, null); // ステージ終了の合図
+
+    private final ImageAnalyzer analyzer;
+    private final int decodeThreads;
+    private final int preprocessThreads;
+    private final int matchThreads;
+    private final BlockingQueue<Item> decoded; // デコード → 前処理
+    private final BlockingQueue<Item> prepared; // 前処理 → マッチング
+    private final BlockingQueue<Item> results; // マッチング → ライター
+    private final AtomicInteger completed = new AtomicInteger();
+
+    // Item: パイプラインを流れる1枚分のデータ
+    private static class Item {
+        final int seq;
+        final File file;
+        Mat bgr; // 処理サイズに近い解像度でデコードした画像
+        Mat gray;
+        long prepareNanos; // 前処理ステージでかかった時間
+        AnalysisResult result;
+        String error;
+
+        Item(int seq, File file) {
+            this.seq = seq;
+            this.file = file;
+        }
+    }
+
+    public BatchAnalyzer(ImageAnalyzer analyzer, int decodeThreads, int preprocessThreads, int matchThreads, int queueSize) {
+        this.analyzer = analyzer;
+        this.decodeThreads = decodeThreads;
+        this.preprocessThreads = preprocessThreads;
+        this.matchThreads = matchThreads;
+        this.decoded = new ArrayBlockingQueue<>(queueSize);
+        this.prepared = new ArrayBlockingQueue<>(queueSize);
+        this.results = new ArrayBlockingQueue<>(queueSize);
+        // キューの滞留数をJMXで見られるようにする（最後に作ったBatchAnalyzerの値）
+        Metrics.gauge("BatchAnalyzer.queue.decoded", decoded::size);
+        Metrics.gauge("BatchAnalyzer.queue.prepared", prepared::size);
+        Metrics.gauge("BatchAnalyzer.queue.results", results::size);
+    }
+
+    // run: 全画像をパイプラインに流し、結果をoutに書き出す
+    // 1枚ごとの失敗はエラー行として書き、出力の書き込みに失敗したときは全ステージを止めてIOExceptionを投げる
+    public void run(List<File> files, Writer out, boolean csv) throws IOException, InterruptedException {
+        String[] names = analyzer.getClassNames();
+        long start = System.nanoTime();
+        AtomicInteger cursor = new AtomicInteger();
+
+        List<Thread> threads = new ArrayList<>();
+        // デコードステージ: ファイル一覧を共有カーソルで分け合う
+        CountDownLatch decodeDone = new CountDownLatch(decodeThreads);
+        for (int t = 0; t < decodeThreads; t++) {
+            threads.add(stageThread("decode-" + t, () -> {
+                try {
+                    int i;
+                    while ((i = cursor.getAndIncrement()) < files.size()) {
+                        Item item = new Item(i, files.get(i));
+                        try {
+                            item.bgr = ImageDecoder.decode(item.file, analyzer.getProfile().getLongEdge());
+                            if (item.bgr == null) {
+                                item.error = "未対応の画像形式です";
+                            }
+                        } catch (IOException | RuntimeException e) {
+                            // 壊れた画像ではImageIOが実行時例外を投げることもある。1枚の失敗で止めない
+                            item.error = "読み込みに失敗しました: " + e;
+                        }
+                        decoded.put(item);
+                    }
+                } finally {
+                    decodeDone.countDown();
+                }
+            }));
+        }
+        threads.add(stageThread("decode-end", () -> {
+            decodeDone.await();
+            for (int t = 0; t < preprocessThreads; t++) {
+                decoded.put(END);
+            }
+        }));
+
+        // 前処理ステージ: 処理サイズへの縮小とpreprocessImage
+        CountDownLatch preprocessDone = new CountDownLatch(preprocessThreads);
+        for (int t = 0; t < preprocessThreads; t++) {
+            threads.add(stageThread("preprocess-" + t, () -> {
+                try {
+                    Item item;
+                    while ((item = decoded.take()) != END) {
+                        if (item.error == null) {
+                            long prepareStart = System.nanoTime();
+                            try {
+                                item.gray = analyzer.prepareImage(item.bgr);
+                                item.prepareNanos = System.nanoTime() - prepareStart;
+                            } catch (RuntimeException e) {
+                                item.error = "前処理に失敗しました: " + e;
+                            } finally {
+                                item.bgr.release(); // デコード済み画像はここで手放す
+                                item.bgr = null;
+                            }
+                        }
+                        prepared.put(item);
+                    }
+                } finally {
+                    preprocessDone.countDown();
+                }
+            }));
+        }
+        threads.add(stageThread("preprocess-end", () -> {
+            preprocessDone.await();
+            for (int t = 0; t < matchThreads; t++) {
+                prepared.put(END);
+            }
+        }));
+
+        // マッチングステージ: 特徴抽出とモデルとの比較
+        CountDownLatch matchDone = new CountDownLatch(matchThreads);
+        for (int t = 0; t < matchThreads; t++) {
+            threads.add(stageThread("match-" + t, () -> {
+                try {
+                    Item item;
+                    while ((item = prepared.take()) != END) {
+                        if (item.error == null) {
+                            try {
+                                item.result = analyzer.analyzePrepared(item.gray, item.prepareNanos);
+                                if (item.result.isError()) {
+                                    item.error = item.result.getError();
+                                }
+                            } catch (RuntimeException e) {
+                                item.error = "解析に失敗しました: " + e;
+                            } finally {
+                                MatPool.recycle(item.gray);
+                                item.gray = null;
+                            }
+                        }
+                        results.put(item);
+                    }
+                } finally {
+                    matchDone.countDown();
+                }
+            }));
+        }
+        threads.add(stageThread("match-end", () -> {
+            matchDone.await();
+            results.put(END);
+        }));
+
+        // 進捗レポート: 処理速度と各キューの滞留数
+        ScheduledExecutorService reporter = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "batch-report");
+            thread.setDaemon(true);
+            return thread;
+        });
+        reporter.scheduleAtFixedRate(() -> report(files.size(), start), 2, 2, TimeUnit.SECONDS);
+
+        for (Thread thread : threads) {
+            thread.start();
+        }
+        // 書き込みは専用スレッド（呼び出し元）で行い、ステージを待たせない
+        boolean finished = false;
+        try {
+            if (csv) {
+                out.write(csvHeader(names));
+            }
+            Item item;
+            while ((item = results.take()) != END) {
+                out.write(csv ? toCsv(item, names) : toJson(item, names));
+                completed.incrementAndGet();
+            }
+            out.flush();
+            finished = true;
+        } catch (IOException e) {
+            LOG.error("結果の書き込みに失敗しました: {}", e.getMessage());
+            throw e;
+        } finally {
+            reporter.shutdownNow();
+            if (!finished) {
+                // ライターが結果を取らなくなると、ステージはキューへのputで止まったままになるので中断させる
+                for (Thread thread : threads) {
+                    thread.interrupt();
+                }
+            }
+            for (Thread thread : threads) {
+                thread.join();
+            }
+            if (!finished) {
+                discardPending();
+            }
+        }
+        report(files.size(), start);
+    }
+
+    // discardPending: 中断したときにキューに残った画像のMatを解放する
+    private void discardPending() {
+        for (BlockingQueue<Item> queue : Arrays.asList(decoded, prepared, results)) {
+            Item item;
+            while ((item = queue.poll()) != null) {
+                if (item.bgr != null) {
+                    item.bgr.release();
+                }
+                if (item.gray != null) {
+                    MatPool.recycle(item.gray);
+                }
+            }
+        }
+    }
+
+    // report: 画像/秒とキューの深さを表示（ステージのスレッド数調整用）
+    private void report(int total, long start) {
+        double seconds = (System.nanoTime() - start) / 1_000_000_000.0;
+        int done = completed.get();
+        LOG.info("{}/{} 枚, {} 枚/秒, キュー[デコード→前処理={}, 前処理→マッチング={}, マッチング→出力={}]",
+                done, total, Log.fixed(done / Math.max(seconds, 1e-9), 1), decoded.size(), prepared.size(), results.size());
+    }
+
+    private static Thread stageThread(String name, StageBody body) {
+        Thread thread = new Thread(() -> {
+            try {
+                body.run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }, "batch-" + name);
+        thread.setDaemon(true);
+        return thread;
+    }
+
+    private interface StageBody {
+        void run() throws InterruptedException;
+    }
+
+    private static String csvHeader(String[] names) {
+        StringBuilder sb = new StringBuilder("file,top");
+        for (String name : names) {
+            sb.append(',').append(csvEscape(name));
+        }
+        return sb.append(",error\n").toString();
+    }
+
+    private static String toCsv(Item item, String[] names) {
+        StringBuilder sb = new StringBuilder(csvEscape(item.file.getPath())).append(',');
+        boolean ok = item.error == null;
+        if (ok) {
+            sb.append(csvEscape(item.result.getTopClass()));
+        }
+        for (String name : names) {
+            sb.append(',');
+            int c = ok ? item.result.indexOf(name) : -1;
+            // カスケードで比較を省いた動物は空欄、途中で打ち切った動物は上限に<=を付ける
+            if (c >= 0 && item.result.isExact(c)) {
+                sb.append(String.format(Locale.ROOT, "%.2f", item.result.getScores()[c]));
+            } else if (c >= 0 && item.result.getScoreKind(c) == AnalysisResult.ScoreKind.BOUNDED) {
+                sb.append(String.format(Locale.ROOT, "<=%.2f", item.result.getUpperBound(c)));
+            }
+        }
+        sb.append(',');
+        if (item.error != null) {
+            sb.append(csvEscape(item.error));
+        }
+        return sb.append('\n').toString();
+    }
+
+    private static String toJson(Item item, String[] names) {
+        StringBuilder sb = new StringBuilder("{\"file\":").append(jsonEscape(item.file.getPath()));
+        if (item.error == null) {
+            AnalysisResult result = item.result;
+            // scoresには確定した類似度だけを入れ、カスケードの上限と枝刈りした動物は別の項目にする
+            StringBuilder scores = new StringBuilder();
+            StringBuilder bounds = new StringBuilder();
+            StringBuilder pruned = new StringBuilder();
+            for (String name : names) {
+                int c = result.indexOf(name);
+                AnalysisResult.ScoreKind kind = c < 0 ? AnalysisResult.ScoreKind.PRUNED : result.getScoreKind(c);
+                if (kind == AnalysisResult.ScoreKind.EXACT) {
+                    appendJsonEntry(scores, name, result.getScores()[c]);
+                } else if (kind == AnalysisResult.ScoreKind.BOUNDED) {
+                    appendJsonEntry(bounds, name, result.getUpperBound(c));
+                } else {
+                    pruned.append(pruned.length() > 0 ? "," : "").append(jsonEscape(name));
+                }
+            }
+            sb.append(",\"top\":").append(jsonEscape(result.getTopClass())).append(",\"scores\":{").append(scores).append('}');
+            sb.append(String.format(Locale.ROOT, ",\"timeMs\":%.2f", result.getTotalTimeMs()));
+            if (result.getCascade() != null) {
+                sb.append(",\"cascade\":").append(jsonEscape(result.getCascade()))
+                        .append(String.format(Locale.ROOT, ",\"pruningRatio\":%.3f", result.getPruningRatio()))
+                        .append(",\"upperBounds\":{").append(bounds).append("},\"pruned\":[").append(pruned).append(']');
+            }
+            if (!Double.isNaN(result.getRecall())) {
+                sb.append(String.format(Locale.ROOT, ",\"recall\":%.3f", result.getRecall()));
+            }
+        }
+        if (item.error != null) {
+            sb.append(",\"error\":").append(jsonEscape(item.error));
+        }
+        return sb.append("}\n").toString();
+    }
+
+    private static void appendJsonEntry(StringBuilder sb, String name, double value) {
+        if (sb.length() > 0) {
+            sb.append(',');
+        }
+        sb.append(jsonEscape(name)).append(':').append(String.format(Locale.ROOT, "%.2f", value));
+    }
+
+    private static String csvEscape(String value) {
+        if (value.indexOf(',') < 0 && value.indexOf('"') < 0 && value.indexOf('\n') < 0) {
+            return value;
+        }
+        return '"' + value.replace("\"", "\"\"") + '"';
+    }
+
+    private static String jsonEscape(String value) {
+        StringBuilder sb = new StringBuilder("\"");
+        for (char ch : value.toCharArray()) {
+            switch (ch) {
+                case '"': sb.append("\\\""); break;
+                case '\\': sb.append("\\\\"); break;
+                case '\n': sb.append("\\n"); break;
+                case '\r': sb.append("\\r"); break;
+                case '\t': sb.append("\\t"); break;
+                default:
+                    if (ch < 0x20) {
+                        sb.append(String.format("\\u%04x", (int) ch));
+                    } else {
+                        sb.append(ch);
+                    }
+            }
+        }
+        return sb.append('"').toString();
+    }
+
+    // collectFiles: ディレクトリ・@一覧ファイル・個別ファイルの指定を画像ファイルのリストに展開
+    private static List<File> collectFiles(List<String> inputs) throws IOException {
+        List<File> files = new ArrayList<>();
+        for (String input : inputs) {
+            if (input.startsWith("@")) {
+                for (String line : Files.readAllLines(new File(input.substring(1)).toPath(), StandardCharsets.UTF_8)) {
+                    if (!line.trim().isEmpty()) {
+                        files.add(new File(line.trim()));
+                    }
+                }
+            } else {
+                File file = new File(input);
+                if (file.isDirectory()) {
+                    File[] children = file.listFiles((dir, name) -> name.toLowerCase(Locale.ROOT).matches(".*\\.(jpe?g|png|bmp|gif)"));
+                    if (children != null) {
+                        Arrays.sort(children);
+                        files.addAll(Arrays.asList(children));
+                    }
+                } else {
+                    files.add(file);
+                }
+            }
+        }
+        return files;
+    }
+
+    // main: コマンドライン引数を解釈してバッチ処理を実行
+    public static void main(String[] args) throws Exception {
+        List<String> inputs = new ArrayList<>();
+        String outPath = "-";
+        int cores = Runtime.getRuntime().availableProcessors();
+        int decodeThreads = Math.max(1, cores / 4);
+        int preprocessThreads = Math.max(1, cores / 4);
+        int matchThreads = Math.max(1, cores / 2);
+        int queueSize = 16;
+        ImageAnalyzer.Engine engine = null;
+        int recallSamples = 0;
+        int cascadeTopK = 0;
+        double cascadeMargin = 0.05;
+        AnalysisProfile profile = AnalysisProfile.fromSystemProperties();
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--out": outPath = args[++i]; break;
+                case "--decode-threads": decodeThreads = Integer.parseInt(args[++i]); break;
+                case "--preprocess-threads": preprocessThreads = Integer.parseInt(args[++i]); break;
+                case "--match-threads": matchThreads = Integer.parseInt(args[++i]); break;
+                case "--queue": queueSize = Integer.parseInt(args[++i]); break;
+                case "--engine": engine = ImageAnalyzer.Engine.valueOf(args[++i].toUpperCase(Locale.ROOT)); break;
+                case "--recall": recallSamples = Integer.parseInt(args[++i]); break;
+                case "--cascade-topk": cascadeTopK = Integer.parseInt(args[++i]); break;
+                case "--cascade-margin": cascadeMargin = Double.parseDouble(args[++i]); break;
+                case "--profile": profile = AnalysisProfile.valueOf(args[++i].toUpperCase(Locale.ROOT)); break;
+                default: inputs.add(args[i]);
+            }
+        }
+        if (inputs.isEmpty()) {
+            LOG.error("使い方: java BatchAnalyzer <ディレクトリ | @ファイル一覧 | 画像...> [--out results.jsonl|results.csv]"
+                    + " [--decode-threads N] [--preprocess-threads N] [--match-threads N] [--queue N]"
+                    + " [--engine exact|lsh|bow] [--recall N] [--cascade-topk K] [--cascade-margin M]"
+                    + " [--profile fast|balanced|accurate]");
+            System.exit(1);
+        }
+
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        List<File> files = collectFiles(inputs);
+        ModelIndexFile indexFile = ModelIndexFile.loadOrCompile(ModelCatalog.sources(), new File(ModelCatalog.INDEX_FILE), profile);
+        ImageAnalyzer analyzer = new ImageAnalyzer(indexFile);
+        analyzer.setParallelism(1); // 並列化はマッチングステージのスレッド数で行う
+        if (engine != null) {
+            analyzer.setEngine(engine);
+        }
+        analyzer.setRecallSampling(recallSamples);
+        if (cascadeTopK > 0) {
+            analyzer.setCascade(new ImageAnalyzer.Cascade(cascadeTopK, cascadeMargin, true));
+        }
+
+        boolean csv = outPath.toLowerCase(Locale.ROOT).endsWith(".csv");
+        if (outPath.equals("-")) {
+            Log.useStandardErrorOnly(); // 結果の出力にログを混ぜない
+        }
+        Writer out = outPath.equals("-")
+                ? new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8))
+                : Files.newBufferedWriter(new File(outPath).toPath(), StandardCharsets.UTF_8);
+        try {
+            new BatchAnalyzer(analyzer, decodeThreads, preprocessThreads, matchThreads, queueSize).run(files, out, csv);
+        } finally {
+            out.close();
+            analyzer.shutdown();
+        }
+    }
+}
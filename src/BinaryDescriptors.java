@@ -0,0 +1,50 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+
+
+/**
+ * ORBなどのバイナリ記述子をlong配列に詰めて扱うためのユーティリティ。
+ * 1記述子（ORBは32バイト=256ビット）をwords個のlongに並べ、ハミング距離はLong.bitCountで求める。
+ */
+public class BinaryDescriptors {
+    private BinaryDescriptors() {
+    }
+
+    // wordsPerDescriptor: 1記述子あたりのlong数
+    public static int wordsPerDescriptor(Mat descriptors) {
+        return (descriptors.cols() + 7) / 8;
+    }
+
+    // pack: CV_8UのMat（1行1記述子）をlong配列に変換
+    public static long[] pack(Mat descriptors) {
+        if (descriptors.empty()) {
+            return new long[0];
+        }
+        if (descriptors.type() != CvType.CV_8UC1) {
+            throw new IllegalArgumentException("バイナリ記述子ではありません: " + CvType.typeToString(descriptors.type()));
+        }
+        int rows = descriptors.rows();
+        int cols = descriptors.cols();
+        int words = wordsPerDescriptor(descriptors);
+        byte[] bytes = new byte[rows * cols];
+        descriptors.get(0, 0, bytes);
+        long[] packed = new long[rows * words];
+        for (int r = 0; r < rows; r++) {
+            for (int c = 0; c < cols; c++) {
+                packed[r * words + c / 8] |= (bytes[r * cols + c] & 0xFFL) << ((c % 8) * 8);
+            }
+        }
+        return packed;
+    }
+
+    // hamming: 2つの記述子のハミング距離
+    public static int hamming(long[] a, int indexA, long[] b, int indexB, int words) {
+        int offsetA = indexA * words;
+        int offsetB = indexB * words;
+        int distance = 0;
+        for (int w = 0; w < words; w++) {
+            distance += Long.bitCount(a[offsetA + w] ^ b[offsetB + w]);
+        }
+        return distance;
+    }
+}
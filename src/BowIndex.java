@@ -0,0 +1,136 @@
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * Bag-of-visual-wordsによる認識用の転置インデックス。
+ * 各モデル画像を語彙木で単語ヒストグラムに変換し、TF-IDFで重み付けしてL2正規化したうえで
+ * 単語ごとの（画像番号, 重み）のリストとして保持する。
+ * 検索は入力記述子の量子化1回と、入力に現れた単語のリストをたどる疎な内積だけで済む。
+ */
+public class BowIndex {
+    private final VocabularyTree vocabulary;
+    private final int imageCount;
+    private final int[] imageClasses; // モデル画像ごとの動物番号
+    private final float[] idf; // 単語ごとのIDF
+    private final int[] postingStart; // 単語ごとの転置リスト開始位置（CSR形式）
+    private final int[] postingImages; // 転置リストの画像番号
+    private final float[] postingWeights; // 転置リストの重み
+
+    // コンストラクタ: 全モデル画像の単語ヒストグラムから転置インデックスを作る
+    public BowIndex(VocabularyTree vocabulary, List<ModelFeature> features, int[] modelClasses) {
+        this.vocabulary = vocabulary;
+        this.imageCount = features.size();
+        this.imageClasses = modelClasses;
+        int wordCount = vocabulary.getWordCount();
+
+        // 画像ごとの単語出現回数と、単語ごとの出現画像数
+        float[][] histograms = new float[imageCount][];
+        int[] documentFrequency = new int[wordCount];
+        for (int i = 0; i < imageCount; i++) {
+            histograms[i] = histogram(BinaryDescriptors.pack(features.get(i).getDescriptors()), features.get(i).getDescriptors().rows());
+            for (int w = 0; w < wordCount; w++) {
+                if (histograms[i][w] > 0) {
+                    documentFrequency[w]++;
+                }
+            }
+        }
+        idf = new float[wordCount];
+        for (int w = 0; w < wordCount; w++) {
+            idf[w] = documentFrequency[w] == 0 ? 0f : (float) Math.log((double) imageCount / documentFrequency[w]);
+        }
+
+        // TF-IDFで重み付け・正規化して転置リストに詰める
+        postingStart = new int[wordCount + 1];
+        for (int w = 0; w < wordCount; w++) {
+            postingStart[w + 1] = postingStart[w] + documentFrequency[w];
+        }
+        postingImages = new int[postingStart[wordCount]];
+        postingWeights = new float[postingStart[wordCount]];
+        int[] fill = new int[wordCount];
+        for (int i = 0; i < imageCount; i++) {
+            float[] vector = weight(histograms[i]);
+            for (int w = 0; w < wordCount; w++) {
+                if (histograms[i][w] > 0) {
+                    int p = postingStart[w] + fill[w]++;
+                    postingImages[p] = i;
+                    postingWeights[p] = vector[w];
+                }
+            }
+        }
+    }
+
+    public VocabularyTree getVocabulary() {
+        return vocabulary;
+    }
+
+    // scoreClasses: 入力記述子と各モデル画像のコサイン類似度を求め、動物ごとの最大値を返す（0〜1）
+    public double[] scoreClasses(long[] query, int queryCount, int classCount) {
+        // 入力は出現した単語だけの疎なベクトルにする（単語数が増えても検索コストは変わらない）
+        int[] wordIds = new int[queryCount];
+        for (int d = 0; d < queryCount; d++) {
+            wordIds[d] = vocabulary.quantize(query, d);
+        }
+        Arrays.sort(wordIds);
+        int[] distinct = new int[queryCount];
+        float[] weights = new float[queryCount];
+        int n = 0;
+        double norm = 0;
+        for (int d = 0; d < queryCount; ) {
+            int word = wordIds[d];
+            int run = 0;
+            while (d < queryCount && wordIds[d] == word) {
+                run++;
+                d++;
+            }
+            distinct[n] = word;
+            weights[n] = run * idf[word];
+            norm += weights[n] * weights[n];
+            n++;
+        }
+
+        double[] imageScores = new double[imageCount];
+        double scale = norm > 0 ? 1.0 / Math.sqrt(norm) : 0.0;
+        for (int i = 0; i < n; i++) {
+            int w = distinct[i];
+            double q = weights[i] * scale;
+            if (q == 0.0) {
+                continue;
+            }
+            for (int p = postingStart[w]; p < postingStart[w + 1]; p++) {
+                imageScores[postingImages[p]] += q * postingWeights[p];
+            }
+        }
+        double[] classScores = new double[classCount];
+        for (int i = 0; i < imageCount; i++) {
+            classScores[imageClasses[i]] = Math.max(classScores[imageClasses[i]], imageScores[i]);
+        }
+        return classScores;
+    }
+
+    // histogram: 記述子を単語に量子化して出現回数を数える
+    private float[] histogram(long[] descriptors, int count) {
+        float[] histogram = new float[vocabulary.getWordCount()];
+        for (int d = 0; d < count; d++) {
+            histogram[vocabulary.quantize(descriptors, d)]++;
+        }
+        return histogram;
+    }
+
+    // weight: TF-IDFで重み付けしてL2正規化する
+    private float[] weight(float[] histogram) {
+        float[] vector = new float[histogram.length];
+        double norm = 0;
+        for (int w = 0; w < histogram.length; w++) {
+            vector[w] = histogram[w] * idf[w];
+            norm += vector[w] * vector[w];
+        }
+        if (norm > 0) {
+            float scale = (float) (1.0 / Math.sqrt(norm));
+            for (int w = 0; w < vector.length; w++) {
+                vector[w] *= scale;
+            }
+        }
+        return vector;
+    }
+}
@@ -0,0 +1,127 @@
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+
+
+/**
+ * 顔登録の連写。数秒の間に見つかった顔を最大FRAMES枚集め、鮮明さ・明るさ・顔の大きさで採点してから、
+ * ほとんど同じ顔を除いた上位KEEP枚だけをテンプレートにする。
+ * 左右反転や明るさ違いの画像は保存しない（反転は照合時にFaceGalleryが行い、明るさの違いはLBPが吸収する）。
+ *
+ * インスタンスはスレッドセーフではない（パイプラインの認識スレッドの中だけで使うこと）。
+ */
+public class BurstEnrollment {
+    private static final int FRAMES = Integer.getInteger("enroll.frames", 12); // 集める顔の最大数
+    private static final long DURATION_MS = Long.getLong("enroll.durationMs", 3000); // 集める最長時間
+    private static final int KEEP = Integer.getInteger("enroll.templates", 3); // 保存するテンプレート数
+    private static final double DUPLICATE_RATIO = 0.3; // 認証の閾値に対してこの割合より近い顔は同じとみなす
+    private static final double SHARPNESS_TARGET = 200; // ラプラシアンの分散がこれ以上なら鮮明さは満点
+
+    private final FaceTemplate mode;
+    private final long deadline;
+    private final List<Candidate> candidates = new ArrayList<>();
+
+    // Candidate: 採点した顔1枚分
+    private static final class Candidate {
+        final float[] template;
+        final double score;
+        final long area;
+
+        Candidate(float[] template, double score, long area) {
+            this.template = template;
+            this.score = score;
+            this.area = area;
+        }
+    }
+
+    public BurstEnrollment(FaceTemplate mode) {
+        this.mode = mode;
+        this.deadline = System.currentTimeMillis() + DURATION_MS;
+    }
+
+    // offer: フレームで見つかった顔のうち一番大きいものを採点して加える。
+    // テンプレートは前処理済みのgrayから作り、採点は補正前のrawで行う（平坦化で明るさが、ぼかしで鮮明さが均されるため）
+    public void offer(Mat gray, Mat raw, Rect[] faces) {
+        if (faces.length == 0 || isComplete()) {
+            return;
+        }
+        Rect face = faces[0];
+        for (Rect rect : faces) {
+            if (rect.area() > face.area()) {
+                face = rect;
+            }
+        }
+        try (MatArena arena = new MatArena()) {
+            Mat crop = arena.track(gray.submat(face));
+            Mat rawCrop = arena.track(raw.submat(face));
+            candidates.add(new Candidate(mode.extract(crop), score(rawCrop, raw), (long) face.area()));
+        }
+    }
+
+    // isComplete: 必要な枚数が集まったか、時間切れになったか
+    public boolean isComplete() {
+        return candidates.size() >= FRAMES || System.currentTimeMillis() >= deadline;
+    }
+
+    public int collected() {
+        return candidates.size();
+    }
+
+    // select: 点数の高い順に、既に選んだ顔と近すぎないものをKEEP枚まで選ぶ
+    public List<float[]> select() {
+        List<Candidate> sorted = new ArrayList<>(candidates);
+        sorted.sort(Comparator.comparingDouble((Candidate c) -> c.score).reversed());
+        double duplicate = mode.getThreshold() * DUPLICATE_RATIO;
+        List<Candidate> chosen = new ArrayList<>();
+        for (Candidate candidate : sorted) {
+            boolean near = false;
+            for (Candidate kept : chosen) {
+                if (mode.distance(squaredDistance(candidate.template, kept.template), candidate.area) < duplicate) {
+                    near = true;
+                    break;
+                }
+            }
+            if (!near) {
+                chosen.add(candidate);
+                if (chosen.size() >= KEEP) {
+                    break;
+                }
+            }
+        }
+        List<float[]> templates = new ArrayList<>(chosen.size());
+        for (Candidate candidate : chosen) {
+            templates.add(candidate.template);
+        }
+        return templates;
+    }
+
+    // score: 鮮明さ（ラプラシアンの分散）・明るさ（平均が中間に近いほどよい）・顔の大きさ（フレームに対する割合）の積
+    private static double score(Mat crop, Mat frame) {
+        try (MatArena arena = new MatArena()) {
+            Mat laplacian = arena.mat();
+            Imgproc.Laplacian(crop, laplacian, CvType.CV_64F);
+            MatOfDouble mean = arena.track(new MatOfDouble());
+            MatOfDouble stddev = arena.track(new MatOfDouble());
+            Core.meanStdDev(laplacian, mean, stddev);
+            double sigma = stddev.toArray()[0];
+            double sharpness = Math.min(1.0, sigma * sigma / SHARPNESS_TARGET);
+
+            double brightness = Core.mean(crop).val[0];
+            double exposure = 1.0 - Math.abs(brightness - 128) / 128;
+
+            double size = Math.min(1.0, Math.sqrt((double) crop.total() / frame.total()) / 0.5); // 顔の幅が画面の半分で満点
+            return sharpness * exposure * size;
+        }
+    }
+
+    private static double squaredDistance(float[] a, float[] b) {
+        double sum = 0;
+        for (int i = 0; i < a.length; i++) {
+            double d = a[i] - b[i];
+            sum += d * d;
+        }
+        return sum;
+    }
+}
@@ -0,0 +1,355 @@
+import org.opencv.core.Mat;
+import org.opencv.videoio.VideoCapture;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+
+/**
+ * プロセス全体で共有するカメラ。デバイスごとに1本の取り込みスレッドが
+ * grab/retrieveで事前確保したMatのリングへ書き込み続け、利用側は最新フレームをコピーするだけで済む。
+ * 参照カウントで複数の画面から同じデバイスを使え、最後の利用者が離れてもしばらくは開いたままにするので、
+ * ログイン・顔登録・画像認識の画面を切り替えてもデバイスを開き直さない。
+ *
+ *   CameraBroker camera = CameraBroker.acquire(0);
+ *   long seq = camera.latestFrame(frame); // 待たずに最新フレームをコピー（まだなければ0）
+ *   ...
+ *   camera.release();
+ */
+public class CameraBroker {
+    private static final Log LOG = Log.get("CameraBroker");
+    private static final int RING_SIZE = 4; // 書き込み中1 + 最新1 + 読み出し中の分
+    private static final long IDLE_CLOSE_MS = Long.getLong("camera.idleCloseMs", 5000); // 利用者がいなくなってから閉じるまで
+    private static final int MAX_FAILURES = 50; // 連続で取り込みに失敗したらデバイスを閉じる
+    private static final Metrics.Histogram READ_TIME = Metrics.histogram("CameraBroker.read"); // grab+retrieveの時間
+    private static final Metrics.Counter DROPPED = Metrics.counter("CameraBroker.droppedFrames"); // 誰もコピーしないうちに次が来たフレーム
+    private static final Metrics.Counter FAILURES = Metrics.counter("CameraBroker.readFailures");
+
+    private static final Map<Integer, CameraBroker> DEVICES = new HashMap<>();
+    private static final ScheduledExecutorService CLOSER = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "camera-closer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private final int device;
+    private final VideoCapture capture;
+    private final Mat[] ring = new Mat[RING_SIZE]; // 事前確保したフレーム（取り込みスレッドが使い回す）
+    private final int[] pins = new int[RING_SIZE]; // スロットごとのコピー中の利用者数
+    private boolean captureExited = true; // 取り込みスレッドが終わった（デバイスはそのスレッドが閉じる）
+    private boolean ringReleaseRequested; // 利用者がいなくなったのでリングを解放してよい
+    private boolean ringReleased;
+    private int latest = -1; // 最新フレームのスロット
+    private long sequence; // 最新フレームの通し番号（1から）
+    private boolean latestCopied; // 最新フレームを誰かがコピーしたか
+    private boolean running;
+    private boolean detached; // 取り込みが止まったため共有の表から外した（最後の利用者が離れたらすぐ解放する）
+    private int references;
+    private ScheduledFuture<?> pendingClose;
+    private Thread captureThread;
+    private long fpsWindowStart = System.nanoTime(); // 取り込みFPSの計測区間
+    private int fpsWindowFrames;
+    private double capturedFps;
+
+    private CameraBroker(int device) {
+        this.device = device;
+        this.capture = new VideoCapture(device);
+        for (int i = 0; i < RING_SIZE; i++) {
+            ring[i] = new Mat();
+        }
+    }
+
+    // acquire: デバイスを共有して使い始める（開いていなければ開いて取り込みを始める）
+    public static CameraBroker acquire(int device) {
+        synchronized (DEVICES) {
+            CameraBroker broker = DEVICES.get(device);
+            if (broker != null && !broker.isRunning()) {
+                // 取り込みが止まったデバイスは開き直す。新しいVideoCaptureを開く前に古い方を閉じるが、
+                // リングのMatはまだ参照している利用者がいれば、その全員が離れてから解放する（古い利用者にはフレームが来なくなる）
+                DEVICES.remove(device);
+                broker.detach();
+                broker = null;
+            }
+            if (broker == null) {
+                broker = new CameraBroker(device);
+                DEVICES.put(device, broker);
+                broker.start();
+            }
+            broker.retain();
+            return broker;
+        }
+    }
+
+    private synchronized void retain() {
+        references++;
+        if (pendingClose != null) {
+            pendingClose.cancel(false); // 閉じる前に次の利用者が来た
+            pendingClose = null;
+        }
+    }
+
+    // release: 利用をやめる。最後の利用者ならIDLE_CLOSE_MS後にデバイスを閉じる
+    public void release() {
+        synchronized (DEVICES) {
+            synchronized (this) {
+                if (references == 0) {
+                    return;
+                }
+                references--;
+                if (references > 0) {
+                    return;
+                }
+                if (!detached) {
+                    if (pendingClose == null) {
+                        pendingClose = CLOSER.schedule(this::closeIfIdle, IDLE_CLOSE_MS, TimeUnit.MILLISECONDS);
+                    }
+                    return;
+                }
+            }
+            freeRing(); // デバイスは開き直し済みなので、残っていたリングをすぐ解放する
+        }
+    }
+
+    // closeIfIdle: 利用者が戻ってこなければデバイスを閉じる。取り込みスレッドが閉じ終わるまで（最大1秒）DEVICESを持ち、
+    // 同じデバイスを開くacquireが古いVideoCaptureとなるべく重ならないようにする
+    private void closeIfIdle() {
+        synchronized (DEVICES) {
+            synchronized (this) {
+                if (references > 0) {
+                    return;
+                }
+                pendingClose = null;
+            }
+            if (DEVICES.get(device) == this) {
+                DEVICES.remove(device);
+            }
+            close();
+        }
+    }
+
+    // detach: 共有の表から外されたときに呼ぶ（DEVICESのロック内）。取り込みを止め、リングは利用者がいなければ解放する
+    private void detach() {
+        boolean idle;
+        synchronized (this) {
+            detached = true;
+            idle = references == 0;
+        }
+        if (idle) {
+            close();
+        } else {
+            stopCapture();
+        }
+    }
+
+    private void start() {
+        if (!capture.isOpened()) {
+            LOG.error("カメラ{}を開けませんでした", device);
+            return;
+        }
+        LOG.info("カメラ{}を開きました", device);
+        running = true;
+        captureExited = false;
+        captureThread = new Thread(this::captureLoop, "camera-" + device);
+        captureThread.setDaemon(true);
+        captureThread.start();
+    }
+
+    // captureLoop: 空いているスロットへ取り込み、最新として公開し続ける。
+    // VideoCaptureはスレッドセーフではないので、止まるときにデバイスを閉じるのもこのスレッドが行う
+    private void captureLoop() {
+        int failures = 0;
+        while (isRunning()) {
+            int slot = freeSlot();
+            if (slot < 0) {
+                break;
+            }
+            long start = System.nanoTime();
+            boolean read = capture.grab() && capture.retrieve(ring[slot]) && !ring[slot].empty();
+            READ_TIME.recordSince(start);
+            if (read) {
+                failures = 0;
+                publish(slot);
+            } else {
+                FAILURES.increment();
+                if (++failures >= MAX_FAILURES) {
+                    LOG.error("カメラ{}からフレームを取得できません", device);
+                    break;
+                }
+            }
+        }
+        synchronized (this) {
+            running = false;
+            notifyAll();
+        }
+        capture.release();
+        synchronized (this) {
+            captureExited = true;
+            releaseRingIfUnused(); // 閉じる途中で利用者が離れていれば、ここでリングも解放する
+            notifyAll();
+        }
+    }
+
+    // freeSlot: 最新でも読み出し中でもないスロットを選ぶ（全部使用中なら空くまで待つ）
+    private synchronized int freeSlot() {
+        while (running) {
+            for (int i = 1; i <= RING_SIZE; i++) {
+                int slot = (Math.max(latest, 0) + i) % RING_SIZE;
+                if (slot != latest && pins[slot] == 0) {
+                    return slot;
+                }
+            }
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                return -1;
+            }
+        }
+        return -1;
+    }
+
+    private synchronized void publish(int slot) {
+        if (!running) {
+            return; // 止める指示の後に読めたフレームは公開しない
+        }
+        if (latest >= 0 && !latestCopied) {
+            DROPPED.increment();
+        }
+        latest = slot;
+        latestCopied = false;
+        sequence++;
+        fpsWindowFrames++;
+        long now = System.nanoTime();
+        if (now - fpsWindowStart >= 1_000_000_000L) {
+            capturedFps = fpsWindowFrames * 1e9 / (now - fpsWindowStart);
+            fpsWindowStart = now;
+            fpsWindowFrames = 0;
+        }
+        notifyAll();
+    }
+
+    // latestFrame: 最新フレームをdstへコピーして通し番号を返す（待たない。まだフレームがなければ0）
+    public long latestFrame(Mat dst) {
+        int slot;
+        long seq;
+        synchronized (this) {
+            if (latest < 0) {
+                return 0;
+            }
+            slot = latest;
+            seq = sequence;
+            latestCopied = true;
+            pins[slot]++;
+        }
+        try {
+            ring[slot].copyTo(dst); // 取り込みスレッドはピン留め中のスロットに書き込まない
+        } finally {
+            synchronized (this) {
+                pins[slot]--;
+                releaseRingIfUnused();
+                notifyAll();
+            }
+        }
+        return seq;
+    }
+
+    // awaitFrame: afterより新しいフレームが来るまで最大timeoutMs待ってコピーする（来なければ0）
+    public long awaitFrame(Mat dst, long after, long timeoutMs) {
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(timeoutMs);
+        synchronized (this) {
+            while (sequence <= after && running) {
+                long remaining = deadline - System.nanoTime();
+                if (remaining <= 0) {
+                    return 0;
+                }
+                try {
+                    TimeUnit.NANOSECONDS.timedWait(this, remaining);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                    return 0;
+                }
+            }
+            if (sequence <= after) {
+                return 0; // デバイスが閉じられた
+            }
+        }
+        return latestFrame(dst);
+    }
+
+    public synchronized boolean isRunning() {
+        return running;
+    }
+
+    private boolean hasPins() {
+        for (int pin : pins) {
+            if (pin > 0) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    // getCapturedFps: 直近1秒間の取り込みフレームレート
+    public synchronized double getCapturedFps() {
+        return capturedFps;
+    }
+
+    // close: 取り込みを止めてデバイスとリングのMatを解放する（DEVICESのロック内で呼ぶ。
+    // 取り込みスレッドが読み取り中なら、実際の解放はそのスレッドが終わるときに行われる）
+    private void close() {
+        stopCapture();
+        freeRing();
+        LOG.info("カメラ{}を閉じました", device);
+    }
+
+    // stopCapture: 取り込みスレッドを止める（デバイスはスレッドが終わるときに閉じる。リングのMatはそのまま）。
+    // 同じデバイスを開き直す前に閉じ終わるよう少し待つが、読み取り中で戻らなければ待たずに進み、
+    // デバイスにもリングにも触らない（取り込みスレッドが読み取りから戻った後に自分で解放する）
+    private void stopCapture() {
+        Thread thread;
+        synchronized (this) {
+            running = false;
+            thread = captureThread;
+            notifyAll();
+        }
+        if (thread == null) {
+            capture.release(); // 開けなかったので取り込みスレッドはない
+        } else {
+            try {
+                thread.join(1000);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if (thread.isAlive()) {
+                LOG.warn("カメラ{}の読み取りが終わりません。終わりしだいデバイスとフレームを解放します", device);
+            }
+        }
+        synchronized (this) {
+            if (pendingClose != null) {
+                pendingClose.cancel(false);
+                pendingClose = null;
+            }
+            latest = -1; // 以降のlatestFrameは0を返す
+        }
+    }
+
+    // freeRing: リングのMatを解放する。取り込みスレッドがまだ書き込み中か、コピー中の利用者がいれば、
+    // 最後に終わった側（取り込みスレッドの終了かlatestFrameのコピー完了）が解放する
+    private synchronized void freeRing() {
+        ringReleaseRequested = true;
+        releaseRingIfUnused();
+    }
+
+    // releaseRingIfUnused: 解放を求められていて、誰もリングに触っていなければ解放する（ロック内で呼ぶ）
+    private void releaseRingIfUnused() {
+        if (!ringReleaseRequested || ringReleased || !captureExited || hasPins()) {
+            return;
+        }
+        for (Mat mat : ring) {
+            mat.release();
+        }
+        ringReleased = true;
+    }
+}
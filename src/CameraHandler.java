@@ -1,64 +1,84 @@
 import org.opencv.core.Mat;
-import org.opencv.videoio.VideoCapture;
 import java.awt.image.BufferedImage;
-import java.awt.image.DataBufferByte;
 
 
 public class CameraHandler {
-    private VideoCapture camera; // OpenCVのカメラオブジェクト
-    private boolean isRunning; // カメラが動作中かの判定
+    private static final Log LOG = Log.get("CameraHandler");
+    private static final long FIRST_FRAME_TIMEOUT_MS = 2000; // 開いた直後に最初のフレームを待つ時間
+    private static final long RETRY_INTERVAL_MS = 2000; // 開けなかった・止まったカメラを開き直す間隔
 
-    // コンストラクタ: カメラを初期化
+    private CameraBroker camera; // 共有カメラ（初めて撮影するときに取得する）
+    private boolean released; // release済みか
+    private long lastAttempt; // 最後にカメラを取得した時刻（開き直しの間隔を空けるため）
+    private final Mat frame = new Mat(); // コピー先のフレーム（使い回す）
+
+    // コンストラクタ: カメラはまだ開かない（撮影ボタンが押されるまで使わないため）
     public CameraHandler() {
-        camera = new VideoCapture(0); // デフォルトカメラ（インデックス0）
-        isRunning = camera.isOpened();
-        if (isRunning) {
-            System.out.println("カメラが正常に起動しました。");
-        } else {
-            System.err.println("カメラの起動に失敗しました。");
-        }
     }
 
-    // captureImage: カメラから1フレームを取得しBufferedImageに変換
-    public BufferedImage captureImage() {
-        if (!isRunning) {
-            System.err.println("カメラが利用できない状態です。");
-            return null;
+    // camera: 共有カメラを取得する（取り込みは別スレッドで続き、以降はバッファを見るだけ）。
+    // 開けなかったか取り込みが止まったカメラは、RETRY_INTERVAL_MSごとに取得し直す
+    private CameraBroker camera() {
+        long now = System.currentTimeMillis();
+        if (camera != null && !camera.isRunning() && now - lastAttempt >= RETRY_INTERVAL_MS) {
+            camera.release();
+            camera = null;
         }
-        
-        Mat frame = new Mat();
-        boolean success = camera.read(frame);
-        if (success && !frame.empty()) {
-            System.out.println("フレームを正常に取得しました: " + frame.width() + "x" + frame.height());
-            return matToBufferedImage(frame);
-        } else {
-            System.err.println("フレームの取得に失敗しました。");
-            return null;
+        if (camera == null && !released) {
+            lastAttempt = now;
+            camera = CameraBroker.acquire(0); // デフォルトカメラ（インデックス0）
+            if (camera.isRunning()) {
+                LOG.info("カメラが正常に起動しました。");
+            } else {
+                LOG.error("カメラの起動に失敗しました。");
+            }
         }
+        return camera;
     }
 
-    // matToBufferedImage: OpenCVのMatをBufferedImageに変換
-    private BufferedImage matToBufferedImage(Mat mat) {
-        int type = BufferedImage.TYPE_3BYTE_BGR;
-        byte[] b = new byte[mat.cols() * mat.rows() * mat.channels()];
-        mat.get(0, 0, b);
-        BufferedImage image = new BufferedImage(mat.cols(), mat.rows(), type);
-        byte[] targetPixels = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
-        System.arraycopy(b, 0, targetPixels, 0, b.length);
+    // captureImage: カメラの最新フレームを取得しBufferedImageに変換
+    public synchronized BufferedImage captureImage() {
+        Mat mat = captureMat();
+        if (mat == null) {
+            return null;
+        }
+        BufferedImage image = MatImageBridge.toNewBufferedImage(mat); // 呼び出し側が保持するため新しい画像に変換
+        mat.release();
         return image;
     }
 
-    // release: カメラリソースを解放
-    public void release() {
-        if (isRunning && camera != null) {
+    // captureMat: カメラの最新フレームを、呼び出し側が保持できるMatとして返す（解析ワーカーから呼ぶ）
+    public synchronized Mat captureMat() {
+        if (!isRunning()) {
+            LOG.error("カメラが利用できない状態です。");
+            return null;
+        }
+        // 取り込みスレッドが書いた最新フレームをコピーするだけ。開いた直後でまだなければ最初の1枚を待つ
+        long seq = camera.latestFrame(frame);
+        if (seq == 0) {
+            seq = camera.awaitFrame(frame, 0, FIRST_FRAME_TIMEOUT_MS);
+        }
+        if (seq > 0 && !frame.empty()) {
+            LOG.debug("フレームを正常に取得しました: {}x{}", frame.width(), frame.height());
+            return frame.clone();
+        }
+        LOG.error("フレームの取得に失敗しました。");
+        return null;
+    }
+
+    // release: カメラの利用をやめる（デバイスは共有カメラが少し待ってから閉じる）
+    public synchronized void release() {
+        if (camera != null) {
             camera.release();
-            isRunning = false;
-            System.out.println("カメラを解放しました。");
+            camera = null;
+            LOG.info("カメラを解放しました。");
         }
+        released = true;
     }
 
-    // isRunning: カメラの動作状態を返す
-    public boolean isRunning() {
-        return isRunning;
+    // isRunning: カメラの動作状態を返す（初回はここでカメラを開く）
+    public synchronized boolean isRunning() {
+        CameraBroker broker = camera();
+        return broker != null && broker.isRunning();
     }
-}
\ No newline at end of file
+}
@@ -6,6 +6,8 @@ import java.io.IOException;
 
 
 public class FaceApp extends JFrame {
+    private static final long serialVersionUID = 1L;
+    private static final Log LOG = Log.get("FaceApp");
     private JLabel titleLabel; // タイトル表示用のラベル
     private RoundedButton loginButton; // ログインボタン
     private RoundedButton registerButton; // 顔登録ボタン
@@ -35,12 +37,12 @@ public class FaceApp extends JFrame {
                 pb.directory(new File("src")); // 実行ディレクトリをsrcに変更
                 Process process = pb.start();
                 process.waitFor(); // スクリプトの終了を待つ
-                System.out.println("make_audio.pyをsrcディレクトリで実行しました。");
+                LOG.info("make_audio.pyをsrcディレクトリで実行しました。");
             } catch (IOException | InterruptedException e) {
-                System.err.println("make_audio.pyの実行に失敗しました: " + e.getMessage());
+                LOG.error("make_audio.pyの実行に失敗しました: {}", e.getMessage());
             }
         } else {
-            System.out.println("login_success.wavが既に存在するため、make_audio.pyは実行しません。");
+            LOG.info("login_success.wavが既に存在するため、make_audio.pyは実行しません。");
         }
 
         // 背景をグラデーションに設定
@@ -172,6 +174,8 @@ public class FaceApp extends JFrame {
 
     // RoundedButton: カスタムボタンで角丸デザインを実現
     class RoundedButton extends JButton {
+        private static final long serialVersionUID = 1L;
+
         public RoundedButton(String text) {
             super(text);
             setOpaque(false); // デフォルト背景を透明に
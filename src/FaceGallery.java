@@ -0,0 +1,313 @@
+import org.opencv.core.*;
+import org.opencv.imgcodecs.Imgcodecs;
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+
+/**
+ * 登録済みの顔をユーザーごとにメモリに保持するギャラリー。
+ * face_data/<ユーザーID>/ のテンプレート（.tpl）や顔画像を1度だけ読み込んでFaceTemplateの形式のベクトルにし、
+ * 全ユーザーのテンプレートを1本の連続したfloat配列（ユーザー順に並べた行列）としてネイティブ側に積んでおく。
+ * 照合は撮影した顔とその左右反転を同じ形式に変換し、行列積1回で全テンプレートとのL2距離をまとめて求めてから、
+ * ユーザーごとの最小距離で上位k人を選ぶ。
+ * face_data/ 直下の画像（以前の1人分の形式）はユーザー「default」として扱う。
+ *
+ * ユーザーディレクトリに .current があれば、それが指す版のディレクトリだけを読む（TemplateWriter を参照）。
+ *
+ * ディレクトリの確認は一定間隔ごとで、直下のファイルの状態とユーザーディレクトリの更新日時・公開中の版だけを見る。
+ * 既存のファイルを上書きしてもディレクトリの更新日時は変わらないので、同じプロセスで登録したときはinvalidateを呼ぶこと。
+ */
+public class FaceGallery {
+    private static final Log LOG = Log.get("FaceGallery");
+    public static final String LEGACY_USER = "default"; // face_data/ 直下の画像のユーザーID
+    private static final long REFRESH_INTERVAL_MS = 1000; // ディレクトリの変化を確認する間隔
+
+    private static final Map<String, FaceGallery> SHARED = new HashMap<>();
+
+    private final File directory; // nullならファイルを読まないギャラリー（ベンチマーク用）
+    private final FaceTemplate mode; // テンプレートの形式
+    private final int dimensions; // テンプレートの長さ
+    private Mat templates = new Mat(); // テンプレート数 × dimensions（CV_32F、ユーザー順）
+    private float[] squaredNorms = new float[0]; // テンプレートごとの二乗ノルム
+    private String[] userIds = new String[0];
+    private int[] userStarts = {0}; // ユーザーiのテンプレートは userStarts[i] 〜 userStarts[i + 1] - 1 行目
+    private String signature; // 前回読み込んだときのディレクトリの状態
+    private long lastCheck; // 前回ディレクトリを確認した時刻
+
+    // Match: 識別結果の1人分（distanceは小さいほど似ている）
+    public static final class Match {
+        private final String userId;
+        private final double distance;
+
+        Match(String userId, double distance) {
+            this.userId = userId;
+            this.distance = distance;
+        }
+
+        public String getUserId() {
+            return userId;
+        }
+
+        public double getDistance() {
+            return distance;
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "%s(%.3f)", userId, distance);
+        }
+    }
+
+    private FaceGallery(File directory, FaceTemplate mode) {
+        this.directory = directory;
+        this.mode = mode;
+        this.dimensions = mode.getDimensions();
+    }
+
+    // shared: ディレクトリごとに1つのギャラリーを共有する
+    public static FaceGallery shared(String path) {
+        synchronized (SHARED) {
+            return SHARED.computeIfAbsent(new File(path).getAbsolutePath(), key -> new FaceGallery(new File(key), FaceTemplate.fromSystemProperties()));
+        }
+    }
+
+    // inMemory: ファイルを読まず、与えたテンプレート（ユーザー順・1件modeの長さ）でギャラリーを作る
+    static FaceGallery inMemory(FaceTemplate mode, String[] userIds, int[] userStarts, float[] data) {
+        FaceGallery gallery = new FaceGallery(null, mode);
+        gallery.install(userIds, userStarts, data);
+        return gallery;
+    }
+
+    public FaceTemplate getMode() {
+        return mode;
+    }
+
+    // size: 登録済みテンプレートの数
+    public synchronized int size() {
+        refreshIfChanged();
+        return squaredNorms.length;
+    }
+
+    // userCount: 登録済みユーザーの数
+    public synchronized int userCount() {
+        refreshIfChanged();
+        return userIds.length;
+    }
+
+    // invalidate: 次の照合で必ず読み直す（登録直後に呼ぶ）
+    public synchronized void invalidate() {
+        signature = null;
+    }
+
+    // bestDistance: 撮影した顔と最も近いテンプレートとの距離。登録がなければ無限大
+    public double bestDistance(Mat face) {
+        List<Match> best = identify(face, 1);
+        return best.isEmpty() ? Double.POSITIVE_INFINITY : best.get(0).getDistance();
+    }
+
+    // identify: 撮影した顔に近い順に上位k人を返す（距離の尺度はFaceTemplate.distance）
+    public synchronized List<Match> identify(Mat face, int k) {
+        refreshIfChanged();
+        int count = squaredNorms.length;
+        if (count == 0 || face.empty() || k <= 0) {
+            return new ArrayList<>();
+        }
+        // 撮影した顔と左右反転した顔の2本を問い合わせにする（反転した登録画像を持たなくて済む）
+        float[] query = new float[2 * dimensions];
+        float[] queryNorms = new float[2];
+        try (MatArena arena = new MatArena()) {
+            Mat flipped = arena.acquire(face.rows(), face.cols(), face.type());
+            Core.flip(face, flipped, 1);
+            System.arraycopy(mode.extract(face), 0, query, 0, dimensions);
+            System.arraycopy(mode.extract(flipped), 0, query, dimensions, dimensions);
+        }
+        for (int q = 0; q < 2; q++) {
+            for (int d = q * dimensions, end = d + dimensions; d < end; d++) {
+                queryNorms[q] += query[d] * query[d];
+            }
+        }
+        float[] dot = new float[count * 2]; // テンプレートごとに [元の顔, 反転した顔] の内積
+        try (MatArena arena = new MatArena()) {
+            Mat queries = arena.acquire(2, dimensions, CvType.CV_32FC1);
+            queries.put(0, 0, query);
+
+            // |t - q|^2 = |t|^2 + |q|^2 - 2 t・q を、全テンプレート分の内積（行列積1回）から求める
+            Mat dots = arena.mat();
+            Core.gemm(templates, queries, 1.0, arena.mat(), 0.0, dots, Core.GEMM_2_T);
+            dots.get(0, 0, dot);
+        }
+
+        // ユーザーごとの最小距離を求め、上位k人を距離の昇順で保持する
+        int limit = Math.min(k, userIds.length);
+        int[] topUsers = new int[limit];
+        float[] topDistances = new float[limit];
+        int filled = 0;
+        for (int u = 0; u < userIds.length; u++) {
+            float best = Float.POSITIVE_INFINITY;
+            for (int i = userStarts[u]; i < userStarts[u + 1]; i++) {
+                best = Math.min(best, squaredNorms[i] + Math.min(queryNorms[0] - 2 * dot[2 * i], queryNorms[1] - 2 * dot[2 * i + 1]));
+            }
+            if (filled == limit && best >= topDistances[limit - 1]) {
+                continue;
+            }
+            int pos = filled < limit ? filled++ : limit - 1;
+            while (pos > 0 && topDistances[pos - 1] > best) {
+                topUsers[pos] = topUsers[pos - 1];
+                topDistances[pos] = topDistances[pos - 1];
+                pos--;
+            }
+            topUsers[pos] = u;
+            topDistances[pos] = best;
+        }
+
+        List<Match> matches = new ArrayList<>(filled);
+        for (int i = 0; i < filled; i++) {
+            matches.add(new Match(userIds[topUsers[i]], mode.distance(topDistances[i], face.total())));
+        }
+        return matches;
+    }
+
+    // release: テンプレートの行列を解放する（inMemoryで作ったギャラリーの後始末）
+    public synchronized void release() {
+        install(new String[0], new int[] {0}, new float[0]);
+    }
+
+    // refreshIfChanged: 一定間隔でディレクトリを確認し、変わっていればテンプレートを読み直す
+    private void refreshIfChanged() {
+        if (directory == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        if (signature != null && now - lastCheck < REFRESH_INTERVAL_MS) {
+            return;
+        }
+        lastCheck = now;
+        if (signature == null) {
+            TemplateWriter.recoverStranded(directory); // 以前の書き込み方式で途中まで進んだ登録を片付ける
+        }
+        File[] entries = directory.listFiles(file -> !file.getName().startsWith(".")); // 書き込み途中の一時ディレクトリは読まない
+        if (entries == null) {
+            entries = new File[0];
+        }
+        Arrays.sort(entries);
+        String current = signatureOf(entries);
+        if (!current.equals(signature)) {
+            load(entries);
+            signature = current;
+        }
+    }
+
+    // signatureOf: 直下のファイルは名前・サイズ・更新日時、ユーザーディレクトリは名前・更新日時・公開中の版で状態を表す
+    private static String signatureOf(File[] entries) {
+        StringBuilder sb = new StringBuilder();
+        for (File entry : entries) {
+            sb.append(entry.getName()).append(':');
+            if (entry.isFile()) {
+                sb.append(entry.length()).append(':');
+            } else {
+                sb.append(TemplateWriter.currentVersion(entry.toPath())).append(':');
+            }
+            sb.append(entry.lastModified()).append('/');
+        }
+        return sb.toString();
+    }
+
+    // load: 全ユーザーのテンプレートを読み込み、ユーザー順に1本の配列へ積み直す
+    private void load(File[] entries) {
+        List<String> users = new ArrayList<>();
+        List<Integer> starts = new ArrayList<>();
+        List<float[]> rows = new ArrayList<>();
+        List<File> legacy = new ArrayList<>();
+        for (File entry : entries) {
+            if (entry.isFile()) {
+                legacy.add(entry);
+            }
+        }
+        if (!legacy.isEmpty()) {
+            addUser(LEGACY_USER, legacy.toArray(new File[0]), users, starts, rows);
+        }
+        for (File entry : entries) {
+            if (entry.isDirectory()) {
+                File[] files = TemplateWriter.templateDirectory(entry)
+                        .listFiles(file -> file.isFile() && !file.getName().startsWith("."));
+                if (files != null) {
+                    Arrays.sort(files);
+                    addUser(entry.getName(), files, users, starts, rows);
+                }
+            }
+        }
+        starts.add(rows.size());
+
+        float[] data = new float[rows.size() * dimensions];
+        for (int i = 0; i < rows.size(); i++) {
+            System.arraycopy(rows.get(i), 0, data, i * dimensions, dimensions);
+        }
+        int[] userStarts = new int[starts.size()];
+        for (int i = 0; i < userStarts.length; i++) {
+            userStarts[i] = starts.get(i);
+        }
+        install(users.toArray(new String[0]), userStarts, data);
+        LOG.info("顔データを読み込みました（{}人, {}件, {}）", users.size(), rows.size(), mode);
+    }
+
+    // addUser: 1人分のテンプレートを読み込む（読めるものが1件もなければ登録しない）
+    private void addUser(String userId, File[] files, List<String> users, List<Integer> starts, List<float[]> rows) {
+        int start = rows.size();
+        for (File file : files) {
+            float[] row = readTemplate(file);
+            if (row == null) {
+                LOG.warn("顔データの読み込みに失敗しました: {}", file.getPath());
+                continue;
+            }
+            rows.add(row);
+        }
+        if (rows.size() > start) {
+            users.add(userId);
+            starts.add(start);
+        }
+    }
+
+    // readTemplate: .tplはそのまま読み、画像なら読み込んでテンプレートに変換する（別の形式の.tplや読めないファイルはnull）
+    private float[] readTemplate(File file) {
+        if (file.getName().endsWith(FaceTemplate.FILE_SUFFIX)) {
+            try {
+                return mode.read(file);
+            } catch (IOException e) {
+                return null;
+            }
+        }
+        try (MatArena arena = new MatArena()) {
+            Mat image = arena.track(Imgcodecs.imread(file.getAbsolutePath(), Imgcodecs.IMREAD_GRAYSCALE));
+            return image.empty() ? null : mode.extract(image);
+        }
+    }
+
+    // install: 連続したテンプレート配列をネイティブの行列へ1回でコピーし、二乗ノルムを前計算する
+    private void install(String[] userIds, int[] userStarts, float[] data) {
+        int count = data.length / dimensions;
+        Mat stacked = new Mat();
+        if (count > 0) {
+            stacked.create(count, dimensions, CvType.CV_32FC1);
+            stacked.put(0, 0, data);
+        }
+        float[] norms = new float[count];
+        for (int i = 0; i < count; i++) {
+            double norm = 0;
+            for (int d = i * dimensions, end = d + dimensions; d < end; d++) {
+                norm += (double) data[d] * data[d];
+            }
+            norms[i] = (float) norm;
+        }
+        templates.release();
+        templates = stacked;
+        squaredNorms = norms;
+        this.userIds = userIds;
+        this.userStarts = userStarts;
+    }
+}
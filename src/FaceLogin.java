@@ -1,21 +1,9 @@
 // OpenCV（画像処理ライブラリ）のコア機能を提供するクラス
 import org.opencv.core.*;
  
-// 画像の読み込み・保存を行うためのクラス
-import org.opencv.imgcodecs.Imgcodecs;
- 
-// 画像の前処理（フィルタリングやヒストグラム均等化など）を行うためのクラス
-import org.opencv.imgproc.Imgproc;
- 
 // Haar Cascade や LBP Cascade を利用した顔検出を行うためのクラス
 import org.opencv.objdetect.CascadeClassifier;
  
-// カメラの映像を取得するためのクラス（Webカメラなどのデバイス操作）
-import org.opencv.videoio.VideoCapture;
- 
-// 画像上の点（座標）を表現するクラス（矩形の描画などに使用）
-import org.opencv.core.Point;
- 
  
 // ==========================
 // Java標準ライブラリ
@@ -30,20 +18,23 @@ import javax.swing.*;
 // Javaのグラフィックス描画をサポートするクラス（カメラ映像の描画などに使用）
 import java.awt.*;
  
-// BufferedImage（画像データの処理）を扱うためのクラス
-import java.awt.image.BufferedImage;
- 
 // ファイルの読み書きを行うためのクラス（画像データの保存や音声ファイルの読み込み）
 import java.io.File;
  
 // 音声ファイルの読み込みやエラーハンドリングを行うための例外処理
 import java.io.IOException;
  
-// データの検証やNullチェックなどに利用するユーティリティクラス
-import java.util.Objects;
+// 顔識別の候補一覧を扱うためのクラス
+import java.util.List;
  
  
-public class FaceLogin extends JPanel {
+public class FaceLogin extends PreviewPanel {
+    private static final long serialVersionUID = 1L;
+
+    // **コンポーネントごとのロガー（出力は専用スレッドが行う）**
+    private static final Log LOG = Log.get("FaceLogin");
+    private static final Log FRAME_LOG = LOG.every(1000); // **フレームごとのメッセージは1秒に1回まで**
+    private static final Metrics.Histogram MATCH_TIME = Metrics.histogram("FaceLogin.isFaceMatched"); // **顔1件の照合時間**
  
     // **OpenCVライブラリのロード**
     static {
@@ -56,40 +47,28 @@ public class FaceLogin extends JPanel {
     // **登録済みの顔データを格納するディレクトリ**
     private static final String FACE_DATA_PATH = "face_data/";
  
+    // **ログに出す候補の人数（認証の閾値はテンプレートの形式ごとに FaceTemplate が持つ）**
+    private static final int TOP_K = 3;
+ 
     // **ログイン成功時に再生する音声ファイルのパス**
     private static final String SOUND_FILE_PATH = "/resources/login_success.wav";
  
-    // **カメラの映像を描画するためのバッファ**
-    private BufferedImage currentFrame;
- 
-    // **画面の横幅と縦幅**
-    private int screenWidth, screenHeight;
- 
-    // **コンストラクタ（画面サイズを受け取る）**
+    // **コンストラクタ（画面サイズを受け取る。カメラの映像はPreviewPanelが画面に合わせて縮小して描く）**
     public FaceLogin(int screenWidth, int screenHeight) {
-        this.screenWidth = screenWidth;
-        this.screenHeight = screenHeight;
+        setPreferredSize(new Dimension(screenWidth, screenHeight));
     }
 
     // **顔認証処理を開始するメソッド**
     public void start() {
-        System.out.println("FaceLogin: プログラム開始");
+        LOG.info("プログラム開始");
  
         // **カスケード分類器（顔検出用）を読み込む**
         CascadeClassifier faceDetector = new CascadeClassifier(FACE_CASCADE_PATH);
         if (faceDetector.empty()) {
-            System.err.println("FaceLogin: カスケード分類器の読み込みに失敗しました");
-            return;
-        }
-        System.out.println("FaceLogin: カスケード分類器の読み込み成功");
- 
-        // **カメラを開く**
-        VideoCapture camera = new VideoCapture(0);
-        if (!camera.isOpened()) {
-            System.err.println("FaceLogin: カメラを開けませんでした");
+            LOG.error("カスケード分類器の読み込みに失敗しました");
             return;
         }
-        System.out.println("FaceLogin: カメラが正常に開きました");
+        LOG.info("カスケード分類器の読み込み成功");
  
         // **全画面表示のウィンドウ（JFrame）を作成**
         JFrame frame = new JFrame("Face Login");
@@ -97,168 +76,121 @@ public class FaceLogin extends JPanel {
         frame.setExtendedState(JFrame.MAXIMIZED_BOTH); // **全画面モード**
         frame.setUndecorated(true); // **タイトルバーを非表示**
         frame.setContentPane(this);
-        frame.setVisible(true);
  
-        Mat frameMat = new Mat(); // **カメラフレームを格納するMatオブジェクト**
-        int faceNotFoundCount = 0; // **検出失敗のカウント**
         final int MAX_ATTEMPTS = 100; // **最大試行回数（失敗時に終了する）**
  
-        // **カメラの映像を取得しながら処理を行うループ**
-        while (camera.read(frameMat)) {
-            System.out.println("FaceLogin: フレーム取得成功");
- 
-            // **画像をグレースケールに変換（顔検出の精度向上）**
-            Imgproc.cvtColor(frameMat, frameMat, Imgproc.COLOR_BGR2RGB);
-            Mat gray = new Mat();
-            Imgproc.cvtColor(frameMat, gray, Imgproc.COLOR_RGB2GRAY);
- 
-            // **コントラスト補正 & ノイズ除去**
-            Imgproc.equalizeHist(gray, gray);
-            Imgproc.GaussianBlur(gray, gray, new Size(3, 3), 0);
- 
-            // **顔を検出**
-            MatOfRect faces = new MatOfRect();
-            faceDetector.detectMultiScale(gray, faces);
- 
-            // **顔が見つからない場合の処理**
-            if (faces.toArray().length == 0) {
-                faceNotFoundCount++;
-                System.out.println("FaceLogin: 顔が検出されませんでした");
-            } else {
-                faceNotFoundCount = 0;
-                System.out.println("FaceLogin: 顔を検出！");
-            }
- 
-            // **検出された顔の処理**
-            for (Rect rect : faces.toArray()) {
-                // **検出した顔の周囲に緑の四角を描画**
-                Imgproc.rectangle(frameMat, new Point(rect.x, rect.y),
-                        new Point(rect.x + rect.width, rect.y + rect.height),
-                        new Scalar(0, 255, 0), 3);
- 
-                // **顔認証（登録済みデータと比較）**
-                if (isFaceMatched(gray.submat(rect))) {
-                    System.out.println("FaceLogin: 顔認証成功！");
- 
-                    // **音声を再生**
-                    playSound(SOUND_FILE_PATH);
- 
-                    // **ログイン成功ダイアログを表示**
-                    JOptionPane.showMessageDialog(frame, "ログイン成功！", "成功", JOptionPane.INFORMATION_MESSAGE);
- 
-                    // **カメラを停止し、ウィンドウを閉じる**
-                    camera.release();
-                    frame.dispose();
- 
-                    System.out.println("FaceLogin: 画像認識アプリを起動します...");
-                   
-                    // **画像認識アプリを起動**
-                    SwingUtilities.invokeLater(() -> new ImageRecognitionApp());
-                    return;
+        // **顔処理パイプライン（取り込み・前処理・検出・認識・描画が別スレッドで動く）の出口としてログイン処理を行う**
+        FacePipeline[] pipeline = new FacePipeline[1];
+        pipeline[0] = new FacePipeline(faceDetector, new FacePipeline.Sink() {
+            private int faceNotFoundCount = 0; // **検出失敗のカウント（認識スレッドだけが触る）**
+ 
+            @Override
+            public void onFaces(Mat gray, Mat raw, Rect[] faceRects) {
+                // **顔が見つからない場合の処理**
+                if (faceRects.length == 0) {
+                    faceNotFoundCount++;
+                    FRAME_LOG.debug("顔が検出されませんでした");
                 } else {
-                    System.out.println("FaceLogin: 顔認証に失敗しました");
+                    faceNotFoundCount = 0;
+                    FRAME_LOG.debug("顔を検出！");
                 }
-            }
- 
-            // **カメラの映像を描画**
-            setFrame(convertMatToBufferedImage(frameMat));
-            frame.repaint();
  
-            gray.release();
+                // **検出された顔の処理（顔の切り抜きは呼び出しの間だけ使う）**
+                try (MatArena arena = new MatArena()) {
+                    for (Rect rect : faceRects) {
+                        // **顔認証（登録済みの全ユーザーと比較し、最も近いユーザーを特定）**
+                        FaceGallery.Match user = identifyFace(arena.track(gray.submat(rect)));
+                        if (user != null) {
+                            LOG.info("顔認証成功！ {}", user.getUserId());
+ 
+                            // **カメラを停止する（パイプラインの全ステージを止める）**
+                            pipeline[0].stop();
+                            FaceLogin.this.release();
+ 
+                            // **音声を再生**
+                            playSound(SOUND_FILE_PATH);
+ 
+                            // **ログイン成功ダイアログを表示してウィンドウを閉じ、画像認識アプリを起動（ここは認識スレッドなので、まとめてEDTで行う）**
+                            String userId = user.getUserId();
+                            SwingUtilities.invokeLater(() -> {
+                                JOptionPane.showMessageDialog(frame, "ログイン成功！ ようこそ " + userId + " さん", "成功", JOptionPane.INFORMATION_MESSAGE);
+                                frame.dispose();
+                                LOG.info("画像認識アプリを起動します...");
+                                new ImageRecognitionApp();
+                            });
+                            return;
+                        } else {
+                            FRAME_LOG.debug("顔認証に失敗しました");
+                        }
+                    }
+                }
  
-            // **最大試行回数を超えた場合はログイン失敗**
-            if (faceNotFoundCount >= MAX_ATTEMPTS) {
-                System.out.println("FaceLogin: 認証失敗（時間切れ）");
-                JOptionPane.showMessageDialog(frame, "認証失敗！時間切れ", "失敗", JOptionPane.ERROR_MESSAGE);
-                camera.release();
-                frame.dispose();
-                return;
+                // **最大試行回数を超えた場合はログイン失敗**
+                if (faceNotFoundCount >= MAX_ATTEMPTS) {
+                    LOG.info("認証失敗（時間切れ）");
+                    pipeline[0].stop();
+                    FaceLogin.this.release();
+                    SwingUtilities.invokeLater(() -> {
+                        JOptionPane.showMessageDialog(frame, "認証失敗！時間切れ", "失敗", JOptionPane.ERROR_MESSAGE);
+                        frame.dispose();
+                    });
+                }
             }
-        }
  
-        camera.release();
-    }
- 
-    // **カメラ映像をSwingコンポーネントに描画**
-    public void setFrame(BufferedImage img) {
-        this.currentFrame = img;
-        repaint();
-    }
- 
- 
- 
-    // **Swing の描画メソッド（カメラ映像をウィンドウに描画）**
-    @Override
-    protected void paintComponent(Graphics g) {
-        super.paintComponent(g);
-        if (currentFrame != null) {
-            int imgWidth = currentFrame.getWidth(); // **画像の幅**
-            int imgHeight = currentFrame.getHeight(); // **画像の高さ**
- 
-            double imgAspect = (double) imgWidth / imgHeight; // **画像のアスペクト比**
-            double screenAspect = (double) screenWidth / screenHeight; // **画面のアスペクト比**
- 
-            int drawWidth, drawHeight;
- 
-            // **画面サイズとカメラ映像の比率を維持するように調整**
-            if (imgAspect > screenAspect) {
-                drawWidth = screenWidth;
-                drawHeight = (int) (screenWidth / imgAspect);
-            } else {
-                drawHeight = screenHeight;
-                drawWidth = (int) (screenHeight * imgAspect);
+            @Override
+            public void onPreview(Mat bgr) {
+                // **カメラの映像を描画（検出した顔には緑の四角が描かれている。表示は上限FPSまでに間引かれる）**
+                submit(bgr);
             }
  
-            int x = (screenWidth - drawWidth) / 2;
-            int y = (screenHeight - drawHeight) / 2;
+            @Override
+            public void onError(String message) {
+                LOG.error(message);
+            }
+        });
  
-            // **適切なサイズでカメラ映像を描画**
-            g.drawImage(currentFrame, x, y, drawWidth, drawHeight, this);
+        // **カメラを開いて処理を開始（共有カメラ。顔登録・画像認識と切り替えても開き直さない）**
+        if (!pipeline[0].start()) {
+            LOG.error("カメラを開けませんでした");
+            frame.dispose();
+            return;
         }
+        LOG.info("カメラが正常に開きました");
+        frame.setVisible(true);
     }
  
-    // **顔認証処理（登録済みの顔データと比較）**
-    private static boolean isFaceMatched(Mat capturedFace) {
-        File faceDir = new File(FACE_DATA_PATH);
+    // **顔認証処理（登録済みのいずれかのユーザーと一致するか）**
+    static boolean isFaceMatched(Mat capturedFace) {
+        return identifyFace(capturedFace) != null;
+    }
  
-        // **登録済みの顔データがない場合は認証不可**
-        if (!faceDir.exists() || Objects.requireNonNull(faceDir.list()).length == 0) {
-            System.out.println("FaceLogin: 登録済みの顔データがありません");
-            return false;
+    // **顔識別処理（最も近いユーザーを返す。閾値を超えていればnull）**
+    static FaceGallery.Match identifyFace(Mat capturedFace) {
+        long start = System.nanoTime();
+        try {
+            return identifyInGallery(capturedFace);
+        } finally {
+            MATCH_TIME.recordSince(start);
         }
+    }
  
-        double bestScore = Double.MAX_VALUE; // **最良のスコア（小さいほど類似）**
- 
-        // **登録済みの顔データをすべて読み込んで比較**
-        for (File faceFile : Objects.requireNonNull(faceDir.listFiles())) {
-            Mat registeredFace = Imgcodecs.imread(faceFile.getAbsolutePath(), Imgcodecs.IMREAD_GRAYSCALE);
- 
-            if (registeredFace.empty()) {
-                System.out.println("FaceLogin: 登録済みの顔データの読み込みに失敗しました");
-                continue;
-            }
- 
-            // **キャプチャされた顔と登録顔のサイズを合わせる**
-            Mat resizedFace = new Mat();
-            Imgproc.resize(registeredFace, resizedFace, capturedFace.size());
- 
-            // **テンプレートマッチング（類似度を計算）**
-            Mat result = new Mat();
-            Imgproc.matchTemplate(capturedFace, resizedFace, result, Imgproc.TM_CCOEFF_NORMED);
-            Core.MinMaxLocResult mmr = Core.minMaxLoc(result);
-            double similarity = mmr.maxVal; // **類似度（1.0 に近いほど一致）**
- 
-            // **差分スコア（数値が小さいほど類似）**
-            double diff = Core.norm(capturedFace, resizedFace);
+    private static FaceGallery.Match identifyInGallery(Mat capturedFace) {
+        // **登録済みの顔データはギャラリーがメモリに保持している（face_data/ が変わったときだけ読み直す）**
+        FaceGallery gallery = FaceGallery.shared(FACE_DATA_PATH);
  
-            // **最小のスコアを記録**
-            bestScore = Math.min(bestScore, diff);
+        // **全ユーザーのテンプレートとの差分スコアを一括で計算し、近い順に上位を取る（数値が小さいほど類似）**
+        List<FaceGallery.Match> candidates = gallery.identify(capturedFace, TOP_K);
  
-            System.out.println("FaceLogin: 類似度スコア = " + similarity + ", 差分スコア = " + diff);
+        // **登録済みの顔データがない場合は認証不可**
+        if (candidates.isEmpty()) {
+            FRAME_LOG.warn("登録済みの顔データがありません");
+            return null;
         }
+        FRAME_LOG.debug("候補 = {}", candidates);
  
-        // **閾値を設定し、それ未満なら認証成功**
-        return bestScore < 8000;
+        // **閾値未満なら認証成功（LBPテンプレートなら顔の大きさによらない閾値）**
+        FaceGallery.Match best = candidates.get(0);
+        return best.getDistance() < gallery.getMode().getThreshold() ? best : null;
     }
  
     // **音声を再生するメソッド**
@@ -267,14 +199,14 @@ public class FaceLogin extends JPanel {
             // クラスローダーを使ってリソースを取得
             java.net.URL soundURL = FaceLogin.class.getResource(resourcePath);
             if (soundURL == null) {
-                System.err.println("音声リソースが見つかりません: " + resourcePath);
+                LOG.error("音声リソースが見つかりません: {}", resourcePath);
                 return;
             }
             File soundFile = new File(soundURL.toURI());
 
             // **音声ファイルが存在しない場合**
             if (!soundFile.exists()) {
-                System.err.println("音声ファイルが見つかりません: " + soundFile.getAbsolutePath());
+                LOG.error("音声ファイルが見つかりません: {}", soundFile.getAbsolutePath());
                 return;
             }
             // **音声ファイルを読み込む**
@@ -282,23 +214,12 @@ public class FaceLogin extends JPanel {
             Clip clip = AudioSystem.getClip();
             clip.open(audioStream);
             clip.start(); // **音声再生開始**
-            System.out.println("音声再生を開始しました: " + soundFile.getAbsolutePath());
+            LOG.info("音声再生を開始しました: {}", soundFile.getAbsolutePath());
         } catch (UnsupportedAudioFileException | IOException | LineUnavailableException | java.net.URISyntaxException e) {
-            System.err.println("音声再生エラー: " + e.getMessage());
+            LOG.error("音声再生エラー: {}", e.getMessage());
         }
     }
  
-    // **Mat を BufferedImage に変換**
-    private static BufferedImage convertMatToBufferedImage(Mat mat) {
-        int width = mat.width();
-        int height = mat.height();
-        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-        byte[] data = new byte[width * height * (int) mat.elemSize()];
-        mat.get(0, 0, data);
-        image.getRaster().setDataElements(0, 0, width, height, data);
-        return image;
-    }
- 
     // **エントリーポイント（プログラムの開始）**
     public static void main(String[] args) {
         Dimension screenSize = Toolkit.getDefaultToolkit().getScreenSize();
@@ -0,0 +1,271 @@
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * ログインと顔登録で共有する顔処理のパイプライン。
+ * 取り込み → 前処理 → 顔検出 → 認識 / 描画 の各ステージが別々のスレッドで動き、
+ * ステージの間は長さ1の受け渡し口（古いものから捨てる）でつなぐ。
+ * 処理速度は各ステージの合計ではなく一番遅いステージで決まり、認識が遅くても取り込みや描画は止まらない。
+ * ログインと顔登録の違いはSinkだけで、認識ステージと描画ステージから呼ばれる。
+ *
+ *   FacePipeline pipeline = new FacePipeline(faceDetector, sink);
+ *   pipeline.start();
+ *   ...
+ *   pipeline.stop();
+ */
+public class FacePipeline {
+    private static final Log LOG = Log.get("FacePipeline");
+    private static final long FRAME_TIMEOUT_MS = 2000; // 新しいフレームを待つ最大時間
+    private static final long POLL_MS = 200; // 受け渡し口で待つ間隔（停止を確認するため）
+
+    private final CascadeClassifier detector;
+    private final Sink sink;
+    private final Handoff captured = new Handoff("前処理待ち", "preprocess");
+    private final Handoff preprocessed = new Handoff("検出待ち", "detect");
+    private final Handoff toRecognize = new Handoff("認識待ち", "recognize");
+    private final Handoff toRender = new Handoff("描画待ち", "render");
+    private final Thread[] threads = new Thread[5];
+    private volatile boolean running;
+    private volatile CameraBroker camera;
+
+    // Sink: パイプラインの出口（ログイン・顔登録ごとの処理）
+    public interface Sink {
+        // onFaces: 認識ステージで呼ばれる。grayは前処理済みのフレーム、rawは補正前のグレースケール（画質の採点用）、
+        // facesは見つかった顔（0件もある）
+        void onFaces(Mat gray, Mat raw, Rect[] faces);
+
+        // onPreview: 描画ステージで呼ばれる。bgrは顔の枠を描き込んだフレーム（呼び出しの間だけ有効）
+        void onPreview(Mat bgr);
+
+        // onError: カメラが使えないなど、パイプラインが止まったときに呼ばれる
+        void onError(String message);
+    }
+
+    // Frame: ステージ間で受け渡す1フレーム。認識と描画の両方に渡すので参照カウントでプールへ返す
+    private static final class Frame {
+        final Mat bgr;
+        Mat raw; // グレースケールにしただけのフレーム
+        Mat gray; // rawのコントラスト補正・ノイズ除去後
+        Rect[] faces = new Rect[0];
+        private final AtomicInteger references = new AtomicInteger(1);
+
+        Frame(Mat bgr) {
+            this.bgr = bgr;
+        }
+
+        Frame retain() {
+            references.incrementAndGet();
+            return this;
+        }
+
+        void release() {
+            if (references.decrementAndGet() == 0) {
+                MatPool.recycle(bgr);
+                MatPool.recycle(raw);
+                MatPool.recycle(gray);
+            }
+        }
+    }
+
+    // Handoff: 長さ1の受け渡し口。次のステージが追いつかなければ古いフレームを捨てて入れ替える
+    private static final class Handoff {
+        private final String name;
+        private final BlockingQueue<Frame> queue = new ArrayBlockingQueue<>(1);
+        private final AtomicLong dropped = new AtomicLong(); // このパイプラインでの破棄数
+        private final Metrics.Counter droppedTotal; // プロセス全体での破棄数（JMX用）
+        private final Metrics.Histogram stageTime; // ここから取り出すステージの処理時間
+
+        Handoff(String name, String stage) {
+            this.name = name;
+            this.droppedTotal = Metrics.counter("FacePipeline.dropped." + stage);
+            this.stageTime = Metrics.histogram("FacePipeline." + stage);
+            Metrics.gauge("FacePipeline.queue." + stage, queue::size);
+        }
+
+        void offer(Frame frame) {
+            while (!queue.offer(frame)) {
+                Frame stale = queue.poll();
+                if (stale != null) {
+                    stale.release();
+                    dropped.incrementAndGet();
+                    droppedTotal.increment();
+                }
+            }
+        }
+
+        Frame poll() throws InterruptedException {
+            return queue.poll(POLL_MS, TimeUnit.MILLISECONDS);
+        }
+
+        void clear() {
+            Frame left;
+            while ((left = queue.poll()) != null) {
+                left.release();
+            }
+        }
+
+        @Override
+        public String toString() {
+            return name + " 破棄" + dropped.get();
+        }
+    }
+
+    // Stage: 受け渡し口から1フレーム取り出して処理する
+    private interface Stage {
+        void process(Frame frame) throws Exception;
+    }
+
+    public FacePipeline(CascadeClassifier detector, Sink sink) {
+        this.detector = detector;
+        this.sink = sink;
+    }
+
+    // start: 共有カメラを取得して各ステージのスレッドを開始する（カメラが使えなければfalse）
+    public synchronized boolean start() {
+        if (running) {
+            return true;
+        }
+        camera = CameraBroker.acquire(0);
+        if (!camera.isRunning()) {
+            camera.release();
+            camera = null;
+            return false;
+        }
+        running = true;
+        FaceTracker tracker = new FaceTracker(detector); // 検出ステージのスレッドだけが使う
+        threads[0] = new Thread(this::captureLoop, "face-capture");
+        threads[1] = new Thread(() -> stageLoop(captured, this::preprocess), "face-preprocess");
+        threads[2] = new Thread(() -> stageLoop(preprocessed, frame -> detect(tracker, frame)), "face-detect");
+        threads[3] = new Thread(() -> stageLoop(toRecognize, frame -> sink.onFaces(frame.gray, frame.raw, frame.faces)), "face-recognize");
+        threads[4] = new Thread(() -> stageLoop(toRender, this::render), "face-render");
+        for (Thread thread : threads) {
+            thread.setDaemon(true);
+            thread.start();
+        }
+        return true;
+    }
+
+    // stop: 全ステージを止めてカメラを手放す（Sinkの中から呼んでもよい）
+    public void stop() {
+        synchronized (this) {
+            if (!running) {
+                return;
+            }
+            running = false;
+        }
+        for (Thread thread : threads) {
+            if (thread != Thread.currentThread()) {
+                thread.interrupt();
+            }
+        }
+        for (Thread thread : threads) {
+            if (thread != Thread.currentThread()) {
+                try {
+                    thread.join(1000);
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+            }
+        }
+        captured.clear();
+        preprocessed.clear();
+        toRecognize.clear();
+        toRender.clear();
+        camera.release();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // stats: 取り込みFPSと受け渡し口ごとの破棄数
+    public String stats() {
+        CameraBroker broker = camera;
+        return String.format(Locale.ROOT, "取り込み %.1f fps / %s / %s / %s / %s",
+                broker == null ? 0.0 : broker.getCapturedFps(), captured, preprocessed, toRecognize, toRender);
+    }
+
+    // captureLoop: 新しいフレームをプールのMatへコピーして前処理へ渡す
+    private void captureLoop() {
+        Mat frame = new Mat();
+        try {
+            long seq = 0;
+            while (running) {
+                seq = camera.awaitFrame(frame, seq, FRAME_TIMEOUT_MS);
+                if (seq == 0) {
+                    if (running) {
+                        sink.onError("カメラからフレームを取得できません");
+                        stop();
+                    }
+                    return;
+                }
+                Mat copy = MatPool.acquire(frame.rows(), frame.cols(), frame.type());
+                frame.copyTo(copy);
+                captured.offer(new Frame(copy));
+            }
+        } finally {
+            frame.release();
+        }
+    }
+
+    // stageLoop: 停止するまで受け渡し口からフレームを取り出して処理する（処理後に参照を返す）
+    private void stageLoop(Handoff input, Stage stage) {
+        while (running) {
+            Frame frame;
+            try {
+                frame = input.poll();
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (frame == null) {
+                continue;
+            }
+            long start = System.nanoTime();
+            try {
+                stage.process(frame);
+                input.stageTime.recordSince(start);
+            } catch (Exception e) {
+                LOG.error("{} でエラーが発生しました", Thread.currentThread().getName(), e);
+            } finally {
+                frame.release();
+            }
+        }
+    }
+
+    // preprocess: グレースケール化・コントラスト補正・ノイズ除去（補正前のグレースケールも残す。
+    // bgrは描画ステージが枠を描き込むので、認識ステージはbgrを読まずにこちらを使う）
+    private void preprocess(Frame frame) {
+        Mat raw = MatPool.acquire(frame.bgr.rows(), frame.bgr.cols(), CvType.CV_8UC1);
+        Mat gray = MatPool.acquire(frame.bgr.rows(), frame.bgr.cols(), CvType.CV_8UC1);
+        Imgproc.cvtColor(frame.bgr, raw, Imgproc.COLOR_BGR2GRAY);
+        Imgproc.equalizeHist(raw, gray);
+        Imgproc.GaussianBlur(gray, gray, new Size(3, 3), 0);
+        frame.raw = raw;
+        frame.gray = gray;
+        preprocessed.offer(frame.retain());
+    }
+
+    // detect: 顔を検出し、同じフレームを認識と描画の両方へ渡す
+    private void detect(FaceTracker tracker, Frame frame) {
+        frame.faces = tracker.detect(frame.gray);
+        toRecognize.offer(frame.retain());
+        toRender.offer(frame.retain());
+    }
+
+    // render: 顔の枠を描いてSinkへ渡す（bgrに触るのは描画ステージだけ）
+    private void render(Frame frame) {
+        for (Rect rect : frame.faces) {
+            Imgproc.rectangle(frame.bgr, new Point(rect.x, rect.y),
+                    new Point(rect.x + rect.width, rect.y + rect.height), new Scalar(0, 255, 0), 3);
+        }
+        sink.onPreview(frame.bgr);
+    }
+}
@@ -0,0 +1,168 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+import java.io.*;
+import java.util.Locale;
+
+
+/**
+ * 顔テンプレートの形式。登録（RegisterFace）とログイン（FaceLogin）の両方が、顔の切り抜きを決まった大きさに揃えてから
+ * 固定長のfloatベクトルに変換し、ベクトル同士のL2距離で比べる。
+ *
+ *   PIXEL: 32×32に縮小した画素値そのもの（1024次元）。距離は撮影した顔の画素数に換算するので、閾値は以前と同じ8000
+ *   LBP:   66×66に揃えた顔のuniform LBPを4×4のセルごとに59ビンのヒストグラムにしたもの（944次元、約3.7KB）。
+ *          各セルを正規化して平方根を取り（Hellinger）、全体を単位ベクトルにするので、距離は0〜2で顔の大きさによらない
+ *
+ * 形式は -Dface.template=pixel|lbp で選ぶ（既定はLBP）。登録済みのJPEGはどちらの形式でも読み込み時に変換する。
+ */
+public enum FaceTemplate {
+    PIXEL(32, 1024, 8000),
+    LBP(66, LbpGrid.CELLS * LbpGrid.CELLS * LbpGrid.BINS, 0.5);
+
+    private static final Log LOG = Log.get("FaceTemplate");
+
+    private static final int FILE_MAGIC = 0x4654504C; // "FTPL"
+    private static final int FILE_VERSION = 1;
+    public static final String FILE_SUFFIX = ".tpl";
+
+    private final int size; // 揃える顔の一辺（画素）
+    private final int dimensions; // テンプレートの長さ
+    private final double threshold; // 既定の閾値（距離がこれ未満なら本人）
+
+    FaceTemplate(int size, int dimensions, double threshold) {
+        this.size = size;
+        this.dimensions = dimensions;
+        this.threshold = threshold;
+    }
+
+    // fromSystemProperties: -Dface.template で選んだ形式（不明な値ならLBP）
+    public static FaceTemplate fromSystemProperties() {
+        String name = System.getProperty("face.template", "lbp");
+        try {
+            return valueOf(name.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            LOG.warn("不明な顔テンプレート形式です（LBPを使います）: {}", name);
+            return LBP;
+        }
+    }
+
+    public int getDimensions() {
+        return dimensions;
+    }
+
+    // getThreshold: 認証の閾値（-Dface.threshold で上書きできる）
+    public double getThreshold() {
+        String value = System.getProperty("face.threshold");
+        return value == null ? threshold : Double.parseDouble(value);
+    }
+
+    // extract: グレースケールの顔の切り抜きからテンプレートを作る
+    public float[] extract(Mat gray) {
+        float[] template = new float[dimensions];
+        try (MatArena arena = new MatArena()) {
+            Mat resized = arena.acquire(size, size, CvType.CV_8UC1);
+            Imgproc.resize(gray, resized, resized.size(), 0, 0, Imgproc.INTER_AREA);
+            byte[] pixels = new byte[size * size];
+            resized.get(0, 0, pixels);
+            if (this == PIXEL) {
+                for (int i = 0; i < pixels.length; i++) {
+                    template[i] = pixels[i] & 0xFF;
+                }
+            } else {
+                LbpGrid.histogram(pixels, size, template);
+            }
+        }
+        return template;
+    }
+
+    // distance: 二乗L2距離を、撮影した顔（画素数faceArea）に対する閾値と比べられる距離にする
+    public double distance(double squared, long faceArea) {
+        double distance = Math.sqrt(Math.max(0, squared));
+        if (this == PIXEL) {
+            // 以前は撮影した顔のサイズで差分ノルムを取っていたので、同じ閾値が使えるよう画素数の比で換算する
+            distance *= Math.sqrt((double) faceArea / dimensions);
+        }
+        return distance;
+    }
+
+    // write: テンプレートをファイルに保存する（形式名と長さを先頭に書く）
+    public void write(File file, float[] template) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(FILE_MAGIC);
+            out.writeInt(FILE_VERSION);
+            out.writeUTF(name());
+            out.writeInt(template.length);
+            for (float v : template) {
+                out.writeFloat(v);
+            }
+        }
+    }
+
+    // read: この形式で保存されたテンプレートを読む（別の形式・壊れたファイルならnull）
+    public float[] read(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != FILE_MAGIC || in.readInt() != FILE_VERSION || !name().equals(in.readUTF())) {
+                return null;
+            }
+            int length = in.readInt();
+            if (length != dimensions) {
+                return null;
+            }
+            float[] template = new float[length];
+            for (int i = 0; i < length; i++) {
+                template[i] = in.readFloat();
+            }
+            return template;
+        }
+    }
+
+    // LbpGrid: uniform LBP（8近傍・半径1）のセル別ヒストグラム
+    private static final class LbpGrid {
+        static final int CELLS = 4; // 縦横のセル数
+        static final int BINS = 59; // uniformパターン58種 + それ以外
+        private static final int[] UNIFORM = new int[256]; // LBPコード → ビン
+
+        static {
+            int bin = 0;
+            for (int code = 0; code < 256; code++) {
+                int transitions = Integer.bitCount((code ^ ((code << 1) | (code >>> 7))) & 0xFF);
+                UNIFORM[code] = transitions <= 2 ? bin++ : BINS - 1;
+            }
+        }
+
+        // histogram: size四方の画素から、外周1画素を除いた (size-2) 四方のLBPコードをセルごとに数える
+        static void histogram(byte[] pixels, int size, float[] out) {
+            int inner = size - 2;
+            int cell = inner / CELLS;
+            for (int y = 1; y <= inner; y++) {
+                int cy = Math.min((y - 1) / cell, CELLS - 1);
+                int row = y * size;
+                for (int x = 1; x <= inner; x++) {
+                    int c = pixels[row + x] & 0xFF;
+                    int code = 0;
+                    code |= ((pixels[row - size + x - 1] & 0xFF) >= c ? 1 : 0) << 7;
+                    code |= ((pixels[row - size + x] & 0xFF) >= c ? 1 : 0) << 6;
+                    code |= ((pixels[row - size + x + 1] & 0xFF) >= c ? 1 : 0) << 5;
+                    code |= ((pixels[row + x + 1] & 0xFF) >= c ? 1 : 0) << 4;
+                    code |= ((pixels[row + size + x + 1] & 0xFF) >= c ? 1 : 0) << 3;
+                    code |= ((pixels[row + size + x] & 0xFF) >= c ? 1 : 0) << 2;
+                    code |= ((pixels[row + size + x - 1] & 0xFF) >= c ? 1 : 0) << 1;
+                    code |= ((pixels[row + x - 1] & 0xFF) >= c ? 1 : 0);
+                    int cx = Math.min((x - 1) / cell, CELLS - 1);
+                    out[(cy * CELLS + cx) * BINS + UNIFORM[code]]++;
+                }
+            }
+            // セルごとに合計1へ正規化して平方根を取る（Hellinger）。全体の二乗和は1になる
+            double cellScale = 1.0 / CELLS;
+            for (int c = 0; c < CELLS * CELLS; c++) {
+                double total = 0;
+                for (int b = 0; b < BINS; b++) {
+                    total += out[c * BINS + b];
+                }
+                for (int b = 0; b < BINS; b++) {
+                    out[c * BINS + b] = total > 0 ? (float) (Math.sqrt(out[c * BINS + b] / total) * cellScale) : 0f;
+                }
+            }
+        }
+    }
+}
@@ -0,0 +1,149 @@
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * カメラのループ用の顔検出。毎フレーム画面全体を検出する代わりに、
+ * DETECT_INTERVALフレームごと（または追跡を見失ったとき）だけ縮小したフレーム全体で検出し、
+ * その間のフレームは前回の顔の周りを広げた領域だけを、前回の大きさに近い顔に絞って探す。
+ * 戻り値の矩形はどちらの場合も元のフレームの座標。
+ *
+ * -Dface.tracking=false で毎フレーム全体を検出する（以前の動作）。
+ * インスタンスはスレッドセーフではない（1つのカメラループの中だけで使うこと）。
+ */
+public class FaceTracker {
+    private static final boolean TRACKING = Boolean.parseBoolean(System.getProperty("face.tracking", "true"));
+    private static final int DETECT_INTERVAL = Integer.getInteger("face.detectInterval", 10); // 全体を検出し直す間隔（フレーム）
+    private static final int DETECT_EDGE = Integer.getInteger("face.detectEdge", 640); // 全体検出で縮小するときの長辺（0なら縮小しない）
+    private static final double ROI_PADDING = 0.5; // 前回の顔の幅・高さに対して周囲に広げる割合
+    private static final double SIZE_TOLERANCE = 0.3; // 前回の顔の大きさから許す変化の割合
+    private static final Metrics.Histogram DETECT_TIME = Metrics.histogram("CascadeClassifier.detectMultiScale"); // 1フレーム分の検出時間
+    private static final Size MIN_FULL_SIZE = new Size(30, 30); // 全体検出での最小の顔（元のフレーム上の画素）
+
+    private final CascadeClassifier detector;
+    private final List<Rect> tracked = new ArrayList<>(); // 追跡中の顔（元のフレームの座標）
+    private int framesSinceDetect;
+    private long fullDetections; // 全体検出した回数
+    private long trackedFrames; // 追跡だけで済んだフレーム数
+
+    public FaceTracker(CascadeClassifier detector) {
+        this.detector = detector;
+    }
+
+    // detect: グレースケールのフレームから顔を探す（元のフレームの座標で返す）
+    public Rect[] detect(Mat gray) {
+        long start = System.nanoTime();
+        try {
+            return detectFrame(gray);
+        } finally {
+            DETECT_TIME.recordSince(start); // 追跡と全体検出のどちらでも、フレームごとのdetectMultiScaleの合計
+        }
+    }
+
+    private Rect[] detectFrame(Mat gray) {
+        if (TRACKING && !tracked.isEmpty() && framesSinceDetect < DETECT_INTERVAL) {
+            List<Rect> found = track(gray);
+            if (found.size() == tracked.size()) {
+                tracked.clear();
+                tracked.addAll(found);
+                framesSinceDetect++;
+                trackedFrames++;
+                return found.toArray(new Rect[0]);
+            }
+            // 見失った顔がある: このフレームで全体を検出し直す
+        }
+        List<Rect> found = detectFull(gray);
+        tracked.clear();
+        tracked.addAll(found);
+        framesSinceDetect = 0;
+        fullDetections++;
+        return found.toArray(new Rect[0]);
+    }
+
+    // reset: 追跡をやめ、次のフレームで全体を検出する
+    public void reset() {
+        tracked.clear();
+    }
+
+    // stats: 全体検出と追跡の回数
+    public String stats() {
+        return "全体検出 " + fullDetections + "回 / 追跡 " + trackedFrames + "回";
+    }
+
+    // detectFull: フレーム全体を（長辺DETECT_EDGEまで縮小して）検出し、元の座標に戻す
+    private List<Rect> detectFull(Mat gray) {
+        List<Rect> found = new ArrayList<>();
+        try (MatArena arena = new MatArena()) {
+            double scale = 1.0;
+            int longEdge = Math.max(gray.cols(), gray.rows());
+            Mat input = gray;
+            if (TRACKING && DETECT_EDGE > 0 && longEdge > DETECT_EDGE) {
+                scale = (double) DETECT_EDGE / longEdge;
+                input = arena.acquire((int) Math.round(gray.rows() * scale), (int) Math.round(gray.cols() * scale), CvType.CV_8UC1);
+                Imgproc.resize(gray, input, input.size(), 0, 0, Imgproc.INTER_AREA);
+            }
+            MatOfRect faces = arena.track(new MatOfRect());
+            if (scale == 1.0) {
+                detector.detectMultiScale(gray, faces);
+            } else {
+                Size minSize = new Size(Math.max(1, MIN_FULL_SIZE.width * scale), Math.max(1, MIN_FULL_SIZE.height * scale));
+                detector.detectMultiScale(input, faces, 1.1, 3, 0, minSize, new Size());
+            }
+            for (Rect rect : faces.toArray()) {
+                found.add(clamp(new Rect((int) Math.round(rect.x / scale), (int) Math.round(rect.y / scale),
+                        (int) Math.round(rect.width / scale), (int) Math.round(rect.height / scale)), gray));
+            }
+        }
+        return found;
+    }
+
+    // track: 追跡中の各顔について、周囲を広げた領域だけを前回に近い大きさで探す（見つからなかった顔は含めない）
+    private List<Rect> track(Mat gray) {
+        List<Rect> found = new ArrayList<>();
+        try (MatArena arena = new MatArena()) {
+            for (Rect previous : tracked) {
+                int padX = (int) (previous.width * ROI_PADDING);
+                int padY = (int) (previous.height * ROI_PADDING);
+                Rect roi = clamp(new Rect(previous.x - padX, previous.y - padY,
+                        previous.width + 2 * padX, previous.height + 2 * padY), gray);
+                if (roi.width <= 0 || roi.height <= 0) {
+                    continue;
+                }
+                Size minSize = new Size(previous.width * (1 - SIZE_TOLERANCE), previous.height * (1 - SIZE_TOLERANCE));
+                Size maxSize = new Size(Math.min(roi.width, previous.width * (1 + SIZE_TOLERANCE)),
+                        Math.min(roi.height, previous.height * (1 + SIZE_TOLERANCE)));
+                MatOfRect faces = arena.track(new MatOfRect());
+                detector.detectMultiScale(arena.track(gray.submat(roi)), faces, 1.1, 3, 0, minSize, maxSize);
+
+                // 候補が複数あれば前回の中心に最も近いものを同じ顔とみなす
+                Rect best = null;
+                double bestDistance = Double.MAX_VALUE;
+                for (Rect rect : faces.toArray()) {
+                    Rect moved = new Rect(rect.x + roi.x, rect.y + roi.y, rect.width, rect.height);
+                    double dx = (moved.x + moved.width / 2.0) - (previous.x + previous.width / 2.0);
+                    double dy = (moved.y + moved.height / 2.0) - (previous.y + previous.height / 2.0);
+                    if (dx * dx + dy * dy < bestDistance) {
+                        bestDistance = dx * dx + dy * dy;
+                        best = moved;
+                    }
+                }
+                if (best != null) {
+                    found.add(best);
+                }
+            }
+        }
+        return found;
+    }
+
+    // clamp: 矩形をフレームの内側に収める
+    private static Rect clamp(Rect rect, Mat frame) {
+        int x = Math.max(0, rect.x);
+        int y = Math.max(0, rect.y);
+        int right = Math.min(frame.cols(), rect.x + rect.width);
+        int bottom = Math.min(frame.rows(), rect.y + rect.height);
+        return new Rect(x, y, Math.max(0, right - x), Math.max(0, bottom - y));
+    }
+}
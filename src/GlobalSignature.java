@@ -0,0 +1,76 @@
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+import java.util.Arrays;
+
+
+/**
+ * 画像全体の安価な特徴（差分ハッシュ64ビット + 輝度ヒストグラム）。
+ * カスケード方式で、ORBマッチングの前にモデルを絞り込むために使う。
+ */
+public class GlobalSignature {
+    public static final int HISTOGRAM_BINS = 32;
+
+    private final long hash; // 9x8に縮小した画像の横方向差分ハッシュ
+    private final float[] histogram; // 正規化した輝度ヒストグラム（合計1）
+
+    public GlobalSignature(long hash, float[] histogram) {
+        this.hash = hash;
+        this.histogram = histogram;
+    }
+
+    // compute: 前処理済みのグレースケール画像から特徴を求める
+    public static GlobalSignature compute(Mat gray) {
+        try (MatArena arena = new MatArena()) {
+            return compute(gray, arena);
+        }
+    }
+
+    private static GlobalSignature compute(Mat gray, MatArena arena) {
+        Mat small = arena.acquire(8, 9, CvType.CV_8UC1);
+        Imgproc.resize(gray, small, small.size(), 0, 0, Imgproc.INTER_AREA);
+        byte[] pixels = new byte[72];
+        small.get(0, 0, pixels);
+        long hash = 0;
+        for (int y = 0; y < 8; y++) {
+            for (int x = 0; x < 8; x++) {
+                if ((pixels[y * 9 + x] & 0xFF) > (pixels[y * 9 + x + 1] & 0xFF)) {
+                    hash |= 1L << (y * 8 + x);
+                }
+            }
+        }
+
+        Mat hist = arena.mat();
+        Imgproc.calcHist(Arrays.asList(gray), arena.track(new MatOfInt(0)), arena.mat(), hist,
+                arena.track(new MatOfInt(HISTOGRAM_BINS)), arena.track(new MatOfFloat(0, 256)));
+        float[] histogram = new float[HISTOGRAM_BINS];
+        hist.get(0, 0, histogram);
+        float total = 0;
+        for (float v : histogram) {
+            total += v;
+        }
+        if (total > 0) {
+            for (int i = 0; i < histogram.length; i++) {
+                histogram[i] /= total;
+            }
+        }
+        return new GlobalSignature(hash, histogram);
+    }
+
+    // distance: 0（同じ）〜1（まったく違う）。ハッシュのハミング距離とヒストグラム交差の平均
+    public double distance(GlobalSignature other) {
+        double hashDistance = Long.bitCount(hash ^ other.hash) / 64.0;
+        double intersection = 0;
+        for (int i = 0; i < HISTOGRAM_BINS; i++) {
+            intersection += Math.min(histogram[i], other.histogram[i]);
+        }
+        return 0.5 * hashDistance + 0.5 * (1.0 - intersection);
+    }
+
+    public long getHash() {
+        return hash;
+    }
+
+    public float[] getHistogram() {
+        return histogram;
+    }
+}
@@ -0,0 +1,185 @@
+import java.util.Arrays;
+import java.util.List;
+
+
+/**
+ * ORB記述子（バイナリ）の近似最近傍探索インデックス（multi-index hashing + multi-probe）。
+ * 記述子をTABLES個の16ビット部分列に分け、部分列ごとのハッシュ表に全モデルの記述子を登録する。
+ * 検索時は各表で同じバケットと1ビット違いのバケットを調べるため、
+ * ハミング距離が 2 * TABLES - 1 以下の近傍は必ず候補に入る（鳩の巣原理）。
+ * 候補だけを完全なハミング距離で比較するので、コストはモデル数にほぼ比例しない。
+ */
+public class HammingIndex {
+    private static final int CHUNK_BITS = 16; // 1つの表が使うビット数
+    private static final int BUCKETS = 1 << CHUNK_BITS;
+
+    private final int words; // 1記述子あたりのlong数
+    private final int tables; // ハッシュ表の数（記述子のビット数 / 16）
+    private final int size; // 登録した記述子の総数
+    private final long[] descriptors; // 全モデルの記述子（詰めたもの）
+    private final int[] labels; // 記述子ごとの動物番号
+    private final int[][] offsets; // 表ごとのバケット開始位置（CSR形式）
+    private final int[][] entries; // 表ごとのバケット内の記述子番号
+    private final ThreadLocal<Scratch> scratch;
+
+    // Scratch: 検索ごとの重複候補チェック用の作業領域（スレッドごと）
+    private static class Scratch {
+        final int[] marks;
+        int generation;
+
+        Scratch(int size) {
+            marks = new int[size];
+        }
+    }
+
+    // コンストラクタ: 全モデルの記述子を動物番号付きで登録
+    public HammingIndex(List<ModelFeature> features, int[] modelClasses) {
+        long[][] packed = new long[features.size()][];
+        int total = 0;
+        int w = 0;
+        for (int i = 0; i < features.size(); i++) {
+            ModelFeature feature = features.get(i);
+            packed[i] = BinaryDescriptors.pack(feature.getDescriptors());
+            if (!feature.isEmpty()) {
+                w = BinaryDescriptors.wordsPerDescriptor(feature.getDescriptors());
+                total += feature.getDescriptors().rows();
+            }
+        }
+        this.words = Math.max(w, 1);
+        this.tables = words * 64 / CHUNK_BITS;
+        this.size = total;
+        this.descriptors = new long[total * words];
+        this.labels = new int[total];
+        int position = 0;
+        for (int i = 0; i < packed.length; i++) {
+            int rows = packed[i].length / words;
+            System.arraycopy(packed[i], 0, descriptors, position * words, packed[i].length);
+            Arrays.fill(labels, position, position + rows, modelClasses[i]);
+            position += rows;
+        }
+
+        // 表ごとに部分列の値でバケットに振り分ける（計数ソート）
+        offsets = new int[tables][];
+        entries = new int[tables][];
+        for (int t = 0; t < tables; t++) {
+            int[] offset = new int[BUCKETS + 1];
+            for (int d = 0; d < size; d++) {
+                offset[chunk(descriptors, d, t) + 1]++;
+            }
+            for (int b = 0; b < BUCKETS; b++) {
+                offset[b + 1] += offset[b];
+            }
+            int[] fill = Arrays.copyOf(offset, BUCKETS);
+            int[] entry = new int[size];
+            for (int d = 0; d < size; d++) {
+                entry[fill[chunk(descriptors, d, t)]++] = d;
+            }
+            offsets[t] = offset;
+            entries[t] = entry;
+        }
+        scratch = ThreadLocal.withInitial(() -> new Scratch(size));
+    }
+
+    public int size() {
+        return size;
+    }
+
+    public int getWords() {
+        return words;
+    }
+
+    // vote: 入力の各記述子についてk近傍を探し、近傍の動物に距離で重み付けした票を入れる
+    public double[] vote(long[] query, int queryCount, int k, int maxDistance, int classCount) {
+        double[] votes = new double[classCount];
+        int[] ids = new int[k];
+        int[] distances = new int[k];
+        for (int q = 0; q < queryCount; q++) {
+            int found = search(query, q, k, maxDistance, ids, distances);
+            for (int i = 0; i < found; i++) {
+                votes[labels[ids[i]]] += 1.0 - (double) distances[i] / (words * 64);
+            }
+        }
+        return votes;
+    }
+
+    // search: 近似k近傍探索。見つかった件数を返し、ids/distancesに距離の昇順で格納する
+    public int search(long[] query, int q, int k, int maxDistance, int[] ids, int[] distances) {
+        Scratch s = scratch.get();
+        if (++s.generation == 0) {
+            Arrays.fill(s.marks, 0);
+            s.generation = 1;
+        }
+        int found = 0;
+        for (int t = 0; t < tables; t++) {
+            int key = chunk(query, q, t);
+            found = probe(t, key, query, q, k, maxDistance, ids, distances, found, s);
+            for (int bit = 0; bit < CHUNK_BITS; bit++) {
+                found = probe(t, key ^ (1 << bit), query, q, k, maxDistance, ids, distances, found, s);
+            }
+        }
+        return found;
+    }
+
+    // probe: 1つのバケットの候補を調べ、上位k件を更新する
+    private int probe(int t, int key, long[] query, int q, int k, int maxDistance,
+                      int[] ids, int[] distances, int found, Scratch s) {
+        int[] offset = offsets[t];
+        int[] entry = entries[t];
+        for (int i = offset[key]; i < offset[key + 1]; i++) {
+            int d = entry[i];
+            if (s.marks[d] == s.generation) {
+                continue;
+            }
+            s.marks[d] = s.generation;
+            int distance = BinaryDescriptors.hamming(query, q, descriptors, d, words);
+            if (distance > maxDistance || (found == k && distance >= distances[k - 1])) {
+                continue;
+            }
+            // 挿入ソートで上位k件を保つ
+            int pos = found < k ? found++ : k - 1;
+            while (pos > 0 && distances[pos - 1] > distance) {
+                distances[pos] = distances[pos - 1];
+                ids[pos] = ids[pos - 1];
+                pos--;
+            }
+            distances[pos] = distance;
+            ids[pos] = d;
+        }
+        return found;
+    }
+
+    // exactNearest: 全記述子との総当たりで最近傍の距離を求める（再現率の計測用）
+    public int exactNearest(long[] query, int q) {
+        int best = Integer.MAX_VALUE;
+        for (int d = 0; d < size; d++) {
+            best = Math.min(best, BinaryDescriptors.hamming(query, q, descriptors, d, words));
+        }
+        return best;
+    }
+
+    // recall: 入力記述子のうち最大samples個について、近似探索の最近傍が厳密な最近傍と同じ距離かを調べる
+    public double recall(long[] query, int queryCount, int samples) {
+        if (queryCount == 0 || size == 0) {
+            return Double.NaN;
+        }
+        int step = Math.max(1, queryCount / Math.max(1, samples));
+        int[] ids = new int[1];
+        int[] distances = new int[1];
+        int hits = 0;
+        int checked = 0;
+        for (int q = 0; q < queryCount && checked < samples; q += step) {
+            int found = search(query, q, 1, Integer.MAX_VALUE, ids, distances);
+            if (found > 0 && distances[0] == exactNearest(query, q)) {
+                hits++;
+            }
+            checked++;
+        }
+        return (double) hits / checked;
+    }
+
+    // chunk: 記述子dのt番目の16ビット部分列
+    private int chunk(long[] data, int d, int t) {
+        long word = data[d * words + t / 4];
+        return (int) (word >>> ((t % 4) * CHUNK_BITS)) & (BUCKETS - 1);
+    }
+}
@@ -2,98 +2,524 @@ import org.opencv.core.*;
 import org.opencv.imgproc.Imgproc;
 import org.opencv.features2d.*;
 import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
 import java.util.*;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
 
 
 public class ImageAnalyzer {
+    private static final Log LOG = Log.get("ImageAnalyzer");
     private List<ImageModel> models; // 認識用モデル画像のリスト
+    private volatile Index index = new Index(new ArrayList<>(), AnalysisProfile.fromSystemProperties(), null); // 事前計算したモデルの特徴量
+    // ORB・マッチャー・画素変換のバッファはスレッドセーフではないため、このImageAnalyzerを使うスレッドごとに持つ。
+    // 作った作業領域はworkspacesにも登録し、shutdownか、持ち主のスレッドが終わった後の次の作成時に解放する
+    private final Queue<Workspace> workspaces = new ConcurrentLinkedQueue<>();
+    private final ThreadLocal<Workspace> workspace = ThreadLocal.withInitial(this::newWorkspace);
+    // 段階ごとの処理時間（JMXとメトリクスのダンプで見られる）。analyze は1枚あたりの変換・前処理から比較までの合計で、
+    // analyzeImage・analyzeMat・バッチ処理のどの経路でも記録する（バッチのキュー待ちは含まない）
+    private static final Metrics.Histogram ANALYZE_TIME = Metrics.histogram("ImageAnalyzer.analyze");
+    private static final Metrics.Histogram CONVERT_TIME = Metrics.histogram("ImageAnalyzer.convert");
+    private static final Metrics.Histogram PREPROCESS_TIME = Metrics.histogram("ImageAnalyzer.preprocess");
+    private static final Metrics.Histogram EXTRACT_TIME = Metrics.histogram("ImageAnalyzer.extract");
+    private static final Metrics.Histogram MATCH_TIME = Metrics.histogram("ImageAnalyzer.match");
+    private static final int EARLY_STOP_CHUNK = 64; // 早期打ち切りの判定を行う入力記述子の行数
+    private volatile Engine engine = Engine.fromSystemProperties(); // マッチング方式
+    private volatile int neighbours = 5; // 近似検索で票を入れる近傍数k
+    private volatile int maxDistance = 64; // 近傍とみなす最大ハミング距離
+    private volatile Cascade cascade = Cascade.fromSystemProperties(); // 絞り込み設定（nullなら全モデルを比較）
+    private volatile VocabularyTree vocabulary; // BOW方式の語彙木（未設定なら語彙ファイルから読み込む）
+    private volatile int recallSamples = Integer.getInteger("analyzer.recallSamples", 0); // 再現率を計測する入力記述子の数（0なら計測しない）
+    private volatile ScoringPool scoringPool; // 並列スコアリング用のプール（nullなら逐次処理）
+    private int parallelism; // 並列度（1以下で逐次処理）
+    private volatile long indexBuildTimeNanos; // インデックス構築時間
 
-    // コンストラクタ: モデル画像をセット
+    // コンストラクタ: モデル画像をセットし、特徴量インデックスを構築（処理サイズは-Danalyzer.profileで指定）
     public ImageAnalyzer(List<ImageModel> models) {
-        this.models = models;
+        this(models, AnalysisProfile.fromSystemProperties());
+    }
+
+    public ImageAnalyzer(List<ImageModel> models, AnalysisProfile profile) {
+        setParallelism(Integer.getInteger("analyzer.parallelism", Runtime.getRuntime().availableProcessors()));
+        this.index = new Index(new ArrayList<>(), profile, null);
+        setModels(models);
     }
 
-    // analyzeImage: 入力画像をモデルと比較し、結果を文字列で返す
-    public String analyzeImage(BufferedImage inputImage) {
-        if (inputImage == null || models == null || models.isEmpty()) {
-            return "エラー: 画像またはモデルが読み込まれていません。";
+    // コンストラクタ: コンパイル済みのインデックスファイルから特徴量をセット（処理サイズはファイルの設定に従う）
+    public ImageAnalyzer(ModelIndexFile indexFile) {
+        setParallelism(Integer.getInteger("analyzer.parallelism", Runtime.getRuntime().availableProcessors()));
+        setModelIndex(indexFile);
+    }
+
+    // analyzeImage: 入力画像をモデルと比較し、動物ごとの類似度と計測時間を返す
+    public AnalysisResult analyzeImage(BufferedImage inputImage) {
+        Index current = retainIndex();
+        try {
+            if (inputImage == null || current.features.isEmpty()) {
+                return AnalysisResult.error("画像またはモデルが読み込まれていません。");
+            }
+            long prepareStart = System.nanoTime();
+            Mat inputMat = prepareImage(inputImage, current.profile);
+            long prepareNanos = System.nanoTime() - prepareStart;
+            try {
+                return analyzePrepared(inputMat, current, prepareNanos, Progress.NONE);
+            } finally {
+                MatPool.recycle(inputMat);
+                ANALYZE_TIME.recordSince(prepareStart);
+            }
+        } finally {
+            current.release();
         }
+    }
+
+    // prepareImage: 入力画像をMatに変換して前処理する（バッチ処理では独立したステージとして呼ぶ）。
+    // 返すMatはプールから借りたものなので、使い終わったらMatPool.recycleで返すこと
+    Mat prepareImage(BufferedImage inputImage) {
+        return prepareImage(inputImage, index.profile);
+    }
+
+    // prepareImage: デコード済みのBGR画像を処理サイズに縮小して前処理する（bgrは変更しない）
+    Mat prepareImage(Mat bgr) {
+        return prepareConverted(bgr, index.profile);
+    }
+
+    private Mat prepareImage(BufferedImage inputImage, AnalysisProfile profile) {
+        long start = System.nanoTime();
+        Mat bgr = bufferedImageToMat(inputImage);
+        CONVERT_TIME.recordSince(start);
+        return prepareConverted(bgr, profile);
+    }
+
+    // prepareConverted: 縮小と前処理を行い、その時間を記録する
+    private Mat prepareConverted(Mat bgr, AnalysisProfile profile) {
+        long start = System.nanoTime();
+        Mat prepared = preprocessImage(normalizeSize(bgr, profile, workspace().resized));
+        PREPROCESS_TIME.recordSince(start);
+        return prepared;
+    }
 
-        Mat inputMat = preprocessImage(bufferedImageToMat(inputImage)); // 前処理済み入力画像
-        Map<String, List<Double>> similarityMap = new HashMap<>(); // 動物ごとの類似度リスト
-        for (ImageModel model : models) {
-            Mat modelMat = preprocessImage(bufferedImageToMat(model.getImage()));
-            double similarity = compareImages(inputMat, modelMat); // ORBで比較
-            similarityMap.computeIfAbsent(model.getName(), k -> new ArrayList<>()).add(similarity);
+    // normalizeSize: 長辺が処理サイズを超える画像をresizedに縮小する（縮小不要ならbgrをそのまま返す）
+    static Mat normalizeSize(Mat bgr, AnalysisProfile profile, Mat resized) {
+        double scale = profile.scaleFor(bgr.cols(), bgr.rows());
+        if (scale >= 1.0) {
+            return bgr;
         }
+        Size size = new Size(Math.max(1, Math.round(bgr.cols() * scale)), Math.max(1, Math.round(bgr.rows() * scale)));
+        Imgproc.resize(bgr, resized, size, 0, 0, Imgproc.INTER_AREA); // 縮小時のモアレを抑える
+        return resized;
+    }
 
-        StringBuilder result = new StringBuilder("類似度解析結果:\n");
-        double maxSimilarity = -1;
-        String maxModelName = "";
+    // analyzeMat: デコード済みのBGR画像（ImageDecoderの出力など）をモデルと比較する。bgrは変更しない
+    public AnalysisResult analyzeMat(Mat bgr) {
+        return analyzeMat(bgr, Progress.NONE);
+    }
 
-        // 各動物の平均類似度を計算
-        for (String name : similarityMap.keySet()) {
-            List<Double> similarities = similarityMap.get(name);
-            double avgSimilarity = similarities.stream().mapToDouble(Double::doubleValue).average().orElse(0.0);
-            double similarityPercent = Math.max(0, Math.min(100, avgSimilarity * 100));
-            if (similarityPercent > maxSimilarity) {
-                maxSimilarity = similarityPercent;
-                maxModelName = name;
+    // analyzeMat: 段階ごと・モデルごとに進捗を通知し、中断されたらCancellationExceptionを投げる
+    public AnalysisResult analyzeMat(Mat bgr, Progress progress) {
+        Index current = retainIndex();
+        try {
+            if (bgr == null || bgr.empty() || current.features.isEmpty()) {
+                return AnalysisResult.error("画像またはモデルが読み込まれていません。");
+            }
+            progress.update("前処理", 0, 1);
+            long prepareStart = System.nanoTime();
+            Mat inputMat = prepareConverted(bgr, current.profile);
+            long prepareNanos = System.nanoTime() - prepareStart;
+            try {
+                return analyzePrepared(inputMat, current, prepareNanos, progress);
+            } finally {
+                MatPool.recycle(inputMat);
+                ANALYZE_TIME.recordSince(prepareStart);
             }
-            result.append(name).append(": ").append(String.format("%.2f", similarityPercent)).append("%\n");
+        } finally {
+            current.release();
         }
+    }
 
-        result.insert(0, "最も可能性が高い: **" + maxModelName + "** (" + String.format("%.2f", maxSimilarity) + "%)\n\n");
-        return result.toString();
+    // analyzePrepared: 前処理済み画像の特徴を抽出し、モデルと比較する
+    AnalysisResult analyzePrepared(Mat inputMat) {
+        return analyzePrepared(inputMat, 0);
     }
 
-    // bufferedImageToMat: BufferedImageをOpenCVのMat形式に変換
-    private Mat bufferedImageToMat(BufferedImage image) {
-        Mat mat = new Mat(image.getHeight(), image.getWidth(), CvType.CV_8UC3);
-        byte[] data = new byte[image.getWidth() * image.getHeight() * 3];
-        int[] rgb = image.getRGB(0, 0, image.getWidth(), image.getHeight(), null, 0, image.getWidth());
-        for (int i = 0; i < rgb.length; i++) {
-            data[i * 3 + 2] = (byte) (rgb[i] & 0xFF); // 青
-            data[i * 3 + 1] = (byte) ((rgb[i] >> 8) & 0xFF); // 緑
-            data[i * 3] = (byte) ((rgb[i] >> 16) & 0xFF); // 赤
+    // analyzePrepared: 別のステージで前処理した画像を比較する（prepareNanosは前処理にかかった時間で、結果と合計時間に含める）
+    AnalysisResult analyzePrepared(Mat inputMat, long prepareNanos) {
+        long start = System.nanoTime();
+        Index current = retainIndex();
+        try {
+            if (current.features.isEmpty()) {
+                return AnalysisResult.error("モデルが読み込まれていません。");
+            }
+            AnalysisResult result = analyzePrepared(inputMat, current, prepareNanos, Progress.NONE);
+            ANALYZE_TIME.record(prepareNanos + System.nanoTime() - start);
+            return result;
+        } finally {
+            current.release();
         }
-        mat.put(0, 0, data);
-        return mat;
     }
 
-    // preprocessImage: 画像の前処理（ノイズ除去と正規化）
-    private Mat preprocessImage(Mat img) {
-        Mat gray = new Mat();
-        Imgproc.cvtColor(img, gray, Imgproc.COLOR_RGB2GRAY); // グレースケール変換
-        Imgproc.GaussianBlur(gray, gray, new Size(5, 5), 0); // ノイズ除去
-        Core.normalize(gray, gray, 0, 255, Core.NORM_MINMAX); // 正規化
-        return gray;
+    // retainIndex: 解析中に差し替えられても特徴量が解放されないよう、現在のインデックスの参照を取る（終わったらrelease）
+    private Index retainIndex() {
+        while (true) {
+            Index current = index;
+            if (current.retain()) {
+                return current;
+            }
+            // 差し替え済みで解放された。新しいインデックスは公開済みなので読み直す
+        }
     }
 
-    // compareImages: ORB特徴量で画像を比較し類似度を返す
-    private double compareImages(Mat img1, Mat img2) {
-        if (img1.size().width != img2.size().width || img1.size().height != img2.size().height) {
-            Imgproc.resize(img2, img2, img1.size()); // サイズを統一
+    private AnalysisResult analyzePrepared(Mat inputMat, Index current, long prepareNanos, Progress progress) {
+        // 特徴点・記述子・マスクはこのリクエストの中だけで使うので、終わったらまとめて解放する
+        try (MatArena arena = new MatArena()) {
+            // 入力画像の特徴量だけを抽出（モデル側はインデックス済み）
+            checkCancelled(progress);
+            progress.update("特徴抽出", 0, 1);
+            long extractStart = System.nanoTime();
+            Mat inputDescriptors = arena.mat();
+            workspace().detector(current.profile).detectAndCompute(inputMat, arena.mat(), arena.track(new MatOfKeyPoint()), inputDescriptors);
+            long extractNanos = System.nanoTime() - extractStart;
+            EXTRACT_TIME.record(extractNanos);
+            checkCancelled(progress);
+            long matchStart = System.nanoTime();
+            AnalysisResult result = analyzeDescriptors(inputMat, inputDescriptors, current, prepareNanos, extractNanos, progress);
+            MATCH_TIME.recordSince(matchStart);
+            return result;
         }
+    }
+
+    // analyzeDescriptors: 選択中のマッチング方式で、抽出済みの記述子をモデルと比較する
+    private AnalysisResult analyzeDescriptors(Mat inputMat, Mat inputDescriptors, Index current,
+                                              long prepareNanos, long extractNanos, Progress progress) {
+        String[] names = current.classNames;
+        int[] classes = current.modelClasses;
+
+        Engine selected = engine;
+        if (selected == Engine.LSH) {
+            return analyzeWithHammingIndex(inputDescriptors, current, prepareNanos, extractNanos);
+        }
+        if (selected == Engine.BOW) {
+            return analyzeWithBow(inputDescriptors, current, prepareNanos, extractNanos);
+        }
+
+        Cascade cascadeConfig = cascade;
+        if (cascadeConfig != null) {
+            return analyzeWithCascade(inputMat, inputDescriptors, current, cascadeConfig, prepareNanos, extractNanos, progress);
+        }
+
+        // モデルごとの類似度（各ワーカーは自分の添字にだけ書き込む）
+        long matchStart = System.nanoTime();
+        double[] modelScores = scoreModels(inputDescriptors, current.features, progress);
+        long matchNanos = System.nanoTime() - matchStart;
+
+        // 動物ごとに合計し、平均類似度をパーセントに変換
+        double[] sums = new double[names.length];
+        int[] counts = new int[names.length];
+        for (int i = 0; i < modelScores.length; i++) {
+            sums[classes[i]] += modelScores[i];
+            counts[classes[i]]++;
+        }
+        double[] percents = new double[names.length];
+        for (int c = 0; c < names.length; c++) {
+            double avgSimilarity = counts[c] == 0 ? 0.0 : sums[c] / counts[c];
+            percents[c] = Math.max(0, Math.min(100, avgSimilarity * 100));
+        }
+        return new AnalysisResult(names, percents, prepareNanos / 1_000_000.0,
+                extractNanos / 1_000_000.0, matchNanos / 1_000_000.0);
+    }
+
+    // getClassNames: 動物名（scoreClassesの並び順）
+    public String[] getClassNames() {
+        return index.classNames;
+    }
 
-        ORB detector = ORB.create();
-        MatOfKeyPoint keypoints1 = new MatOfKeyPoint();
-        MatOfKeyPoint keypoints2 = new MatOfKeyPoint();
-        Mat descriptors1 = new Mat();
-        Mat descriptors2 = new Mat();
+    // analyzeWithCascade: 画像全体の特徴でモデルを絞り込み、残った候補だけをORBで比較する。
+    // 候補は近い順に比較し、途中でそれまでの最高値を超えられないと分かったモデルは打ち切る。
+    // カスケード時の動物ごとの類似度は、その動物で最後まで比較したモデルの最高値とする。
+    // 打ち切ったモデルの値は上限でしかなく、候補から外れた動物は比較していないので、結果には種類を付けて区別する
+    private AnalysisResult analyzeWithCascade(Mat inputMat, Mat inputDescriptors, Index current, Cascade config,
+                                              long prepareNanos, long extractNanos, Progress progress) {
+        long matchStart = System.nanoTime();
+        List<ModelFeature> features = current.features;
+        int n = features.size();
+        GlobalSignature inputSignature = GlobalSignature.compute(inputMat);
+        double[] signatureDistances = new double[n];
+        Integer[] order = new Integer[n];
+        for (int i = 0; i < n; i++) {
+            GlobalSignature signature = features.get(i).getSignature();
+            signatureDistances[i] = signature == null ? 0.0 : inputSignature.distance(signature);
+            order[i] = i;
+        }
+        Arrays.sort(order, Comparator.comparingDouble(i -> signatureDistances[i]));
 
-        detector.detectAndCompute(img1, new Mat(), keypoints1, descriptors1);
-        detector.detectAndCompute(img2, new Mat(), keypoints2, descriptors2);
+        int classCount = current.classNames.length;
+        double[] classExact = new double[classCount]; // 最後まで比較したモデルの最高値
+        double[] classBound = new double[classCount]; // 打ち切ったモデルの上限の最大値
+        Arrays.fill(classExact, Double.NEGATIVE_INFINITY);
+        Arrays.fill(classBound, Double.NEGATIVE_INFINITY);
+        double best = Double.NEGATIVE_INFINITY;
+        double bestSignature = signatureDistances[order[0]];
+        int evaluated = 0;
+        int earlyStopped = 0;
+        boolean[] stopped = new boolean[1];
+        for (int rank = 0; rank < n; rank++) {
+            int i = order[rank];
+            if (rank >= config.topK && signatureDistances[i] > bestSignature + config.margin) {
+                break; // 上位K件にも、最良との差margin以内にも入らない
+            }
+            checkCancelled(progress);
+            progress.update("マッチング", rank, n);
+            stopped[0] = false;
+            double bound = config.earlyStop ? best : Double.NEGATIVE_INFINITY;
+            double similarity = compareDescriptorsBounded(inputDescriptors, features.get(i).getDescriptors(), bound, stopped);
+            evaluated++;
+            int c = current.modelClasses[i];
+            if (stopped[0]) {
+                earlyStopped++;
+                classBound[c] = Math.max(classBound[c], similarity);
+            } else {
+                best = Math.max(best, similarity);
+                classExact[c] = Math.max(classExact[c], similarity);
+            }
+        }
+        long matchNanos = System.nanoTime() - matchStart;
 
+        // 打ち切ったモデルの上限が確定値を上回る動物は、本当の最高値が分からないのでBOUNDEDとする
+        double[] percents = new double[classCount];
+        double[] upperBounds = new double[classCount];
+        AnalysisResult.ScoreKind[] kinds = new AnalysisResult.ScoreKind[classCount];
+        for (int c = 0; c < classCount; c++) {
+            boolean exact = classExact[c] != Double.NEGATIVE_INFINITY;
+            percents[c] = exact ? Math.max(0, Math.min(100, classExact[c] * 100)) : 0.0;
+            upperBounds[c] = Double.NaN;
+            if (classBound[c] > classExact[c]) {
+                kinds[c] = AnalysisResult.ScoreKind.BOUNDED;
+                upperBounds[c] = Math.max(0, Math.min(100, classBound[c] * 100));
+            } else {
+                kinds[c] = exact ? AnalysisResult.ScoreKind.EXACT : AnalysisResult.ScoreKind.PRUNED;
+            }
+        }
+        AnalysisResult result = new AnalysisResult(current.classNames, percents, prepareNanos / 1_000_000.0,
+                extractNanos / 1_000_000.0, matchNanos / 1_000_000.0);
+        result.setCascade(config.toString(), n, evaluated, earlyStopped, kinds, upperBounds);
+        return result;
+    }
+
+    // compareDescriptorsBounded: 入力記述子を少しずつマッチングし、類似度の上限がboundを下回ったら打ち切る。
+    // 距離は0以上なので、途中までの距離の合計から最終的な類似度の上限が分かる
+    private double compareDescriptorsBounded(Mat descriptors1, Mat descriptors2, double bound, boolean[] stopped) {
         if (descriptors1.empty() || descriptors2.empty()) {
             return 0.0; // 特徴点がない場合
         }
+        int rows = descriptors1.rows();
+        double totalDistance = 0;
+        try (MatArena arena = new MatArena()) {
+            MatOfDMatch matches = arena.track(new MatOfDMatch());
+            for (int start = 0; start < rows; start += EARLY_STOP_CHUNK) {
+                int end = Math.min(rows, start + EARLY_STOP_CHUNK);
+                Mat chunk = descriptors1.rowRange(start, end);
+                workspace().matcher().match(chunk, descriptors2, matches);
+                for (DMatch match : matches.toArray()) {
+                    totalDistance += match.distance;
+                }
+                chunk.release();
+                double upperBound = 1 - totalDistance / (rows * 100.0);
+                if (end < rows && upperBound < bound) {
+                    stopped[0] = true;
+                    return upperBound;
+                }
+            }
+        }
+        return 1 - totalDistance / (rows * 100.0); // 類似度計算
+    }
+
+    // analyzeWithHammingIndex: 全モデルの記述子を登録した近似最近傍インデックスで動物ごとに投票する
+    private AnalysisResult analyzeWithHammingIndex(Mat inputDescriptors, Index current, long prepareNanos, long extractNanos) {
+        long matchStart = System.nanoTime();
+        HammingIndex hammingIndex = current.hammingIndex();
+        long[] query = BinaryDescriptors.pack(inputDescriptors);
+        int queryCount = inputDescriptors.rows();
+        double[] votes = hammingIndex.vote(query, queryCount, neighbours, maxDistance, current.classNames.length);
+        long matchNanos = System.nanoTime() - matchStart;
+
+        // 票の割合をパーセントとして返す
+        double total = 0;
+        for (double vote : votes) {
+            total += vote;
+        }
+        double[] percents = new double[votes.length];
+        for (int c = 0; c < votes.length; c++) {
+            percents[c] = total == 0 ? 0.0 : votes[c] / total * 100;
+        }
+        AnalysisResult result = new AnalysisResult(current.classNames, percents, prepareNanos / 1_000_000.0,
+                extractNanos / 1_000_000.0, matchNanos / 1_000_000.0);
+        result.setEngine(Engine.LSH.name());
+        if (recallSamples > 0) {
+            result.setRecall(hammingIndex.recall(query, queryCount, recallSamples));
+        }
+        return result;
+    }
+
+    // analyzeWithBow: 視覚単語の転置インデックスで、量子化1回と疎な内積だけで動物ごとの類似度を求める
+    private AnalysisResult analyzeWithBow(Mat inputDescriptors, Index current, long prepareNanos, long extractNanos) {
+        VocabularyTree tree = getVocabulary();
+        if (tree == null) {
+            return AnalysisResult.error("語彙ファイルがありません。先に VocabularyTree を実行してください。");
+        }
+        long matchStart = System.nanoTime();
+        BowIndex bowIndex = current.bowIndex(tree);
+        double[] similarities = bowIndex.scoreClasses(BinaryDescriptors.pack(inputDescriptors), inputDescriptors.rows(),
+                current.classNames.length);
+        long matchNanos = System.nanoTime() - matchStart;
+
+        double[] percents = new double[similarities.length];
+        for (int c = 0; c < similarities.length; c++) {
+            percents[c] = Math.max(0, Math.min(100, similarities[c] * 100));
+        }
+        AnalysisResult result = new AnalysisResult(current.classNames, percents, prepareNanos / 1_000_000.0,
+                extractNanos / 1_000_000.0, matchNanos / 1_000_000.0);
+        result.setEngine(Engine.BOW.name());
+        return result;
+    }
+
+    // scoreModels: 全モデルとの類似度を計算（並列度が2以上ならプールで分散、そうでなければ逐次）
+    private double[] scoreModels(Mat inputDescriptors, List<ModelFeature> index, Progress progress) {
+        double[] scores = new double[index.size()];
+        ScoringPool pool = index.size() < 2 ? null : retainPool();
+        progress.update("マッチング", 0, scores.length);
+        if (pool == null) {
+            for (int i = 0; i < scores.length; i++) {
+                checkCancelled(progress);
+                scores[i] = compareDescriptors(inputDescriptors, index.get(i).getDescriptors()); // ORBで比較
+                progress.update("マッチング", i + 1, scores.length);
+            }
+            return scores;
+        }
+        try {
+            AtomicInteger done = new AtomicInteger();
+            pool.pool.submit(() -> IntStream.range(0, scores.length).parallel()
+                    .forEach(i -> {
+                        checkCancelled(progress);
+                        scores[i] = compareDescriptors(inputDescriptors, index.get(i).getDescriptors());
+                        progress.update("マッチング", done.incrementAndGet(), scores.length);
+                    }))
+                    .join();
+        } finally {
+            pool.release();
+        }
+        return scores;
+    }
+
+    // retainPool: 使い終わるまでsetParallelismやshutdownで停止されないよう、プールの参照を取る（nullなら逐次処理）
+    private ScoringPool retainPool() {
+        while (true) {
+            ScoringPool pool = scoringPool;
+            if (pool == null || pool.retain()) {
+                return pool;
+            }
+        }
+    }
+
+    // checkCancelled: 中断が要求されていれば以降の処理をやめる
+    private static void checkCancelled(Progress progress) {
+        if (progress.isCancelled()) {
+            throw new CancellationException("解析が中断されました");
+        }
+    }
+
+    // buildIndex: 全モデル画像の前処理と特徴抽出を1回だけ行う（入力と同じ処理サイズに揃える）
+    private void buildIndex(AnalysisProfile profile) {
+        long start = System.nanoTime();
+        List<ModelFeature> features = new ArrayList<>();
+        if (models != null) {
+            Workspace current = workspace();
+            for (ImageModel model : models) {
+                features.add(extractFeature(model.getName(), bufferedImageToMat(model.getImage()), profile, current));
+            }
+        }
+        replaceIndex(new Index(features, profile, null));
+        indexBuildTimeNanos = System.nanoTime() - start;
+    }
+
+    // extractFeature: モデル画像1枚を処理サイズに揃えて前処理し、特徴量を抽出する（bgrは変更しない）。
+    // workspaceは呼び出し元のスレッドのもの（ImageAnalyzerの外ではnew Workspace()で作り、使い終わったらrelease）
+    static ModelFeature extractFeature(String name, Mat bgr, AnalysisProfile profile, Workspace workspace) {
+        Mat modelMat = preprocessImage(normalizeSize(bgr, profile, workspace.resized));
+        MatOfKeyPoint keypoints = new MatOfKeyPoint(); // インデックスが保持する（差し替え時に解放）
+        Mat descriptors = new Mat();
+        try (MatArena arena = new MatArena()) {
+            workspace.detector(profile).detectAndCompute(modelMat, arena.mat(), keypoints, descriptors);
+        }
+        GlobalSignature signature = GlobalSignature.compute(modelMat);
+        MatPool.recycle(modelMat);
+        return new ModelFeature(name, keypoints, descriptors, signature);
+    }
+
+    // replaceIndex: インデックスを差し替える。古い特徴量のネイティブメモリは、解析中のリクエストが使い終わってから解放される
+    private void replaceIndex(Index replacement) {
+        Index old = index;
+        index = replacement;
+        old.release();
+    }
+
+    // bufferedImageToMat: BufferedImageをBGRのMatに変換（スレッドごとの作業用Matを再利用するため、保持しないこと）
+    Mat bufferedImageToMat(BufferedImage image) {
+        Workspace current = workspace();
+        return current.bridge.toMat(image, current.converted);
+    }
+
+    // detector: 現在のスレッド用の、現在の処理サイズのORB（ベンチマーク用）
+    ORB detector() {
+        return workspace().detector(index.profile);
+    }
+
+    // workspace / newWorkspace: 現在のスレッドの作業領域。作るときに、終了したスレッドの作業領域を解放する
+    private Workspace workspace() {
+        Workspace current = workspace.get();
+        if (current.retired) { // shutdown後に使われた
+            workspace.remove();
+            current = workspace.get();
+        }
+        return current;
+    }
 
-        DescriptorMatcher matcher = DescriptorMatcher.create(DescriptorMatcher.BRUTEFORCE_HAMMING);
-        MatOfDMatch matches = new MatOfDMatch();
-        matcher.match(descriptors1, descriptors2, matches);
+    private Workspace newWorkspace() {
+        for (Iterator<Workspace> it = workspaces.iterator(); it.hasNext(); ) {
+            Workspace old = it.next();
+            if (!old.owner.isAlive()) {
+                it.remove();
+                old.release();
+            }
+        }
+        Workspace created = new Workspace();
+        workspaces.add(created);
+        return created;
+    }
 
-        List<DMatch> matchesList = matches.toList();
+    // preprocessImage: 画像の前処理（ノイズ除去と正規化）。出力はプールから借りるので、MatPool.recycleで返すこと
+    static Mat preprocessImage(Mat img) {
+        Mat gray = MatPool.acquire(img.rows(), img.cols(), CvType.CV_8UC1);
+        Imgproc.cvtColor(img, gray, Imgproc.COLOR_BGR2GRAY); // グレースケール変換
+        Imgproc.GaussianBlur(gray, gray, new Size(5, 5), 0); // ノイズ除去
+        Core.normalize(gray, gray, 0, 255, Core.NORM_MINMAX); // 正規化
+        return gray;
+    }
+
+    // compareDescriptors: ORB記述子同士を比較し類似度を返す
+    double compareDescriptors(Mat descriptors1, Mat descriptors2) {
+        if (descriptors1.empty() || descriptors2.empty()) {
+            return 0.0; // 特徴点がない場合
+        }
+
+        List<DMatch> matchesList;
+        try (MatArena arena = new MatArena()) {
+            MatOfDMatch matches = arena.track(new MatOfDMatch());
+            workspace().matcher().match(descriptors1, descriptors2, matches);
+            matchesList = matches.toList();
+        }
         double totalDistance = 0;
         for (DMatch match : matchesList) {
             totalDistance += match.distance;
@@ -101,11 +527,338 @@ public class ImageAnalyzer {
         return matchesList.isEmpty() ? 0 : (1 - totalDistance / (matchesList.size() * 100.0)); // 類似度計算
     }
 
+    public List<ModelFeature> getModelIndex() {
+        return index.features;
+    }
+
+    // setModelIndex: インデックスファイルの特徴量をそのまま使う（画像のデコードも特徴抽出もしない）
+    public synchronized void setModelIndex(ModelIndexFile indexFile) {
+        long start = System.nanoTime();
+        this.models = null;
+        replaceIndex(new Index(new ArrayList<>(indexFile.getFeatures()), indexFile.getProfile(), indexFile));
+        indexBuildTimeNanos = System.nanoTime() - start;
+    }
+
+    // getProfile: 現在のインデックスの処理サイズと特徴抽出の設定
+    public AnalysisProfile getProfile() {
+        return index.profile;
+    }
+
+    // setProfile: 処理サイズを切り替え、モデル画像から特徴量を抽出し直す。
+    // インデックスファイルから読み込んだ場合は画像を持たないので、ModelIndexFile.loadOrCompileで作り直すこと
+    public synchronized void setProfile(AnalysisProfile profile) {
+        if (profile == index.profile) {
+            return;
+        }
+        if (models == null && !index.features.isEmpty()) {
+            throw new IllegalStateException("インデックスファイルの処理サイズは変更できません: " + index.profile);
+        }
+        buildIndex(profile);
+    }
+
     public List<ImageModel> getModels() {
         return models;
     }
 
-    public void setModels(List<ImageModel> models) {
+    // setModels: モデルを差し替えた場合はインデックスを再構築
+    public synchronized void setModels(List<ImageModel> models) {
         this.models = models;
+        buildIndex(index.profile);
+    }
+
+    // setParallelism: スコアリングの並列度を設定（1以下で逐次処理に戻す）
+    public synchronized void setParallelism(int parallelism) {
+        if (parallelism == this.parallelism) {
+            return;
+        }
+        stopPool();
+        this.parallelism = parallelism;
+        if (parallelism > 1) {
+            scoringPool = new ScoringPool(new ForkJoinPool(parallelism));
+        }
+    }
+
+    public synchronized int getParallelism() {
+        return parallelism;
+    }
+
+    // shutdown: 並列スコアリング用のプールを停止し、スレッドごとの作業領域を解放する（解析がすべて終わってから呼ぶこと）。
+    // 後で解析を呼べば作業領域は作り直されるが、並列度は1に戻る
+    public synchronized void shutdown() {
+        stopPool();
+        parallelism = 1;
+        Workspace old;
+        while ((old = workspaces.poll()) != null) {
+            if (old.owner == Thread.currentThread() || !old.owner.isAlive()) {
+                old.release();
+            } else {
+                // 止めたばかりのワーカーがまだ解析中かもしれない。Matはそのスレッドが終わって参照がなくなればGCで解放される
+                old.retire();
+            }
+        }
+    }
+
+    // stopPool: 並列スコアリング用のプールを外す（スコアリング中のリクエストが終わってから止まる）
+    private void stopPool() {
+        ScoringPool old = scoringPool;
+        scoringPool = null;
+        if (old != null) {
+            old.release();
+        }
+    }
+
+    // setEngine: マッチング方式を切り替える（EXACT: 総当たり, LSH: 近似最近傍）
+    public void setEngine(Engine engine) {
+        this.engine = engine;
+    }
+
+    public Engine getEngine() {
+        return engine;
+    }
+
+    // setNeighbours: 近似検索の近傍数kと、近傍とみなす最大ハミング距離
+    public void setNeighbours(int neighbours, int maxDistance) {
+        this.neighbours = neighbours;
+        this.maxDistance = maxDistance;
+    }
+
+    // setCascade: カスケード方式の設定（nullで全モデルと比較する通常の方式に戻す）
+    public void setCascade(Cascade cascade) {
+        this.cascade = cascade;
+    }
+
+    public Cascade getCascade() {
+        return cascade;
+    }
+
+    // setVocabulary: BOW方式で使う語彙木を設定する
+    public void setVocabulary(VocabularyTree vocabulary) {
+        this.vocabulary = vocabulary;
+    }
+
+    // getVocabulary: 語彙木を返す。未設定なら学習済みの語彙ファイルを1度だけ読み込む
+    public synchronized VocabularyTree getVocabulary() {
+        if (vocabulary == null) {
+            File file = new File(ModelCatalog.VOCABULARY_FILE);
+            if (file.exists()) {
+                try {
+                    vocabulary = VocabularyTree.load(file);
+                } catch (IOException e) {
+                    LOG.error("語彙ファイルの読み込みに失敗しました: {}", e.getMessage());
+                }
+            }
+        }
+        return vocabulary;
+    }
+
+    // setRecallSampling: 近似検索の結果に、厳密な最近傍と比べた再現率を付ける（samples個の記述子で計測）
+    public void setRecallSampling(int samples) {
+        this.recallSamples = samples;
+    }
+
+    // getIndexBuildTimeMs: インデックス構築時間（リクエストごとの計測値はAnalysisResultに入る）
+    public double getIndexBuildTimeMs() {
+        return indexBuildTimeNanos / 1_000_000.0;
+    }
+
+    // Workspace: 1つのスレッドが使うORB（処理サイズごと）・マッチャー・画素変換の作業バッファ。
+    // 作ったスレッドの中だけで使い、releaseは持ち主が使い終わった後か、終了した後に呼ぶ
+    static final class Workspace {
+        private final Thread owner = Thread.currentThread();
+        private final Map<AnalysisProfile, ORB> detectors = new EnumMap<>(AnalysisProfile.class);
+        private DescriptorMatcher matcher;
+        private volatile boolean retired; // shutdown済み（持ち主のスレッドは次から新しい作業領域を使う）
+        final MatImageBridge bridge = new MatImageBridge();
+        final Mat converted = new Mat(); // BufferedImageから変換したBGR画像
+        final Mat resized = new Mat(); // 処理サイズに縮小した画像
+
+        synchronized ORB detector(AnalysisProfile profile) {
+            return detectors.computeIfAbsent(profile, AnalysisProfile::createDetector);
+        }
+
+        synchronized DescriptorMatcher matcher() {
+            if (matcher == null) {
+                matcher = DescriptorMatcher.create(DescriptorMatcher.BRUTEFORCE_HAMMING);
+            }
+            return matcher;
+        }
+
+        // release: 作業用Matを解放する。ORBとマッチャーは明示的に解放できないので、参照を外してGCに任せる
+        synchronized void release() {
+            converted.release();
+            resized.release();
+            retire();
+        }
+
+        // retire: ORBとマッチャーの参照を外し、以後は使わないようにする（作業用Matは持ち主が使っているかもしれないので残す）
+        synchronized void retire() {
+            detectors.clear();
+            matcher = null;
+            retired = true;
+        }
+    }
+
+    // Shared: 解析中のリクエストが使っている間は解放しないための参照カウント。
+    // 作成時の参照は持ち主（ImageAnalyzerのフィールド）のもので、差し替えたときに手放す
+    private abstract static class Shared {
+        private final AtomicInteger refs = new AtomicInteger(1);
+
+        // retain: 解放済みならfalse（呼び出し側は差し替え後の参照を読み直す）
+        final boolean retain() {
+            while (true) {
+                int count = refs.get();
+                if (count == 0) {
+                    return false;
+                }
+                if (refs.compareAndSet(count, count + 1)) {
+                    return true;
+                }
+            }
+        }
+
+        final void release() {
+            if (refs.decrementAndGet() == 0) {
+                free();
+            }
+        }
+
+        // free: 最後の参照が手放されたときに1回だけ呼ばれる
+        abstract void free();
+    }
+
+    // ScoringPool: 並列スコアリング用のプール（使用中のリクエストが終わるまで停止しない）
+    private static class ScoringPool extends Shared {
+        final ForkJoinPool pool;
+
+        ScoringPool(ForkJoinPool pool) {
+            this.pool = pool;
+        }
+
+        @Override
+        void free() {
+            pool.shutdown();
+        }
+    }
+
+    // Index: 特徴量と動物名の番号表をまとめたスナップショット（差し替えは参照の入れ替えで行う）
+    private static class Index extends Shared {
+        final List<ModelFeature> features;
+        final AnalysisProfile profile; // 特徴量を抽出したときの処理サイズ（入力も同じ設定で処理する）
+        final ModelIndexFile source; // メモリマップしたインデックス（Matの参照先を保持する。nullなら特徴量はこのIndexが持つ）
+        final String[] classNames; // 動物名（インデックス内の出現順）
+        final int[] modelClasses; // モデルごとの動物番号
+        private HammingIndex hammingIndex; // LSH方式用
+        private BowIndex bowIndex; // BOW方式用
+
+        Index(List<ModelFeature> features, AnalysisProfile profile, ModelIndexFile source) {
+            List<String> names = new ArrayList<>();
+            int[] classes = new int[features.size()];
+            for (int i = 0; i < features.size(); i++) {
+                String name = features.get(i).getName();
+                int c = names.indexOf(name);
+                if (c < 0) {
+                    c = names.size();
+                    names.add(name);
+                }
+                classes[i] = c;
+            }
+            this.features = features;
+            this.profile = profile;
+            this.source = source;
+            this.classNames = names.toArray(new String[0]);
+            this.modelClasses = classes;
+        }
+
+        // free: モデル画像から抽出した特徴量のネイティブメモリを解放する。
+        // インデックスファイルのMatはマップ領域を参照していて、同じファイルを使う他のImageAnalyzerと共有するので解放しない
+        @Override
+        void free() {
+            if (source == null) {
+                for (ModelFeature feature : features) {
+                    feature.release();
+                }
+            }
+        }
+
+        // hammingIndex: 近似最近傍インデックスは初めて使うときに作る
+        synchronized HammingIndex hammingIndex() {
+            if (hammingIndex == null) {
+                hammingIndex = new HammingIndex(features, modelClasses);
+            }
+            return hammingIndex;
+        }
+
+        // bowIndex: 転置インデックスは語彙木ごとに1回だけ作る
+        synchronized BowIndex bowIndex(VocabularyTree vocabulary) {
+            if (bowIndex == null || bowIndex.getVocabulary() != vocabulary) {
+                bowIndex = new BowIndex(vocabulary, features, modelClasses);
+            }
+            return bowIndex;
+        }
+    }
+
+    // Cascade: 絞り込みの設定。上位topK件と、最良からmargin以内のモデルだけをORBで比較する
+    public static class Cascade {
+        final int topK;
+        final double margin;
+        final boolean earlyStop; // それまでの最高値を超えられないモデルを途中で打ち切るか
+
+        public Cascade(int topK, double margin, boolean earlyStop) {
+            this.topK = Math.max(1, topK);
+            this.margin = margin;
+            this.earlyStop = earlyStop;
+        }
+
+        // fromSystemProperties: -Danalyzer.cascadeTopK=N（0または未指定で無効）
+        static Cascade fromSystemProperties() {
+            int topK = Integer.getInteger("analyzer.cascadeTopK", 0);
+            if (topK <= 0) {
+                return null;
+            }
+            double margin = Double.parseDouble(System.getProperty("analyzer.cascadeMargin", "0.05"));
+            return new Cascade(topK, margin, !Boolean.getBoolean("analyzer.cascadeNoEarlyStop"));
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.ROOT, "topK=%d, margin=%.3f, earlyStop=%s", topK, margin, earlyStop);
+        }
+    }
+
+    // Progress: 解析の進捗通知と中断の確認（段階の切り替わりとモデル1件ごとに呼ばれる）
+    public interface Progress {
+        Progress NONE = new Progress() {
+            @Override
+            public void update(String stage, int done, int total) {
+            }
+
+            @Override
+            public boolean isCancelled() {
+                return false;
+            }
+        };
+
+        // update: 並列スコアリング中は複数のスレッドから呼ばれる
+        void update(String stage, int done, int total);
+
+        boolean isCancelled();
+    }
+
+    // Engine: マッチング方式
+    public enum Engine {
+        EXACT, // 全モデルと総当たりで比較（BRUTEFORCE_HAMMING）
+        LSH, // multi-index hashingによる近似最近傍で投票
+        BOW; // 語彙木とTF-IDF転置インデックスによるbag-of-visual-words
+
+        // fromSystemProperties: -Danalyzer.engine で選んだ方式（不明な値ならEXACT）
+        static Engine fromSystemProperties() {
+            String name = System.getProperty("analyzer.engine", "EXACT");
+            try {
+                return valueOf(name.trim().toUpperCase(Locale.ROOT));
+            } catch (IllegalArgumentException e) {
+                LOG.warn("不明なマッチング方式です（EXACTを使います）: {}", name);
+                return EXACT;
+            }
+        }
     }
-}
\ No newline at end of file
+}
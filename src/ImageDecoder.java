@@ -0,0 +1,120 @@
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+
+
+/**
+ * 画像ファイルを処理サイズに近い解像度で直接Matへデコードするクラス。
+ * ヘッダだけを読んで縮小率（1/2, 1/4, 1/8）を決め、Imgcodecs.imreadの縮小読み込みフラグで
+ * JPEGをDCTの段階で縮小しながらデコードする。フル解像度のBufferedImageをヒープに作らない。
+ * imreadで読めない場合（Windowsで日本語を含むパスなど）はImageIOのサブサンプリング読み込みに切り替える。
+ */
+public class ImageDecoder {
+    private static final int[] REDUCE_FACTORS = {8, 4, 2};
+    private static final int[] REDUCED_COLOR_FLAGS = {
+            Imgcodecs.IMREAD_REDUCED_COLOR_8, Imgcodecs.IMREAD_REDUCED_COLOR_4, Imgcodecs.IMREAD_REDUCED_COLOR_2};
+
+    private ImageDecoder() {
+    }
+
+    // decode: 長辺がlongEdge以上を保つ範囲で縮小しながらBGRのMatにデコードする（読めなければnull）
+    public static Mat decode(File file, int longEdge) throws IOException {
+        int[] dimensions = readDimensions(file);
+        int factor = dimensions == null ? 1 : reduceFactor(dimensions[0], dimensions[1], longEdge);
+
+        Mat mat = Imgcodecs.imread(file.getPath(), flagFor(factor));
+        if (!mat.empty()) {
+            return mat;
+        }
+        mat.release();
+
+        BufferedImage image = readSubsampled(file, factor);
+        return image == null ? null : new MatImageBridge().toMat(image);
+    }
+
+    // preview: 画面表示用に、長辺maxEdge以下へ縮小した別の画像を作る（解析用のMatとは共有しない）
+    public static BufferedImage preview(Mat bgr, int maxEdge) {
+        int edge = Math.max(bgr.cols(), bgr.rows());
+        if (edge <= maxEdge) {
+            return MatImageBridge.toNewBufferedImage(bgr);
+        }
+        double scale = (double) maxEdge / edge;
+        Mat small = new Mat();
+        Imgproc.resize(bgr, small, new Size(Math.max(1, Math.round(bgr.cols() * scale)),
+                Math.max(1, Math.round(bgr.rows() * scale))), 0, 0, Imgproc.INTER_AREA);
+        BufferedImage image = MatImageBridge.toNewBufferedImage(small);
+        small.release();
+        return image;
+    }
+
+    // reduceFactor: 縮小後も長辺がlongEdgeを下回らない最大の縮小率
+    static int reduceFactor(int width, int height, int longEdge) {
+        int edge = Math.max(width, height);
+        for (int factor : REDUCE_FACTORS) {
+            if (edge / factor >= longEdge) {
+                return factor;
+            }
+        }
+        return 1;
+    }
+
+    private static int flagFor(int factor) {
+        for (int i = 0; i < REDUCE_FACTORS.length; i++) {
+            if (REDUCE_FACTORS[i] == factor) {
+                return REDUCED_COLOR_FLAGS[i];
+            }
+        }
+        return Imgcodecs.IMREAD_COLOR;
+    }
+
+    // readDimensions: 画素はデコードせず、ヘッダから幅と高さだけを読む
+    private static int[] readDimensions(File file) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = firstReader(stream);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                reader.setInput(stream, true, true);
+                return new int[] {reader.getWidth(0), reader.getHeight(0)};
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    // readSubsampled: ImageIOで縦横factor画素おきに読み込む（フル解像度の画像は作らない）
+    private static BufferedImage readSubsampled(File file, int factor) throws IOException {
+        try (ImageInputStream stream = ImageIO.createImageInputStream(file)) {
+            ImageReader reader = firstReader(stream);
+            if (reader == null) {
+                return null;
+            }
+            try {
+                reader.setInput(stream, true, true);
+                ImageReadParam param = reader.getDefaultReadParam();
+                param.setSourceSubsampling(factor, factor, 0, 0);
+                return reader.read(0, param);
+            } finally {
+                reader.dispose();
+            }
+        }
+    }
+
+    private static ImageReader firstReader(ImageInputStream stream) {
+        if (stream == null) {
+            return null;
+        }
+        Iterator<ImageReader> readers = ImageIO.getImageReaders(stream);
+        return readers.hasNext() ? readers.next() : null;
+    }
+}
@@ -1,7 +1,6 @@
 import javax.swing.*;
 import java.awt.*;
 import java.awt.image.BufferedImage;
-import javax.imageio.ImageIO;
 import java.io.File;
 import java.io.IOException;
 import java.util.ArrayList;
@@ -13,16 +12,25 @@ import org.knowm.xchart.style.Styler.LegendPosition;
 
 
 public class ImageRecognitionApp extends JFrame {
+    private static final long serialVersionUID = 1L;
+    private static final Log LOG = Log.get("ImageRecognitionApp");
+    private static final Log RESULT_LOG = LOG.every(1000); // ライブ認識ではフレームごとに結果が届くので1秒に1回まで
     private JLabel imageLabel; // 認識対象の画像表示用
     private JScrollPane imageScrollPane; // 画像のスクロールペイン
     private JTextArea resultArea; // 認識結果のテキスト表示
     private JLabel maxLikelihoodLabel; // 最も可能性の高い動物を表示
-    private ImageAnalyzer analyzer; // 画像認識ロジック
-    private CameraHandler cameraHandler; // カメラ操作
-    private BufferedImage currentImage; // 現在の入力画像
+    private transient ImageAnalyzer analyzer; // 画像認識ロジック
+    private transient AnalysisService analysisService; // 認識をEDTの外で実行するサービス
+    private JProgressBar progressBar; // 解析の進捗表示
+    private transient LiveRecognizer liveRecognizer; // カメラ映像を連続で認識するライブモード（停止中はnull）
+    private JToggleButton liveButton; // ライブモードの切り替え
+    private transient CameraHandler cameraHandler; // カメラ操作
+    private transient BufferedImage currentImage; // 現在の入力画像
     private XChartPanel<CategoryChart> chartPanel; // 認識結果のグラフ
     private JScrollPane chartScrollPane; // グラフのスクロールペイン
-    private static final String[] ANIMAL_NAMES = {"犬", "猫", "鳥", "ウサギ", "魚", "馬", "蛇"}; // 認識対象の動物名
+    private List<String> chartNames; // グラフのカテゴリ（動物名の固定順序）
+    private static final String[] ANIMAL_NAMES = ModelCatalog.ANIMAL_NAMES; // 認識対象の動物名
+    private static final int PREVIEW_EDGE = 1280; // 画面表示用の画像の長辺（解析用の画像とは別に縮小する）
 
     // コンストラクタ: UIとモデル画像の初期化
     public ImageRecognitionApp() {
@@ -45,167 +53,207 @@ public class ImageRecognitionApp extends JFrame {
         
         resultArea = new JTextArea(5, 20);
         resultArea.setEditable(false);
+        progressBar = new JProgressBar();
+        progressBar.setStringPainted(true);
+        progressBar.setString("待機中");
         JButton fileButton = new JButton("画像を選択"); // ファイルから画像選択
         JButton cameraButton = new JButton("カメラで撮影"); // カメラから撮影
+        liveButton = new JToggleButton("ライブ認識"); // カメラ映像を連続で認識
 
-        // モデル画像の読み込み（各動物3枚）
-        List<ImageModel> models = new ArrayList<>();
-        String[] animals = {"dog", "cat", "bird", "rabbit", "fish", "horse", "snake"};
-        for (int i = 0; i < animals.length; i++) {
-            for (int j = 1; j <= 3; j++) {
-                String path = "Modelimages/" + animals[i] + "_" + j + ".jpg";
-                File file = new File(path);
-                try {
-                    if (file.exists()) {
-                        BufferedImage img = ImageIO.read(file);
-                        models.add(new ImageModel(img, ANIMAL_NAMES[i]));
-                        //System.out.println("モデル画像を読み込みました: " + path);
-                    } else {
-                        throw new IOException("ファイルが見つかりません: " + path);
-                    }
-                } catch (IOException e) {
-                    System.err.println("モデル画像の読み込みに失敗しました: " + e.getMessage());
-                    resultArea.append("モデル画像の読み込みに失敗: " + path + "\n");
-                }
+        // モデル特徴量の読み込み（コンパイル済みインデックスをメモリマップ。古ければ再生成）
+        try {
+            ModelIndexFile indexFile = ModelIndexFile.loadOrCompile(ModelCatalog.sources(), new File(ModelCatalog.INDEX_FILE));
+            if (indexFile.getFeatures().isEmpty()) {
+                resultArea.setText("モデル画像が1つも読み込めませんでした。プログラムを終了します。");
+                return;
             }
-        }
-
-        if (models.isEmpty()) {
-            resultArea.setText("モデル画像が1つも読み込めませんでした。プログラムを終了します。");
+            analyzer = new ImageAnalyzer(indexFile); // 認識器の初期化
+        } catch (IOException e) {
+            LOG.error("モデルインデックスの読み込みに失敗しました: {}", e.getMessage());
+            resultArea.setText("モデルインデックスの読み込みに失敗しました。プログラムを終了します。");
             return;
         }
-
-        analyzer = new ImageAnalyzer(models); // 認識器の初期化
-        cameraHandler = new CameraHandler(); // カメラハンドラの初期化
+        LOG.info("モデルインデックス読み込み時間: {}ms", Log.fixed(analyzer.getIndexBuildTimeMs(), 1));
+        cameraHandler = new CameraHandler(); // カメラハンドラの初期化（カメラは初めて撮影するときに開く）
+        analysisService = new AnalysisService(analyzer, Integer.getInteger("analysis.workers", 2), PREVIEW_EDGE);
 
         fileButton.addActionListener(e -> loadImageFromFile());
         cameraButton.addActionListener(e -> captureImageFromCamera());
+        liveButton.addActionListener(e -> setLiveMode(liveButton.isSelected()));
 
         JPanel buttonPanel = new JPanel();
         buttonPanel.add(fileButton);
         buttonPanel.add(cameraButton);
+        buttonPanel.add(liveButton);
         add(buttonPanel, BorderLayout.NORTH);
         add(imageScrollPane, BorderLayout.CENTER);
 
         JPanel southPanel = new JPanel(new BorderLayout());
+        southPanel.add(progressBar, BorderLayout.NORTH);
         southPanel.add(new JScrollPane(resultArea), BorderLayout.CENTER);
         southPanel.add(maxLikelihoodLabel, BorderLayout.SOUTH);
         add(southPanel, BorderLayout.SOUTH);
 
         setVisible(true);
-        System.out.println("アプリケーションが初期化されました。");
+        LOG.info("アプリケーションが初期化されました。");
     }
 
-    // loadImageFromFile: ファイルから画像を読み込んで認識
+    // loadImageFromFile: ファイルを選び、デコードと認識はワーカーで行う（処理サイズに近い解像度で直接Matにデコードする）
     private void loadImageFromFile() {
+        setLiveMode(false);
         JFileChooser fileChooser = new JFileChooser();
         if (fileChooser.showOpenDialog(null) == JFileChooser.APPROVE_OPTION) {
-            try {
-                currentImage = ImageIO.read(fileChooser.getSelectedFile());
-                updateImageAndAnalyze();
-            } catch (IOException e) {
-                resultArea.setText("画像の読み込みに失敗しました。");
-            }
+            File file = fileChooser.getSelectedFile();
+            int longEdge = analyzer.getProfile().getLongEdge();
+            analysisService.submit(() -> ImageDecoder.decode(file, longEdge), analysisListener);
         }
     }
 
-    // captureImageFromCamera: カメラから画像を取得して認識
+    // captureImageFromCamera: カメラから画像を取得して認識（カメラを開くのも撮影もワーカーで行う）
     private void captureImageFromCamera() {
-        if (cameraHandler.isRunning()) {
-            currentImage = cameraHandler.captureImage();
-            if (currentImage != null) {
-                updateImageAndAnalyze();
-            } else {
-                resultArea.setText("カメラから画像を取得できませんでした。");
+        setLiveMode(false);
+        analysisService.submit(() -> {
+            if (!cameraHandler.isRunning()) {
+                throw new IllegalStateException("カメラが利用できません。接続を確認してください。");
             }
-        } else {
-            resultArea.setText("カメラが利用できません。接続を確認してください。");
-        }
+            return cameraHandler.captureMat();
+        }, analysisListener);
     }
 
-    // updateImageAndAnalyze: 画像を処理し結果を表示
-    private void updateImageAndAnalyze() {
-        if (currentImage != null) {
-            imageLabel.setIcon(new ImageIcon(currentImage));
-            imageLabel.setText("");
-            String analysisResult = analyzer.analyzeImage(currentImage).replace("最も可能性が高い", "最も可能性の高い動物");
-            System.out.println("解析結果全文: " + analysisResult);
-            resultArea.setText(analysisResult);
-            updateMaxLikelihood(analysisResult);
-            showXChart(analysisResult);
-        } else {
-            imageLabel.setIcon(null);
-            imageLabel.setText("ここに画像が表示されます");
-            resultArea.setText("画像がありません。");
-            maxLikelihoodLabel.setText("最も可能性の高い動物: 未解析");
-            clearChart();
+    // setLiveMode: ライブ認識を開始・停止する（単発の解析とは同時に動かさない）
+    private void setLiveMode(boolean enabled) {
+        liveButton.setSelected(enabled);
+        if (enabled && liveRecognizer == null) {
+            analysisService.cancel();
+            progressBar.setValue(0);
+            progressBar.setString("ライブ認識を開始しています");
+            liveRecognizer = new LiveRecognizer(analyzer, PREVIEW_EDGE, liveListener);
+            liveRecognizer.start();
+        } else if (!enabled && liveRecognizer != null) {
+            liveRecognizer.stop();
+            liveRecognizer = null;
+            progressBar.setString("待機中");
         }
     }
 
-    // updateMaxLikelihood: 最も可能性の高い動物をラベルに表示
-    private void updateMaxLikelihood(String analysisResult) {
-        String[] lines = analysisResult.split("\n");
-        for (String line : lines) {
-            if (line.contains("最も可能性の高い動物")) {
-                maxLikelihoodLabel.setText(line);
-                break;
+    // liveListener: ライブモードからの通知（EDTで届く）
+    private final transient LiveRecognizer.Listener liveListener = new LiveRecognizer.Listener() {
+        @Override
+        public void onFrame(BufferedImage preview) {
+            if (liveRecognizer != null) {
+                currentImage = preview;
+                imageLabel.setIcon(new ImageIcon(currentImage));
+                imageLabel.setText("");
             }
         }
-    }
 
-    // showXChart: 認識結果を棒グラフで表示
-    private void showXChart(String analysisResult) {
-        List<String> names = new ArrayList<>(Arrays.asList(ANIMAL_NAMES)); // 動物名リスト（固定順序）
-        List<Double> values = new ArrayList<>(Collections.nCopies(names.size(), 0.0)); // 初期値0
-        String[] lines = analysisResult.split("\n");
-
-        System.out.println("解析結果の行数: " + lines.length);
-        for (String line : lines) {
-            System.out.println("処理中の行: " + line);
-            if (line.contains(":") && !line.contains("最も可能性の高い動物")) {
-                String[] parts = line.split(": ");
-                if (parts.length == 2) {
-                    try {
-                        String name = parts[0].trim();
-                        String valueStr = parts[1].replace("%", "").trim();
-                        double value = Double.parseDouble(valueStr);
-                        int index = names.indexOf(name);
-                        if (index != -1) {
-                            values.set(index, value);
-                        } else {
-                            System.err.println("未知の動物名: " + name);
-                        }
-                    } catch (NumberFormatException e) {
-                        System.err.println("数値変換エラー: " + parts[1]);
-                    }
-                } else {
-                    System.err.println("不正なフォーマット: " + line);
-                }
+        @Override
+        public void onResult(AnalysisResult fused, String stats) {
+            if (liveRecognizer != null) {
+                progressBar.setValue(progressBar.getMaximum());
+                progressBar.setString(stats);
+                showResult(fused);
             }
         }
 
-        if (names.isEmpty() || values.isEmpty() || names.size() != values.size()) {
-            System.err.println("グラフデータが不正です。names: " + names.size() + ", values: " + values.size());
-            resultArea.append("\nグラフを表示できませんでした: データが不正です。");
+        @Override
+        public void onError(String message) {
+            setLiveMode(false);
+            resultArea.setText(message);
+        }
+    };
+
+    // analysisListener: 解析サービスからの通知（EDTで、最新のリクエストの分だけ届く）
+    private final transient AnalysisService.Listener analysisListener = new AnalysisService.Listener() {
+        @Override
+        public void onImage(BufferedImage preview) {
+            currentImage = preview; // 表示用は解析用とは別の縮小画像
+            imageLabel.setIcon(new ImageIcon(currentImage));
+            imageLabel.setText("");
+        }
+
+        @Override
+        public void onProgress(String stage, int done, int total) {
+            progressBar.setMaximum(Math.max(1, total));
+            progressBar.setValue(done);
+            progressBar.setString(stage + " " + done + "/" + total);
+        }
+
+        @Override
+        public void onResult(AnalysisResult result) {
+            progressBar.setValue(progressBar.getMaximum());
+            progressBar.setString(result.isError() ? "失敗" : String.format("完了 (%.0fms)", result.getTotalTimeMs()));
+            showResult(result);
+        }
+
+        @Override
+        public void onError(String message) {
+            progressBar.setValue(0);
+            progressBar.setString("失敗");
+            resultArea.setText(message);
+        }
+    };
+
+    // showResult: 解析結果をテキスト・ラベル・グラフに反映
+    private void showResult(AnalysisResult result) {
+        if (result.isError()) {
+            resultArea.setText(result.toText());
+            maxLikelihoodLabel.setText("最も可能性の高い動物: 未解析");
             clearChart();
             return;
         }
+        String analysisText = result.toText().replace("最も可能性が高い", "最も可能性の高い動物");
+        RESULT_LOG.debug("解析結果全文: {}", analysisText);
+        RESULT_LOG.info("前処理: {}ms, 特徴抽出: {}ms, マッチング: {}ms", Log.fixed(result.getPrepareTimeMs(), 1),
+                Log.fixed(result.getExtractTimeMs(), 1), Log.fixed(result.getMatchTimeMs(), 1));
+        resultArea.setText(analysisText);
+        updateMaxLikelihood(result);
+        showXChart(result);
+    }
 
+    // updateMaxLikelihood: 最も可能性の高い動物をラベルに表示
+    private void updateMaxLikelihood(AnalysisResult result) {
+        maxLikelihoodLabel.setText("最も可能性の高い動物: **" + result.getTopClass() + "** ("
+                + String.format("%.2f", result.getTopScore()) + "%)");
+    }
+
+    // showXChart: 認識結果を棒グラフで表示（グラフは初回だけ作り、以降は系列の値だけ更新する）
+    private void showXChart(AnalysisResult result) {
+        double[] values = new double[ANIMAL_NAMES.length]; // 動物名の固定順序に並べ替え
         int maxIndex = 0;
-        double maxValue = values.get(0);
-        for (int i = 1; i < values.size(); i++) {
-            if (values.get(i) > maxValue) {
-                maxValue = values.get(i);
+        for (int i = 0; i < ANIMAL_NAMES.length; i++) {
+            int c = result.indexOf(ANIMAL_NAMES[i]);
+            values[i] = c >= 0 && result.isExact(c) ? result.getScores()[c] : 0.0; // カスケードの上限や枝刈りした動物は描かない
+            if (values[i] > values[maxIndex]) {
                 maxIndex = i;
             }
         }
 
-        List<Double> normalValues = new ArrayList<>(values);
-        normalValues.set(maxIndex, 0.0);
-        List<Double> highlightValues = new ArrayList<>(Collections.nCopies(values.size(), 0.0));
-        highlightValues.set(maxIndex, maxValue);
+        List<Double> normalValues = new ArrayList<>(ANIMAL_NAMES.length);
+        List<Double> highlightValues = new ArrayList<>(ANIMAL_NAMES.length);
+        for (int i = 0; i < values.length; i++) {
+            normalValues.add(i == maxIndex ? 0.0 : values[i]);
+            highlightValues.add(i == maxIndex ? values[i] : 0.0);
+        }
+
+        if (chartPanel == null) {
+            createChart();
+        }
+        CategoryChart chart = chartPanel.getChart();
+        chart.updateCategorySeries("その他", chartNames, normalValues, null); // 通常棒
+        chart.updateCategorySeries("最大値", chartNames, highlightValues, null); // 強調棒
+        if (!chartScrollPane.isVisible()) {
+            chartScrollPane.setVisible(true);
+            revalidate();
+        }
+        chartPanel.repaint();
+    }
 
-        int chartWidth = Math.max(400, names.size() * 60);
+    // createChart: 棒グラフとパネルを1回だけ作成してウィンドウに埋め込む
+    private void createChart() {
+        chartNames = Arrays.asList(ANIMAL_NAMES);
+        List<Double> zeros = new ArrayList<>(Collections.nCopies(chartNames.size(), 0.0));
+        int chartWidth = Math.max(400, chartNames.size() * 60);
         CategoryChart chart = new CategoryChartBuilder()
             .width(chartWidth)
             .height(250)
@@ -221,46 +269,41 @@ public class ImageRecognitionApp extends JFrame {
         chart.getStyler().setToolTipsEnabled(true);
         chart.getStyler().setXAxisLabelRotation(45);
 
-        chart.addSeries("その他", names, normalValues).setFillColor(Color.GRAY); // 通常棒
-        chart.addSeries("最大値", names, highlightValues).setFillColor(Color.RED); // 強調棒
-
-        System.out.println("グラフデータ (通常): " + names + " -> " + normalValues);
-        System.out.println("グラフデータ (強調): " + names + " -> " + highlightValues);
-        System.out.println("グラフを準備しました: 項目数=" + names.size() + ", 幅=" + chartWidth);
-
-        if (chartScrollPane != null) {
-            remove(chartScrollPane);
-            chartScrollPane = null;
-            chartPanel = null;
-            System.out.println("前回のグラフをクリアしました。");
-        }
+        chart.addSeries("その他", chartNames, zeros).setFillColor(Color.GRAY); // 通常棒
+        chart.addSeries("最大値", chartNames, zeros).setFillColor(Color.RED); // 強調棒
 
         chartPanel = new XChartPanel<>(chart);
         chartScrollPane = new JScrollPane(chartPanel);
         chartScrollPane.setPreferredSize(new Dimension(500, 250));
         add(chartScrollPane, BorderLayout.EAST);
         revalidate();
-        repaint();
-        System.out.println("グラフをメインウィンドウに埋め込みました。");
+        LOG.info("グラフをメインウィンドウに埋め込みました。");
     }
 
-    // clearChart: グラフをクリア
+    // clearChart: グラフを非表示にする（コンポーネントは次回の表示で再利用）
     private void clearChart() {
-        if (chartScrollPane != null) {
-            remove(chartScrollPane);
-            chartScrollPane = null;
-            chartPanel = null;
+        if (chartScrollPane != null && chartScrollPane.isVisible()) {
+            chartScrollPane.setVisible(false);
             revalidate();
             repaint();
-            System.out.println("グラフをクリアしました。");
+            RESULT_LOG.info("グラフをクリアしました。");
         }
     }
 
     @Override
     public void dispose() {
+        if (liveRecognizer != null) {
+            liveRecognizer.stop();
+        }
+        if (analysisService != null) {
+            analysisService.shutdown();
+        }
         if (cameraHandler != null) {
             cameraHandler.release();
         }
+        if (analyzer != null) {
+            analyzer.shutdown();
+        }
         super.dispose();
     }
 
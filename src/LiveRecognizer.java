@@ -0,0 +1,301 @@
+import org.opencv.core.*;
+import org.opencv.imgproc.Imgproc;
+import javax.swing.SwingUtilities;
+import java.awt.image.BufferedImage;
+import java.util.ArrayDeque;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * カメラ映像を連続で認識するライブモード。
+ * 取り込んだフレームは縮小画像のフレーム差分で変化を調べ、ほとんど変わっていなければ解析しない。
+ * 解析対象は古いものから捨てる長さ1のキューに入れるので、認識が遅くても取り込みは止まらない。
+ * 動物ごとの類似度は直近の数回分を平均して表示し、1回ごとのぶれを抑える。
+ * 表示用の縮小画像は使い回す2枚に交互に書き、EDTが前の1枚を受け取るまで次は作らない。
+ */
+public class LiveRecognizer {
+    private static final Log LOG = Log.get("LiveRecognizer");
+    private static final Log FRAME_LOG = LOG.every(1000); // フレームごとのエラーは1秒に1回まで
+    private static final int MOTION_WIDTH = 64; // フレーム差分を取る縮小画像のサイズ
+    private static final int MOTION_HEIGHT = 48;
+    private static final double MOTION_THRESHOLD = Double.parseDouble(System.getProperty("live.motionThreshold", "6.0")); // 平均輝度差（0〜255）
+    private static final long REFRESH_MS = 2000; // 変化がなくてもこの間隔で解析し直す
+    private static final int WINDOW = Integer.getInteger("live.window", 5); // 類似度を平均する解析回数
+    private static final long PREVIEW_INTERVAL_MS = 66; // 画面表示の更新間隔（約15fps）
+    private static final long FRAME_TIMEOUT_MS = 2000;
+
+    private final ImageAnalyzer analyzer;
+    private final Listener listener;
+    private final int previewEdge;
+    private final BlockingQueue<Mat> pending = new ArrayBlockingQueue<>(1); // 解析待ちのフレーム（古いものから捨てる）
+    private final AtomicBoolean previewPending = new AtomicBoolean(); // EDTにまだ渡っていない表示画像がある
+    private MatImageBridge previewFront = new MatImageBridge(); // EDTに渡した表示画像（取り込みスレッドだけが入れ替える）
+    private MatImageBridge previewBack = new MatImageBridge(); // 次に書き込む表示画像
+    private final ArrayDeque<AnalysisResult> window = new ArrayDeque<>(); // 直近の解析結果（解析スレッドだけが触る）
+    private String[] windowNames; // windowの並び順
+    private volatile CameraBroker camera; // 取り込みスレッドが取得する共有カメラ
+    private Thread pumpThread;
+    private Thread analysisThread;
+    private volatile boolean running;
+    private volatile long skipped; // 変化がないため解析しなかったフレーム数
+    private volatile long dropped; // 解析が追いつかず捨てたフレーム数
+    private long analyzedWindowStart; // 解析FPSの計測区間
+    private int analyzedWindowFrames;
+    private double analyzedFps;
+
+    // Listener: EDTで呼ばれる通知先
+    public interface Listener {
+        void onFrame(BufferedImage preview);
+
+        void onResult(AnalysisResult fused, String stats);
+
+        void onError(String message);
+    }
+
+    public LiveRecognizer(ImageAnalyzer analyzer, int previewEdge, Listener listener) {
+        this.analyzer = analyzer;
+        this.previewEdge = previewEdge;
+        this.listener = listener;
+    }
+
+    // start: 共有カメラを取得して取り込み・解析のスレッドを開始する
+    public synchronized void start() {
+        if (running) {
+            return;
+        }
+        running = true;
+        pumpThread = new Thread(this::pumpLoop, "live-pump");
+        analysisThread = new Thread(this::analysisLoop, "live-analysis");
+        pumpThread.setDaemon(true);
+        analysisThread.setDaemon(true);
+        pumpThread.start();
+        analysisThread.start();
+    }
+
+    // stop: スレッドに停止を伝える（EDTから呼ばれるので待たない）。終了待ちと後片付けは別スレッドで行い、
+    // カメラは取り込みスレッドが終わるときに手放す。停止後の通知は届かない
+    public synchronized void stop() {
+        if (!running) {
+            return;
+        }
+        running = false;
+        Thread pump = pumpThread;
+        Thread analysis = analysisThread;
+        pump.interrupt();
+        analysis.interrupt();
+        Thread cleanup = new Thread(() -> {
+            try {
+                pump.join();
+                analysis.join();
+            } catch (InterruptedException e) {
+                return;
+            }
+            Mat left;
+            while ((left = pending.poll()) != null) {
+                MatPool.recycle(left);
+            }
+        }, "live-stop");
+        cleanup.setDaemon(true);
+        cleanup.start();
+    }
+
+    public boolean isRunning() {
+        return running;
+    }
+
+    // pumpLoop: 新しいフレームごとに表示を更新し、変化があれば解析キューに入れる
+    private void pumpLoop() {
+        camera = CameraBroker.acquire(0);
+        Mat frame = new Mat();
+        Mat previous = new Mat(MOTION_HEIGHT, MOTION_WIDTH, CvType.CV_8UC1);
+        try (MatArena arena = new MatArena()) {
+            arena.track(frame);
+            arena.track(previous);
+            Mat small = arena.acquire(MOTION_HEIGHT, MOTION_WIDTH, CvType.CV_8UC1);
+            Mat smallColor = arena.mat();
+            Mat diff = arena.mat();
+            Mat previewMat = arena.mat();
+            if (!camera.isRunning()) {
+                publishError("カメラが利用できません。接続を確認してください。");
+                return;
+            }
+            long seq = 0;
+            long lastAnalyzed = 0;
+            long lastPreview = 0;
+            boolean hasPrevious = false;
+            while (running) {
+                seq = camera.awaitFrame(frame, seq, FRAME_TIMEOUT_MS);
+                if (seq == 0) {
+                    if (running) {
+                        publishError("カメラからフレームを取得できません。");
+                    }
+                    return;
+                }
+                long now = System.currentTimeMillis();
+                if (now - lastPreview >= PREVIEW_INTERVAL_MS && previewPending.compareAndSet(false, true)) {
+                    BufferedImage preview = preview(frame, previewMat);
+                    SwingUtilities.invokeLater(() -> {
+                        previewPending.set(false);
+                        if (running) {
+                            listener.onFrame(preview);
+                        }
+                    });
+                    lastPreview = now;
+                }
+
+                // 縮小したグレー画像の平均輝度差で変化を判定する（1フレーム数十マイクロ秒）
+                Imgproc.resize(frame, smallColor, small.size(), 0, 0, Imgproc.INTER_AREA);
+                Imgproc.cvtColor(smallColor, small, Imgproc.COLOR_BGR2GRAY);
+                double motion = Double.MAX_VALUE;
+                if (hasPrevious) {
+                    Core.absdiff(small, previous, diff);
+                    motion = Core.mean(diff).val[0];
+                }
+                if (motion < MOTION_THRESHOLD && now - lastAnalyzed < REFRESH_MS) {
+                    skipped++;
+                    continue;
+                }
+                small.copyTo(previous); // 解析したフレームを次の比較の基準にする
+                hasPrevious = true;
+                lastAnalyzed = now;
+                enqueue(frame);
+            }
+        } finally {
+            camera.release();
+        }
+    }
+
+    // preview: 表示用に長辺previewEdgeまで縮小し、EDTが表示していない方の画像に書いて返す
+    private BufferedImage preview(Mat frame, Mat previewMat) {
+        Mat source = frame;
+        int edge = Math.max(frame.cols(), frame.rows());
+        if (edge > previewEdge) {
+            double scale = (double) previewEdge / edge;
+            Imgproc.resize(frame, previewMat, new Size(Math.max(1, Math.round(frame.cols() * scale)),
+                    Math.max(1, Math.round(frame.rows() * scale))), 0, 0, Imgproc.INTER_AREA);
+            source = previewMat;
+        }
+        BufferedImage image = previewBack.toBufferedImage(source); // 同じサイズなら前回の画像に上書きされる
+        MatImageBridge shown = previewFront;
+        previewFront = previewBack;
+        previewBack = shown;
+        return image;
+    }
+
+    // enqueue: 解析待ちに入れる。前のフレームが残っていれば捨てて入れ替える
+    private void enqueue(Mat frame) {
+        Mat copy = MatPool.acquire(frame.rows(), frame.cols(), frame.type());
+        frame.copyTo(copy);
+        while (!pending.offer(copy)) {
+            Mat stale = pending.poll();
+            if (stale != null) {
+                MatPool.recycle(stale);
+                dropped++;
+            }
+        }
+    }
+
+    // analysisLoop: キューのフレームを認識し、直近の結果と平均して通知する
+    private void analysisLoop() {
+        analyzedWindowStart = System.nanoTime();
+        while (running) {
+            Mat frame;
+            try {
+                frame = pending.poll(200, TimeUnit.MILLISECONDS);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (frame == null) {
+                continue;
+            }
+            AnalysisResult result;
+            try {
+                result = analyzer.analyzeMat(frame);
+            } catch (RuntimeException e) {
+                // 1フレームの失敗でライブモードを止めない
+                FRAME_LOG.error("フレームの解析に失敗しました", e);
+                continue;
+            } finally {
+                MatPool.recycle(frame);
+            }
+            if (result.isError()) {
+                publishError(result.getError());
+                continue;
+            }
+            AnalysisResult fused = fuse(result);
+            String stats = stats();
+            SwingUtilities.invokeLater(() -> {
+                if (running) {
+                    listener.onResult(fused, stats);
+                }
+            });
+        }
+    }
+
+    // fuse: 直近WINDOW回分の類似度を動物ごとに平均した結果を作る（計測時間は今回の値）。
+    // カスケードで枝刈り・打ち切りした回の値は類似度ではないので、動物ごとにEXACTだった回だけで平均する。
+    // 1回もEXACTでなかった動物は今回の種類・上限・値をそのまま引き継ぐ
+    private AnalysisResult fuse(AnalysisResult result) {
+        String[] names = result.getClassNames();
+        if (windowNames != names) {
+            window.clear(); // インデックスが差し替えられたら平均をやり直す
+            windowNames = names;
+        }
+        window.addLast(result);
+        while (window.size() > WINDOW) {
+            window.removeFirst();
+        }
+        double[] fused = new double[names.length];
+        AnalysisResult.ScoreKind[] kinds = new AnalysisResult.ScoreKind[names.length];
+        double[] upperBounds = new double[names.length];
+        for (int c = 0; c < fused.length; c++) {
+            double sum = 0;
+            int exact = 0;
+            for (AnalysisResult frame : window) {
+                if (frame.isExact(c)) {
+                    sum += frame.getScores()[c];
+                    exact++;
+                }
+            }
+            if (exact > 0) {
+                fused[c] = sum / exact;
+                kinds[c] = AnalysisResult.ScoreKind.EXACT;
+                upperBounds[c] = Double.NaN;
+            } else {
+                fused[c] = result.getScores()[c];
+                kinds[c] = result.getScoreKind(c);
+                upperBounds[c] = result.getUpperBound(c);
+            }
+        }
+
+        analyzedWindowFrames++;
+        long now = System.nanoTime();
+        if (now - analyzedWindowStart >= 1_000_000_000L) {
+            analyzedFps = analyzedWindowFrames * 1e9 / (now - analyzedWindowStart);
+            analyzedWindowStart = now;
+            analyzedWindowFrames = 0;
+        }
+        AnalysisResult fusedResult = new AnalysisResult(names, fused, result.getPrepareTimeMs(), result.getExtractTimeMs(), result.getMatchTimeMs());
+        fusedResult.setEngine(result.getEngine());
+        fusedResult.setRecall(result.getRecall());
+        if (result.getCascade() != null) {
+            fusedResult.setCascade(result.getCascade(), result.getModelsTotal(), result.getModelsEvaluated(),
+                    result.getModelsEarlyStopped(), kinds, upperBounds);
+        }
+        return fusedResult;
+    }
+
+    // stats: 取り込みFPSと解析FPS、スキップ・破棄したフレーム数
+    private String stats() {
+        return String.format(Locale.ROOT, "取り込み %.1f fps / 解析 %.1f fps（変化なしでスキップ %d, 破棄 %d, 平均 %d回）",
+                camera == null ? 0.0 : camera.getCapturedFps(), analyzedFps, skipped, dropped, window.size());
+    }
+
+    private void publishError(String message) {
+        SwingUtilities.invokeLater(() -> listener.onError(message));
+    }
+}
@@ -0,0 +1,362 @@
+import java.io.PrintStream;
+import java.time.Instant;
+import java.time.LocalTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.concurrent.locks.LockSupport;
+
+
+/**
+ * レベル付きの非同期ログ。コンポーネントごとにLog.get("FaceLogin")でロガーを取り、
+ * 記録はロックなしのリングバッファに入れるだけで、コンソールへの出力は専用スレッドが行う。
+ * 有効なレベル未満の呼び出しはレベルの比較だけで戻る（メッセージの組み立ても行わない）。
+ * フレームごとに出るメッセージは every で間隔を指定すると、同じメッセージは間隔ごとに1回だけ出し、省略した件数を添える。
+ * バッファがあふれたときは記録を捨てる（呼び出し側を待たせない）。
+ *
+ *   private static final Log LOG = Log.get("FaceLogin");
+ *   private static final Log FRAME_LOG = LOG.every(1000);
+ *   LOG.info("カメラが正常に開きました");
+ *   FRAME_LOG.debug("顔を検出しました: {}件", faces.length);
+ *
+ * レベルは -Dlog.level=debug|info|warn|error|off（既定info）、コンポーネントごとに -Dlog.level.FaceLogin=debug で変えられる。
+ */
+public final class Log {
+    public enum Level { DEBUG, INFO, WARN, ERROR, OFF }
+
+    private static final int CAPACITY = 8192; // リングバッファの長さ（2のべき乗）
+    private static final long IDLE_PARK_NANOS = TimeUnit.SECONDS.toNanos(1); // バッファが空のときに待つ上限（通常は書き込み側が起こす）
+    private static final Level DEFAULT_LEVEL = parseLevel(System.getProperty("log.level"), Level.INFO);
+    private static final DateTimeFormatter TIME = DateTimeFormatter.ofPattern("HH:mm:ss.SSS");
+
+    private static final Object[] NO_ARGS = new Object[0];
+    private static final Map<String, Log> LOGGERS = new ConcurrentHashMap<>();
+    private static final Map<String, Log> THROTTLED = new ConcurrentHashMap<>(); // "コンポーネント@間隔" ごとの every のロガー
+    private static final AtomicReferenceArray<Record> SLOTS = new AtomicReferenceArray<>(CAPACITY);
+    private static final AtomicLongArray SEQUENCES = new AtomicLongArray(CAPACITY); // スロットが書き込み可能になる通し番号
+    private static final AtomicLong TAIL = new AtomicLong(); // 次に書き込む通し番号
+    private static final AtomicLong DROPPED = new AtomicLong(); // あふれて捨てた件数
+    private static long head; // 次に出力する通し番号（出力スレッドだけが触る）
+    private static final AtomicBoolean WRITER_IDLE = new AtomicBoolean(); // 出力スレッドが眠っている（起こす必要がある）か
+    private static volatile boolean allToStandardError; // trueならINFO以下も標準エラーへ出す
+    private static final Thread WRITER;
+
+    static {
+        for (int i = 0; i < CAPACITY; i++) {
+            SEQUENCES.set(i, i);
+        }
+        WRITER = new Thread(Log::writeLoop, "log-writer");
+        WRITER.setDaemon(true);
+        WRITER.start();
+        Runtime.getRuntime().addShutdownHook(new Thread(Log::flush, "log-flush"));
+    }
+
+    private final String component;
+    private final int threshold;
+    private final long interval; // 0でなければ同じメッセージをこの間隔(ms)に1回だけ出す
+    private final Map<String, long[]> lastEmitted; // メッセージごとの [最後に出した時刻, 省略した件数]
+
+    // Record: 出力待ちの1件
+    private static final class Record {
+        final long time;
+        final Level level;
+        final String thread;
+        final String component;
+        final String message;
+        final Throwable error;
+
+        Record(Level level, String component, String message, Throwable error) {
+            this.time = System.currentTimeMillis();
+            this.level = level;
+            this.thread = Thread.currentThread().getName();
+            this.component = component;
+            this.message = message;
+            this.error = error;
+        }
+    }
+
+    private Log(String component, int threshold, long interval, Map<String, long[]> lastEmitted) {
+        this.component = component;
+        this.threshold = threshold;
+        this.interval = interval;
+        this.lastEmitted = lastEmitted;
+    }
+
+    // get: コンポーネントのロガーを返す（同じ名前なら同じインスタンス）
+    public static Log get(String component) {
+        return LOGGERS.computeIfAbsent(component, name -> {
+            Level level = parseLevel(System.getProperty("log.level." + name), DEFAULT_LEVEL);
+            return new Log(name, level.ordinal(), 0, null);
+        });
+    }
+
+    // every: 同じメッセージを intervalMs に1回だけ出すロガー（フレームごとのメッセージ用。
+    // コンポーネントと間隔が同じなら同じインスタンスを返すので、呼び出しごとに取っても間引きは効くが、static finalで持つほうが速い）
+    public Log every(long intervalMs) {
+        return THROTTLED.computeIfAbsent(component + "@" + intervalMs,
+                key -> new Log(component, threshold, intervalMs, new ConcurrentHashMap<>()));
+    }
+
+    public boolean isEnabled(Level level) {
+        return level.ordinal() >= threshold;
+    }
+
+    public boolean isDebugEnabled() {
+        return isEnabled(Level.DEBUG);
+    }
+
+    // debug / info / warn / error: 引数の数ごとに用意し、無効なレベルでは配列も作らずに戻る
+    public void debug(String message) {
+        if (Level.DEBUG.ordinal() >= threshold) {
+            log(Level.DEBUG, message, NO_ARGS, null);
+        }
+    }
+
+    public void debug(String pattern, Object arg) {
+        if (Level.DEBUG.ordinal() >= threshold) {
+            log(Level.DEBUG, pattern, new Object[] {arg}, null);
+        }
+    }
+
+    public void debug(String pattern, Object arg1, Object arg2) {
+        if (Level.DEBUG.ordinal() >= threshold) {
+            log(Level.DEBUG, pattern, new Object[] {arg1, arg2}, null);
+        }
+    }
+
+    public void debug(String pattern, Object... args) {
+        if (Level.DEBUG.ordinal() >= threshold) {
+            log(Level.DEBUG, pattern, args, null);
+        }
+    }
+
+    public void info(String message) {
+        if (Level.INFO.ordinal() >= threshold) {
+            log(Level.INFO, message, NO_ARGS, null);
+        }
+    }
+
+    public void info(String pattern, Object arg) {
+        if (Level.INFO.ordinal() >= threshold) {
+            log(Level.INFO, pattern, new Object[] {arg}, null);
+        }
+    }
+
+    public void info(String pattern, Object arg1, Object arg2) {
+        if (Level.INFO.ordinal() >= threshold) {
+            log(Level.INFO, pattern, new Object[] {arg1, arg2}, null);
+        }
+    }
+
+    public void info(String pattern, Object... args) {
+        if (Level.INFO.ordinal() >= threshold) {
+            log(Level.INFO, pattern, args, null);
+        }
+    }
+
+    public void warn(String message) {
+        if (Level.WARN.ordinal() >= threshold) {
+            log(Level.WARN, message, NO_ARGS, null);
+        }
+    }
+
+    public void warn(String pattern, Object arg) {
+        if (Level.WARN.ordinal() >= threshold) {
+            log(Level.WARN, pattern, new Object[] {arg}, null);
+        }
+    }
+
+    public void warn(String pattern, Object arg1, Object arg2) {
+        if (Level.WARN.ordinal() >= threshold) {
+            log(Level.WARN, pattern, new Object[] {arg1, arg2}, null);
+        }
+    }
+
+    public void warn(String pattern, Object... args) {
+        if (Level.WARN.ordinal() >= threshold) {
+            log(Level.WARN, pattern, args, null);
+        }
+    }
+
+    public void error(String message) {
+        if (Level.ERROR.ordinal() >= threshold) {
+            log(Level.ERROR, message, NO_ARGS, null);
+        }
+    }
+
+    public void error(String pattern, Object arg) {
+        if (Level.ERROR.ordinal() >= threshold) {
+            log(Level.ERROR, pattern, new Object[] {arg}, null);
+        }
+    }
+
+    public void error(String pattern, Object arg1, Object arg2) {
+        if (Level.ERROR.ordinal() >= threshold) {
+            log(Level.ERROR, pattern, new Object[] {arg1, arg2}, null);
+        }
+    }
+
+    public void error(String pattern, Object... args) {
+        if (Level.ERROR.ordinal() >= threshold) {
+            log(Level.ERROR, pattern, args, null);
+        }
+    }
+
+    // error: 例外のスタックトレースも出力する
+    public void error(String message, Throwable error) {
+        if (Level.ERROR.ordinal() >= threshold) {
+            log(Level.ERROR, message, NO_ARGS, error);
+        }
+    }
+
+    public void error(String pattern, Object arg, Throwable error) {
+        if (Level.ERROR.ordinal() >= threshold) {
+            log(Level.ERROR, pattern, new Object[] {arg}, error);
+        }
+    }
+
+    // fixed: 小数点以下 digits 桁で出す引数（{} に埋め込むときだけ整形する）
+    public static Object fixed(double value, int digits) {
+        return new Object() {
+            @Override
+            public String toString() {
+                return String.format(Locale.ROOT, "%." + digits + "f", value);
+            }
+        };
+    }
+
+    private void log(Level level, String pattern, Object[] args, Throwable error) {
+        String suffix = "";
+        if (interval > 0) {
+            long now = System.currentTimeMillis();
+            long[] state = lastEmitted.computeIfAbsent(pattern, key -> new long[] {Long.MIN_VALUE / 2, 0});
+            synchronized (state) {
+                if (now - state[0] < interval) {
+                    state[1]++;
+                    return;
+                }
+                if (state[1] > 0) {
+                    suffix = "（同じメッセージを" + state[1] + "件省略）";
+                }
+                state[0] = now;
+                state[1] = 0;
+            }
+        }
+        enqueue(new Record(level, component, format(pattern, args) + suffix, error));
+    }
+
+    // format: パターン中の {} を引数で順に置き換える
+    private static String format(String pattern, Object[] args) {
+        if (args.length == 0) {
+            return pattern;
+        }
+        StringBuilder sb = new StringBuilder(pattern.length() + 16 * args.length);
+        int arg = 0;
+        int start = 0;
+        int index;
+        while (arg < args.length && (index = pattern.indexOf("{}", start)) >= 0) {
+            sb.append(pattern, start, index).append(args[arg++]);
+            start = index + 2;
+        }
+        return sb.append(pattern, start, pattern.length()).toString();
+    }
+
+    // enqueue: リングバッファの空きスロットを取って書き込む（満杯なら捨てる）
+    private static void enqueue(Record record) {
+        while (true) {
+            long tail = TAIL.get();
+            int slot = (int) (tail & (CAPACITY - 1));
+            long sequence = SEQUENCES.get(slot);
+            if (sequence < tail) {
+                DROPPED.incrementAndGet(); // 出力スレッドが1周遅れている
+                return;
+            }
+            if (sequence == tail && TAIL.compareAndSet(tail, tail + 1)) {
+                SLOTS.set(slot, record);
+                SEQUENCES.set(slot, tail + 1); // 出力スレッドに公開する
+                if (WRITER_IDLE.get() && WRITER_IDLE.compareAndSet(true, false)) {
+                    LockSupport.unpark(WRITER); // 眠っているときだけ起こす（起きている間は記録ごとに起こさない）
+                }
+                return;
+            }
+        }
+    }
+
+    // writeLoop: バッファの記録を順に出力し、空になったら書き込み側に起こされるまで眠る
+    private static void writeLoop() {
+        while (true) {
+            if (drain()) {
+                continue;
+            }
+            WRITER_IDLE.set(true);
+            if (drain()) { // フラグを立てる前に公開された記録は、書き込み側が起こさないのでここで拾う
+                WRITER_IDLE.set(false);
+                continue;
+            }
+            LockSupport.parkNanos(IDLE_PARK_NANOS); // 時間切れでも起きるので、あふれた件数の警告は遅くとも1秒で出る
+            WRITER_IDLE.set(false);
+        }
+    }
+
+    // drain: 出力できる記録をすべて出力する（1件もなければfalse）
+    private static synchronized boolean drain() {
+        boolean wrote = false;
+        while (true) {
+            int slot = (int) (head & (CAPACITY - 1));
+            if (SEQUENCES.get(slot) != head + 1) {
+                break;
+            }
+            Record record = SLOTS.getAndSet(slot, null);
+            SEQUENCES.set(slot, head + CAPACITY); // 次の周回で書き込めるようにする
+            head++;
+            write(record);
+            wrote = true;
+        }
+        long dropped = DROPPED.getAndSet(0);
+        if (dropped > 0) {
+            System.err.println(TIME.format(LocalTime.now()) + " WARN  [log-writer] Log: バッファがあふれたため" + dropped + "件を破棄しました");
+        }
+        if (wrote) {
+            System.out.flush();
+        }
+        return wrote;
+    }
+
+    private static void write(Record record) {
+        PrintStream out = allToStandardError || record.level.ordinal() >= Level.WARN.ordinal() ? System.err : System.out;
+        LocalTime time = LocalTime.ofInstant(Instant.ofEpochMilli(record.time), ZoneId.systemDefault());
+        out.println(TIME.format(time) + " " + String.format(Locale.ROOT, "%-5s", record.level)
+                + " [" + record.thread + "] " + record.component + ": " + record.message);
+        if (record.error != null) {
+            record.error.printStackTrace(out);
+        }
+    }
+
+    // useStandardErrorOnly: すべてのレベルを標準エラーへ出す（標準出力に結果を書くバッチ処理用）
+    public static void useStandardErrorOnly() {
+        allToStandardError = true;
+    }
+
+    // flush: 残っている記録を出力する（終了時に呼ばれる）
+    public static void flush() {
+        drain();
+    }
+
+    private static Level parseLevel(String value, Level fallback) {
+        if (value == null) {
+            return fallback;
+        }
+        try {
+            return Level.valueOf(value.trim().toUpperCase(Locale.ROOT));
+        } catch (IllegalArgumentException e) {
+            return fallback;
+        }
+    }
+}
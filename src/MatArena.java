@@ -0,0 +1,75 @@
+import org.opencv.core.Mat;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * 一時的なMatの寿命をスコープで管理するアリーナ。try-with-resourcesで使う。
+ * アリーナから得たMatはcloseでまとめて解放し、プール由来のものはMatPoolへ返す。
+ * ファイナライザ任せにせず、フレームやリクエストの終わりにネイティブメモリを確実に返すためのもの。
+ *
+ *   try (MatArena arena = new MatArena()) {
+ *       Mat gray = arena.acquire(rows, cols, CvType.CV_8UC1);
+ *       MatOfRect faces = arena.track(new MatOfRect());
+ *       ...
+ *   }
+ *
+ * インスタンスはスレッドセーフではない（作ったスレッドの中だけで使うこと）。
+ */
+public class MatArena implements AutoCloseable {
+    private final List<Mat> owned = new ArrayList<>(); // closeで解放するMat
+    private final List<Mat> pooled = new ArrayList<>(); // closeでプールへ返すMat
+
+    // mat: 空のMatを作って管理下に置く（出力先やマスク用）
+    public Mat mat() {
+        return track(new Mat());
+    }
+
+    // track: 作成済みのMat（MatOfKeyPointやsubmatなど）を管理下に置く
+    public <T extends Mat> T track(T mat) {
+        owned.add(mat);
+        MatPool.opened();
+        return mat;
+    }
+
+    // acquire: プールから作業用のMatを借りる（closeで返却される）
+    public Mat acquire(int rows, int cols, int type) {
+        Mat mat = MatPool.acquire(rows, cols, type);
+        pooled.add(mat);
+        return mat;
+    }
+
+    // detach: スコープの外へ渡すMatを管理下から外す（以後の解放は呼び出し側が行う）
+    public <T extends Mat> T detach(T mat) {
+        if (removeSame(owned, mat)) {
+            MatPool.closed();
+        } else {
+            removeSame(pooled, mat); // プール由来のものは呼び出し側がMatPool.recycleで返す
+        }
+        return mat;
+    }
+
+    @Override
+    public void close() {
+        // 後から作ったもの（submatなど）から先に解放する
+        for (int i = owned.size() - 1; i >= 0; i--) {
+            owned.get(i).release();
+            MatPool.closed();
+        }
+        for (int i = pooled.size() - 1; i >= 0; i--) {
+            MatPool.recycle(pooled.get(i));
+        }
+        owned.clear();
+        pooled.clear();
+    }
+
+    private static boolean removeSame(List<Mat> mats, Mat mat) {
+        for (int i = mats.size() - 1; i >= 0; i--) {
+            if (mats.get(i) == mat) {
+                mats.remove(i);
+                return true;
+            }
+        }
+        return false;
+    }
+}
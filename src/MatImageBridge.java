@@ -0,0 +1,115 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.imgproc.Imgproc;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferByte;
+
+
+/**
+ * OpenCVのMatとBufferedImageの相互変換をまとめたクラス。
+ * チャンネル順はここで一元管理し、Mat側は常にOpenCV標準のBGR（またはグレースケール1ch）とする。
+ *
+ * TYPE_3BYTE_BGR / TYPE_BYTE_GRAY の画像はDataBufferByteの配列を直接読み書きするため1回のコピーで済む
+ * （グレースケールの画像をMatにするときは、コピーした1chをcvtColorでBGRに広げる）。それ以外の画像は作業用画像に描き直す。
+ * 同じサイズのフレームが続く場合は変換先の画像と作業用バッファを使い回す。
+ * インスタンスはスレッドセーフではないので、カメラループやワーカースレッドごとに1つ持つこと。
+ */
+public class MatImageBridge {
+    private BufferedImage reusableImage; // toBufferedImageで使い回す変換先
+    private BufferedImage scratchImage; // BGR以外の画像をBGRに描き直すための作業用画像
+
+    // toMat: BufferedImageをBGRのMatに変換（dstのサイズと型が合えばそのまま再利用）
+    public Mat toMat(BufferedImage image, Mat dst) {
+        if (image.getType() == BufferedImage.TYPE_BYTE_GRAY && isPacked(image, 1)) {
+            Mat gray = MatPool.acquire(image.getHeight(), image.getWidth(), CvType.CV_8UC1); // BGRに広げる前の1ch
+            try {
+                gray.put(0, 0, ((DataBufferByte) image.getRaster().getDataBuffer()).getData());
+                Imgproc.cvtColor(gray, dst, Imgproc.COLOR_GRAY2BGR);
+            } finally {
+                MatPool.recycle(gray);
+            }
+            return dst;
+        }
+        BufferedImage bgr = asBgr(image);
+        byte[] pixels = ((DataBufferByte) bgr.getRaster().getDataBuffer()).getData();
+        dst.create(bgr.getHeight(), bgr.getWidth(), CvType.CV_8UC3);
+        dst.put(0, 0, pixels);
+        return dst;
+    }
+
+    public Mat toMat(BufferedImage image) {
+        return toMat(image, new Mat());
+    }
+
+    // toBufferedImage: MatをBufferedImageに変換（同じサイズなら前回の画像に上書きする）
+    public BufferedImage toBufferedImage(Mat mat) {
+        int type = imageType(mat);
+        if (reusableImage == null || reusableImage.getWidth() != mat.cols()
+                || reusableImage.getHeight() != mat.rows() || reusableImage.getType() != type) {
+            reusableImage = new BufferedImage(mat.cols(), mat.rows(), type);
+        }
+        copyInto(mat, reusableImage);
+        return reusableImage;
+    }
+
+    // toNewBufferedImage: 呼び出し側が保持し続ける画像用に、新しいBufferedImageへ変換する
+    public static BufferedImage toNewBufferedImage(Mat mat) {
+        BufferedImage image = new BufferedImage(mat.cols(), mat.rows(), imageType(mat));
+        copyInto(mat, image);
+        return image;
+    }
+
+    // copyInto: Matの画素を画像のバッファへ直接コピー（中間配列なし）
+    private static void copyInto(Mat mat, BufferedImage image) {
+        byte[] target = ((DataBufferByte) image.getRaster().getDataBuffer()).getData();
+        if (mat.isContinuous()) {
+            mat.get(0, 0, target);
+            return;
+        }
+        Mat continuous = mat.clone(); // ROIなど行が飛び飛びのMatは一度詰め直す
+        try {
+            continuous.get(0, 0, target);
+        } finally {
+            continuous.release();
+        }
+    }
+
+    private static int imageType(Mat mat) {
+        if (mat.type() == CvType.CV_8UC1) {
+            return BufferedImage.TYPE_BYTE_GRAY;
+        }
+        if (mat.type() == CvType.CV_8UC3) {
+            return BufferedImage.TYPE_3BYTE_BGR;
+        }
+        throw new IllegalArgumentException("未対応のMatの型です: " + CvType.typeToString(mat.type()));
+    }
+
+    // isPacked: 画素が1枚のbyte配列に隙間なく並んでいる（部分画像でない）か
+    private static boolean isPacked(BufferedImage image, int channels) {
+        if (!(image.getRaster().getDataBuffer() instanceof DataBufferByte) || image.getRaster().getParent() != null) {
+            return false;
+        }
+        return ((DataBufferByte) image.getRaster().getDataBuffer()).getData().length == image.getWidth() * image.getHeight() * channels;
+    }
+
+    // asBgr: TYPE_3BYTE_BGRならそのまま返し、それ以外は作業用画像に描き直す
+    private BufferedImage asBgr(BufferedImage image) {
+        if (image.getType() == BufferedImage.TYPE_3BYTE_BGR && isPacked(image, 3)) {
+            return image;
+        }
+        if (scratchImage == null || scratchImage.getWidth() != image.getWidth() || scratchImage.getHeight() != image.getHeight()) {
+            scratchImage = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_3BYTE_BGR);
+        }
+        Graphics2D g = scratchImage.createGraphics();
+        if (image.getColorModel().hasAlpha()) {
+            // 透明な部分に前のフレームが残らないよう、新しい画像と同じ黒で塗りつぶしてから描く
+            g.setBackground(Color.BLACK);
+            g.clearRect(0, 0, image.getWidth(), image.getHeight());
+        }
+        g.drawImage(image, 0, 0, null);
+        g.dispose();
+        return scratchImage;
+    }
+}
@@ -0,0 +1,177 @@
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+
+/**
+ * 同じサイズと型の作業用Matをフレームやリクエストをまたいで使い回すプール。
+ * 毎回ネイティブメモリを確保・解放せず、返却されたMatを次のacquireで渡す。
+ * プールのMatは確保したときのサイズと型のまま使うこと（OpenCVが作り直すと統計がずれる）。
+ * 待機中のMatは合計バイト数とサイズ・型の種類数に上限があり、超えたら最も長く使われていない種類から解放する
+ * （バッチ処理のように入力ごとにサイズが違っても、待機中のネイティブメモリが増え続けない）。
+ *
+ * 生存中のMat数とネイティブメモリ量を数えているので、リークの確認に使える。
+ * outstandingMats: acquireやMatArenaで渡したまま返却・解放されていないMatの数
+ * liveBytes: プールが確保したネイティブメモリ（使用中 + 待機中）のバイト数。
+ *            MatArena.trackやnew Matで直接作ったMatは、確保後にOpenCVがサイズを決めるため数えない（outstandingMatsには入る）
+ */
+public class MatPool {
+    private static final int MAX_IDLE_PER_SHAPE = 4; // サイズと型ごとに待機させておく最大数
+    private static final int MAX_IDLE_SHAPES = Integer.getInteger("matpool.maxIdleShapes", 32); // 待機させるサイズと型の種類数の上限
+    private static final long MAX_IDLE_BYTES = Long.getLong("matpool.maxIdleBytes", 64L * 1024 * 1024); // 待機中の合計上限
+
+    // サイズと型ごとの待機中のMat。アクセス順に並べ、先頭が最も長く使われていない種類（IDLEのロックで保護する）
+    private static final LinkedHashMap<Long, ArrayDeque<Mat>> IDLE = new LinkedHashMap<>(16, 0.75f, true);
+    private static final AtomicInteger OUTSTANDING = new AtomicInteger();
+    private static final AtomicLong LIVE_BYTES = new AtomicLong();
+    private static final AtomicLong IDLE_BYTES = new AtomicLong(); // 更新はIDLEのロック内で行う
+    private static final AtomicLong HITS = new AtomicLong();
+    private static final AtomicLong MISSES = new AtomicLong();
+    private static final AtomicLong EVICTIONS = new AtomicLong();
+
+    static {
+        Metrics.gauge("MatPool.liveBytes", LIVE_BYTES::get);
+        Metrics.gauge("MatPool.idleBytes", IDLE_BYTES::get);
+        Metrics.gauge("MatPool.outstandingMats", OUTSTANDING::get);
+    }
+
+    private MatPool() {
+    }
+
+    // acquire: 指定したサイズと型のMatを返す（中身は不定。待機中のものがあれば使い回す）
+    public static Mat acquire(int rows, int cols, int type) {
+        long key = key(rows, cols, type);
+        Mat mat = null;
+        synchronized (IDLE) {
+            ArrayDeque<Mat> idle = IDLE.get(key);
+            if (idle != null) {
+                mat = idle.pollFirst();
+                if (idle.isEmpty()) {
+                    IDLE.remove(key);
+                }
+                IDLE_BYTES.addAndGet(-bytes(rows, cols, type));
+            }
+        }
+        if (mat != null) {
+            HITS.incrementAndGet();
+        } else {
+            mat = new Mat(rows, cols, type); // 確保はロックの外で行う
+            LIVE_BYTES.addAndGet(bytes(rows, cols, type));
+            MISSES.incrementAndGet();
+        }
+        OUTSTANDING.incrementAndGet();
+        return mat;
+    }
+
+    // recycle: acquireで得たMatを返す。上限を超える分は、長く使われていない種類から解放する
+    public static void recycle(Mat mat) {
+        if (mat == null) {
+            return;
+        }
+        OUTSTANDING.decrementAndGet();
+        long size = bytes(mat.rows(), mat.cols(), mat.type());
+        if (mat.empty() || size > MAX_IDLE_BYTES) {
+            LIVE_BYTES.addAndGet(-size);
+            mat.release();
+            return;
+        }
+        List<Mat> evicted = new ArrayList<>();
+        synchronized (IDLE) {
+            ArrayDeque<Mat> idle = IDLE.computeIfAbsent(key(mat.rows(), mat.cols(), mat.type()), k -> new ArrayDeque<>());
+            if (idle.size() >= MAX_IDLE_PER_SHAPE) {
+                evicted.add(mat);
+            } else {
+                IDLE_BYTES.addAndGet(size);
+                idle.offerFirst(mat); // 直近に返したものから使う（キャッシュに残っている可能性が高い）
+            }
+            evictLocked(evicted);
+        }
+        // ネイティブメモリの解放はロックの外で行う
+        for (Mat old : evicted) {
+            LIVE_BYTES.addAndGet(-bytes(old.rows(), old.cols(), old.type()));
+            old.release();
+        }
+        EVICTIONS.addAndGet(evicted.size());
+    }
+
+    // evictLocked: 上限に収まるまで、最も長く使われていない種類の古いMatから取り除く（IDLEのロック内で呼ぶ）
+    private static void evictLocked(List<Mat> evicted) {
+        Iterator<ArrayDeque<Mat>> eldest = IDLE.values().iterator();
+        while (eldest.hasNext() && (IDLE_BYTES.get() > MAX_IDLE_BYTES || IDLE.size() > MAX_IDLE_SHAPES)) {
+            ArrayDeque<Mat> idle = eldest.next();
+            while (!idle.isEmpty() && (IDLE_BYTES.get() > MAX_IDLE_BYTES || IDLE.size() > MAX_IDLE_SHAPES)) {
+                Mat old = idle.pollLast();
+                IDLE_BYTES.addAndGet(-bytes(old.rows(), old.cols(), old.type()));
+                evicted.add(old);
+            }
+            if (idle.isEmpty()) {
+                eldest.remove();
+            }
+        }
+    }
+
+    // opened / closed: プールを通さずMatArenaで管理するMatの数を数える
+    static void opened() {
+        OUTSTANDING.incrementAndGet();
+    }
+
+    static void closed() {
+        OUTSTANDING.decrementAndGet();
+    }
+
+    // clear: 待機中のMatをすべて解放する（使用中のものはそのまま）
+    public static void clear() {
+        List<Mat> evicted = new ArrayList<>();
+        synchronized (IDLE) {
+            for (ArrayDeque<Mat> idle : IDLE.values()) {
+                evicted.addAll(idle);
+            }
+            IDLE.clear();
+            IDLE_BYTES.set(0);
+        }
+        for (Mat mat : evicted) {
+            LIVE_BYTES.addAndGet(-bytes(mat.rows(), mat.cols(), mat.type()));
+            mat.release();
+        }
+    }
+
+    public static int outstandingMats() {
+        return OUTSTANDING.get();
+    }
+
+    public static long liveBytes() {
+        return LIVE_BYTES.get();
+    }
+
+    public static long idleBytes() {
+        return IDLE_BYTES.get();
+    }
+
+    // idleShapes: 待機中のMatがあるサイズと型の種類数
+    static int idleShapes() {
+        synchronized (IDLE) {
+            return IDLE.size();
+        }
+    }
+
+    // stats: ログやベンチマーク用の1行サマリー
+    public static String stats() {
+        return String.format(java.util.Locale.ROOT, "outstanding=%d, live=%.1fMB, idle=%.1fMB, hit=%d, miss=%d, evicted=%d",
+                outstandingMats(), liveBytes() / (1024.0 * 1024.0), idleBytes() / (1024.0 * 1024.0), HITS.get(), MISSES.get(),
+                EVICTIONS.get());
+    }
+
+    private static long key(int rows, int cols, int type) {
+        return ((long) rows << 40) | ((long) cols << 16) | type;
+    }
+
+    private static long bytes(int rows, int cols, int type) {
+        return (long) rows * cols * CvType.ELEM_SIZE(type);
+    }
+}
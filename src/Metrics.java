@@ -0,0 +1,327 @@
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.Locale;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.LongSupplier;
+
+
+/**
+ * 処理時間のヒストグラムとカウンター・ゲージ。ステージごとに名前を付けて取り、JMX（jconsoleなど）で見られる。
+ *
+ *   private static final Metrics.Histogram MATCH = Metrics.histogram("ImageAnalyzer.match");
+ *   long start = System.nanoTime();
+ *   ...
+ *   MATCH.recordSince(start);
+ *
+ * ヒストグラムはHdrHistogramと同じ対数・線形のバケット（有効数字2桁程度）で、記録はバケットの計数1回と合計への加算だけ。
+ * ロックを取らず、確保もしないので、本番でも常に記録しておける。p50/p99/p999はスナップショットを取るときに計算する。
+ *
+ * MBeanは faceapp:type=Histogram|Counter|Gauge,name=... に登録し、faceapp:type=Metrics の dump で全体をファイルに書き出せる。
+ * -Dmetrics.dump=metrics.txt を指定すると終了時にも書き出す。
+ */
+public final class Metrics {
+    private static final Log LOG = Log.get("Metrics");
+    private static final String DOMAIN = "faceapp";
+
+    private static final Map<String, Histogram> HISTOGRAMS = new ConcurrentHashMap<>();
+    private static final Map<String, Counter> COUNTERS = new ConcurrentHashMap<>();
+    private static final Map<String, Gauge> GAUGES = new ConcurrentHashMap<>();
+
+    static {
+        register("type=Metrics", new Registry());
+        String dump = System.getProperty("metrics.dump");
+        if (dump != null) {
+            Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+                try {
+                    dump(new File(dump));
+                } catch (IOException e) {
+                    System.err.println("メトリクスを書き出せませんでした: " + e.getMessage()); // 終了中なのでログスレッドを通さない
+                }
+            }, "metrics-dump"));
+        }
+    }
+
+    private Metrics() {
+    }
+
+    // histogram: 名前付きの処理時間ヒストグラム（同じ名前なら同じインスタンス。static finalで持つこと）
+    public static Histogram histogram(String name) {
+        return HISTOGRAMS.computeIfAbsent(name, key -> register("type=Histogram,name=" + key, new Histogram()));
+    }
+
+    // counter: 名前付きのカウンター
+    public static Counter counter(String name) {
+        return COUNTERS.computeIfAbsent(name, key -> register("type=Counter,name=" + key, new Counter()));
+    }
+
+    // gauge: 読み出すたびにsupplierを呼ぶ値（キューの長さなど）。同じ名前で登録し直すと新しいsupplierに置き換わる
+    public static void gauge(String name, LongSupplier supplier) {
+        GAUGES.computeIfAbsent(name, key -> register("type=Gauge,name=" + key, new Gauge())).supplier = supplier;
+    }
+
+    // snapshot: すべての値を名前順に1行ずつ並べたテキスト
+    public static String snapshot() {
+        StringBuilder sb = new StringBuilder();
+        for (Map.Entry<String, Histogram> entry : new TreeMap<>(HISTOGRAMS).entrySet()) {
+            sb.append(entry.getKey()).append(' ').append(entry.getValue()).append('\n');
+        }
+        for (Map.Entry<String, Counter> entry : new TreeMap<>(COUNTERS).entrySet()) {
+            sb.append(entry.getKey()).append(" count=").append(entry.getValue().getValue()).append('\n');
+        }
+        for (Map.Entry<String, Gauge> entry : new TreeMap<>(GAUGES).entrySet()) {
+            sb.append(entry.getKey()).append(" value=").append(entry.getValue().getValue()).append('\n');
+        }
+        return sb.toString();
+    }
+
+    // dump: スナップショットをファイルに書き出す
+    public static void dump(File file) throws IOException {
+        try (PrintWriter out = new PrintWriter(Files.newBufferedWriter(file.toPath(), StandardCharsets.UTF_8))) {
+            out.println("# " + java.time.Instant.now());
+            out.print(snapshot());
+        }
+    }
+
+    private static <T> T register(String properties, T bean) {
+        try {
+            MBeanServer server = ManagementFactory.getPlatformMBeanServer();
+            ObjectName name = new ObjectName(DOMAIN + ":" + properties);
+            if (!server.isRegistered(name)) {
+                server.registerMBean(bean, name);
+            }
+        } catch (Exception | LinkageError e) {
+            LOG.warn("MBeanを登録できませんでした（記録は続けます）: {} {}", properties, e.getMessage());
+        }
+        return bean;
+    }
+
+    // HistogramMXBean: JMXから見えるヒストグラムの値（時間はミリ秒）
+    public interface HistogramMXBean {
+        long getCount();
+
+        double getMeanMillis();
+
+        double getP50Millis();
+
+        double getP99Millis();
+
+        double getP999Millis();
+
+        double getMaxMillis();
+
+        void reset();
+    }
+
+    // Histogram: 値（ナノ秒）をHdrHistogram式のバケットで数える
+    public static final class Histogram implements HistogramMXBean {
+        private static final int SUB_BITS = 8; // 2のべきごとに2^7=128区切り。百分位数はバケットの上端で報告するので相対誤差は最大1/128（1%未満）
+        private static final int SUB_COUNT = 1 << SUB_BITS;
+        private static final int HALF = SUB_COUNT / 2;
+        private static final long MAX_VALUE = (1L << 42) - 1; // 約73分。これより長い値はここに丸める
+        private static final int BUCKETS = index(MAX_VALUE) + 1;
+
+        private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+        private final LongAdder sum = new LongAdder();
+        private final AtomicLong max = new AtomicLong();
+
+        private Histogram() {
+        }
+
+        // record: 1件記録する（負の値は0として数える）
+        public void record(long nanos) {
+            long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+            counts.incrementAndGet(index(value));
+            sum.add(value);
+            long current;
+            while (value > (current = max.get()) && !max.compareAndSet(current, value)) {
+                // 他のスレッドが先に更新した。新しい最大値と比べ直す
+            }
+        }
+
+        // recordSince: System.nanoTime()で取った開始時刻からの経過時間を記録し、経過時間を返す
+        public long recordSince(long startNanos) {
+            long elapsed = System.nanoTime() - startNanos;
+            record(elapsed);
+            return elapsed;
+        }
+
+        // index: 256未満はそのまま、それ以上は上位8ビットと桁数でバケットを決める
+        private static int index(long value) {
+            if (value < SUB_COUNT) {
+                return (int) value;
+            }
+            int shift = 63 - Long.numberOfLeadingZeros(value) - (SUB_BITS - 1);
+            return shift * HALF + (int) (value >>> shift);
+        }
+
+        // highestValue: バケットに入る最大の値（HdrHistogramと同じく百分位数はこの値で報告する）
+        private static long highestValue(int index) {
+            if (index < SUB_COUNT) {
+                return index;
+            }
+            int shift = index / HALF - 1;
+            long mantissa = index % HALF + HALF;
+            return ((mantissa + 1) << shift) - 1;
+        }
+
+        // snapshotCounts: 計数をコピーする（記録中のスナップショットは数件ずれることがある）
+        private long[] snapshotCounts() {
+            long[] copy = new long[BUCKETS];
+            for (int i = 0; i < BUCKETS; i++) {
+                copy[i] = counts.get(i);
+            }
+            return copy;
+        }
+
+        private static long total(long[] snapshot) {
+            long total = 0;
+            for (long c : snapshot) {
+                total += c;
+            }
+            return total;
+        }
+
+        private static long percentile(long[] snapshot, long total, double percentile) {
+            if (total == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(total * percentile / 100.0));
+            long seen = 0;
+            for (int i = 0; i < snapshot.length; i++) {
+                seen += snapshot[i];
+                if (seen >= rank) {
+                    return highestValue(i);
+                }
+            }
+            return MAX_VALUE;
+        }
+
+        // getPercentileNanos: 指定した百分位数（0〜100）の値
+        public long getPercentileNanos(double percentile) {
+            long[] snapshot = snapshotCounts();
+            return percentile(snapshot, total(snapshot), percentile);
+        }
+
+        @Override
+        public long getCount() {
+            return total(snapshotCounts());
+        }
+
+        @Override
+        public double getMeanMillis() {
+            long count = getCount();
+            return count == 0 ? 0 : sum.sum() / (double) count / 1e6;
+        }
+
+        @Override
+        public double getP50Millis() {
+            return getPercentileNanos(50) / 1e6;
+        }
+
+        @Override
+        public double getP99Millis() {
+            return getPercentileNanos(99) / 1e6;
+        }
+
+        @Override
+        public double getP999Millis() {
+            return getPercentileNanos(99.9) / 1e6;
+        }
+
+        @Override
+        public double getMaxMillis() {
+            return max.get() / 1e6;
+        }
+
+        @Override
+        public void reset() {
+            for (int i = 0; i < BUCKETS; i++) {
+                counts.set(i, 0);
+            }
+            sum.reset();
+            max.set(0);
+        }
+
+        @Override
+        public String toString() {
+            long[] snapshot = snapshotCounts();
+            long total = total(snapshot);
+            return String.format(Locale.ROOT, "count=%d mean=%.3fms p50=%.3fms p99=%.3fms p999=%.3fms max=%.3fms",
+                    total, total == 0 ? 0 : sum.sum() / (double) total / 1e6,
+                    percentile(snapshot, total, 50) / 1e6, percentile(snapshot, total, 99) / 1e6,
+                    percentile(snapshot, total, 99.9) / 1e6, max.get() / 1e6);
+        }
+    }
+
+    // ValueMXBean: JMXから見えるカウンター・ゲージの値
+    public interface ValueMXBean {
+        long getValue();
+    }
+
+    // Counter: 増えるだけの件数（破棄したフレーム数など）
+    public static final class Counter implements ValueMXBean {
+        private final LongAdder value = new LongAdder();
+
+        private Counter() {
+        }
+
+        public void increment() {
+            value.increment();
+        }
+
+        public void add(long delta) {
+            value.add(delta);
+        }
+
+        @Override
+        public long getValue() {
+            return value.sum();
+        }
+    }
+
+    // Gauge: 読み出したときの値（キューの長さ・ネイティブメモリ量など）
+    public static final class Gauge implements ValueMXBean {
+        private volatile LongSupplier supplier = () -> 0;
+
+        private Gauge() {
+        }
+
+        @Override
+        public long getValue() {
+            return supplier.getAsLong();
+        }
+    }
+
+    // MetricsMXBean: 全体のスナップショットとファイルへの書き出し
+    public interface MetricsMXBean {
+        String getSnapshot();
+
+        void dump(String path) throws IOException;
+    }
+
+    public static final class Registry implements MetricsMXBean {
+        private Registry() {
+        }
+
+        @Override
+        public String getSnapshot() {
+            return snapshot();
+        }
+
+        @Override
+        public void dump(String path) throws IOException {
+            Metrics.dump(new File(path));
+        }
+    }
+}
@@ -0,0 +1,27 @@
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+
+public class ModelCatalog {
+    public static final String MODEL_DIR = "Modelimages/"; // モデル画像のディレクトリ
+    public static final String INDEX_FILE = "model_index.bin"; // コンパイル済み特徴量ファイル
+    public static final String VOCABULARY_FILE = "vocabulary.bin"; // 学習済みの語彙木（VocabularyTreeで生成）
+    public static final String[] ANIMALS = {"dog", "cat", "bird", "rabbit", "fish", "horse", "snake"}; // ファイル名の接頭辞
+    public static final String[] ANIMAL_NAMES = {"犬", "猫", "鳥", "ウサギ", "魚", "馬", "蛇"}; // 認識対象の動物名
+    public static final int IMAGES_PER_ANIMAL = 3; // 各動物のモデル画像枚数
+
+    private ModelCatalog() {
+    }
+
+    // sources: モデル画像ファイルと動物名の組を返す（Modelimages/<animal>_<n>.jpg）
+    public static List<ModelIndexFile.Source> sources() {
+        List<ModelIndexFile.Source> sources = new ArrayList<>();
+        for (int i = 0; i < ANIMALS.length; i++) {
+            for (int j = 1; j <= IMAGES_PER_ANIMAL; j++) {
+                sources.add(new ModelIndexFile.Source(new File(MODEL_DIR + ANIMALS[i] + "_" + j + ".jpg"), ANIMAL_NAMES[i]));
+            }
+        }
+        return sources;
+    }
+}
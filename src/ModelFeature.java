@@ -0,0 +1,50 @@
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+
+
+public class ModelFeature {
+    private final String name; // 動物名
+    private final MatOfKeyPoint keypoints; // 前処理済みモデル画像の特徴点
+    private final Mat descriptors; // ORB記述子（1行が1特徴点）
+    private final GlobalSignature signature; // カスケード用の画像全体の特徴（なければnull）
+
+    // コンストラクタ: 抽出済みの特徴量をセット
+    public ModelFeature(String name, MatOfKeyPoint keypoints, Mat descriptors) {
+        this(name, keypoints, descriptors, null);
+    }
+
+    public ModelFeature(String name, MatOfKeyPoint keypoints, Mat descriptors, GlobalSignature signature) {
+        this.name = name;
+        this.keypoints = keypoints;
+        this.descriptors = descriptors;
+        this.signature = signature;
+    }
+
+    // ゲッター
+    public String getName() {
+        return name;
+    }
+
+    public MatOfKeyPoint getKeypoints() {
+        return keypoints;
+    }
+
+    public Mat getDescriptors() {
+        return descriptors;
+    }
+
+    public GlobalSignature getSignature() {
+        return signature;
+    }
+
+    // isEmpty: 特徴点が1つも抽出できなかったかを返す
+    public boolean isEmpty() {
+        return descriptors == null || descriptors.empty();
+    }
+
+    // release: ネイティブメモリを解放
+    public void release() {
+        keypoints.release();
+        descriptors.release();
+    }
+}
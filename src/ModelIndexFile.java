@@ -0,0 +1,435 @@
+import org.opencv.core.*;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.CRC32;
+
+
+/**
+ * モデル画像の特徴量（動物名・特徴点・ORB記述子）を1つのバイナリファイルにまとめたインデックス。
+ * 起動時はファイルをメモリマップし、Matはマップ領域を直接参照するため
+ * JPEGのデコードも特徴抽出もヒープ上のコピーも発生しない。
+ * マップする前に通常の読み込みでヘッダ・ソース画像（サイズとCRC）・各モデルの長さを確かめ、古いか壊れたファイルはマップしない。
+ *
+ * フォーマット（リトルエンディアン、各ブロックは8バイト境界に整列）:
+ *   ヘッダ   : magic, version, byteOrderMark, sourceCount, modelCount, longEdge, orbFeatures, orbLevels
+ *   ソース   : path, label, size, lastModified, crc32   × sourceCount
+ *   モデル   : label, keypointCount, descRows, descCols, descType, keypoints(float×7), descriptors,
+ *              signatureHash, signatureHistogram(float×32) × modelCount
+ */
+public class ModelIndexFile {
+    private static final Log LOG = Log.get("ModelIndexFile");
+    private static final int MAGIC = 0x4F524249; // "ORBI"
+    public static final int VERSION = 3; // フォーマットを変更したら上げる（2: 画像全体の特徴を追加, 3: 処理サイズを追加）
+    private static final int BYTE_ORDER_MARK = 0x01020304;
+    private static final int KEYPOINT_FLOATS = 7; // x, y, size, angle, response, octave, class_id
+    private static final int MIN_MODEL_BYTES = 32 + 8 + GlobalSignature.HISTOGRAM_BINS * 4; // 空のモデル1件の最小サイズ
+
+    private final MappedByteBuffer buffer; // Matが参照するマップ領域（解放されないよう保持する）
+    private final List<ModelFeature> features;
+    private final AnalysisProfile profile; // 特徴抽出したときの処理サイズ
+
+    // Source: モデル画像ファイルとその動物名
+    public static class Source {
+        private final File file;
+        private final String label;
+
+        public Source(File file, String label) {
+            this.file = file;
+            this.label = label;
+        }
+
+        public File getFile() {
+            return file;
+        }
+
+        public String getLabel() {
+            return label;
+        }
+    }
+
+    private ModelIndexFile(MappedByteBuffer buffer, List<ModelFeature> features, AnalysisProfile profile) {
+        this.buffer = buffer;
+        this.features = features;
+        this.profile = profile;
+    }
+
+    public List<ModelFeature> getFeatures() {
+        return features;
+    }
+
+    public AnalysisProfile getProfile() {
+        return profile;
+    }
+
+    // loadOrCompile: 有効なインデックスがあればマップし、なければコンパイルしてからマップする（処理サイズは-Danalyzer.profile）
+    public static ModelIndexFile loadOrCompile(List<Source> sources, File indexFile) throws IOException {
+        return loadOrCompile(sources, indexFile, AnalysisProfile.fromSystemProperties());
+    }
+
+    // loadOrCompile: 処理サイズが違うインデックスも古いものとして作り直す
+    public static ModelIndexFile loadOrCompile(List<Source> sources, File indexFile, AnalysisProfile profile) throws IOException {
+        if (indexFile.exists()) {
+            ModelIndexFile index = load(indexFile, sources, profile);
+            if (index != null) {
+                return index;
+            }
+            LOG.info("モデルインデックスが古いため再生成します: {}", indexFile.getPath());
+        }
+        compile(sources, indexFile, profile);
+        ModelIndexFile index = load(indexFile, sources, profile);
+        if (index == null) {
+            throw new IOException("生成したモデルインデックスを読み込めません: " + indexFile.getPath());
+        }
+        return index;
+    }
+
+    // load: インデックスをメモリマップする。ソース画像か処理サイズが一致しない場合はnullを返す。
+    // 古いか壊れたファイルはマップしない（マップはGCされるまで残り、Windowsではコンパイル結果で置き換えられなくなる）
+    public static ModelIndexFile load(File indexFile, List<Source> expectedSources, AnalysisProfile profile) throws IOException {
+        MappedByteBuffer buffer;
+        int modelCount;
+        try (RandomAccessFile raf = new RandomAccessFile(indexFile, "r");
+             FileChannel channel = raf.getChannel()) {
+            Cursor cursor = new Cursor(channel);
+            try {
+                modelCount = readHeader(cursor, expectedSources, profile);
+                // ソース一覧と各モデルの長さも確かめ、途中で切れたか壊れたファイルは作り直す
+                if (modelCount < 0 || (long) modelCount * MIN_MODEL_BYTES > channel.size()
+                        || !readSources(cursor, expectedSources) || !scanModels(cursor, modelCount)) {
+                    return null;
+                }
+            } catch (RuntimeException e) {
+                // BufferUnderflowException、範囲外の長さ、不正な型番号など、壊れ方によって例外が変わる
+                LOG.warn("モデルインデックスが壊れています: {} ({})", indexFile.getPath(), e);
+                return null;
+            }
+            buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            buffer.order(ByteOrder.LITTLE_ENDIAN);
+            buffer.position((int) cursor.modelsOffset);
+        }
+
+        List<ModelFeature> features = new ArrayList<>(modelCount);
+        try {
+            readModels(buffer, modelCount, features);
+        } catch (RuntimeException e) {
+            LOG.warn("モデルインデックスが壊れています: {} ({})", indexFile.getPath(), e);
+            for (ModelFeature feature : features) {
+                feature.release();
+            }
+            return null;
+        }
+        return new ModelIndexFile(buffer, features, profile);
+    }
+
+    // Cursor: マップせずにファイルの先頭から順に読む（ヘッダとモデルごとの固定長の項目だけを読み、本体は読み飛ばす）
+    private static final class Cursor {
+        private final FileChannel channel;
+        private final ByteBuffer scratch = newBuffer(8);
+        private long position;
+        private long modelsOffset; // モデル部の先頭（readSourcesが設定する）
+
+        Cursor(FileChannel channel) {
+            this.channel = channel;
+        }
+
+        private ByteBuffer read(int length) throws IOException {
+            scratch.clear().limit(length);
+            while (scratch.hasRemaining()) {
+                if (channel.read(scratch, position + scratch.position()) < 0) {
+                    throw new BufferUnderflowException();
+                }
+            }
+            position += length;
+            return scratch.flip();
+        }
+
+        int getInt() throws IOException {
+            return read(4).getInt();
+        }
+
+        long getLong() throws IOException {
+            return read(8).getLong();
+        }
+
+        String readString() throws IOException {
+            int length = getInt();
+            if (length < 0 || length > channel.size() - position) {
+                throw new BufferUnderflowException();
+            }
+            ByteBuffer bytes = ByteBuffer.allocate(length);
+            while (bytes.hasRemaining()) {
+                if (channel.read(bytes, position + bytes.position()) < 0) {
+                    throw new BufferUnderflowException();
+                }
+            }
+            position += length;
+            align(4);
+            return new String(bytes.array(), StandardCharsets.UTF_8);
+        }
+
+        void skip(long length) throws IOException {
+            if (length < 0 || length > channel.size() - position) {
+                throw new BufferUnderflowException();
+            }
+            position += length;
+        }
+
+        void align(int boundary) {
+            position = (position + boundary - 1) / boundary * boundary;
+        }
+    }
+
+    // readHeader: ヘッダを読み、モデル数を返す。形式・バイト順・ソース数・処理サイズが一致しなければ-1
+    private static int readHeader(Cursor cursor, List<Source> expectedSources, AnalysisProfile profile) throws IOException {
+        if (cursor.channel.size() < 32 || cursor.getInt() != MAGIC || cursor.getInt() != VERSION) {
+            return -1;
+        }
+        // Matはネイティブのバイト順で読むため、リトルエンディアン以外の環境では作り直す
+        if (cursor.getInt() != BYTE_ORDER_MARK || ByteOrder.nativeOrder() != ByteOrder.LITTLE_ENDIAN) {
+            return -1;
+        }
+        int sourceCount = cursor.getInt();
+        int modelCount = cursor.getInt();
+        if (sourceCount != expectedSources.size() || cursor.getInt() != profile.getLongEdge()
+                || cursor.getInt() != profile.getFeatures() || cursor.getInt() != profile.getLevels()) {
+            return -1;
+        }
+        return modelCount;
+    }
+
+    // readSources: ソース一覧を照合する。ソース画像が一致しなければfalse
+    private static boolean readSources(Cursor cursor, List<Source> expectedSources) throws IOException {
+        for (Source expected : expectedSources) {
+            cursor.align(8);
+            String path = cursor.readString();
+            String label = cursor.readString();
+            cursor.align(8);
+            long size = cursor.getLong();
+            cursor.getLong(); // 更新日時（記録のみ。変更の判定はサイズとCRCで行う）
+            long crc = cursor.getLong();
+            if (!expected.getFile().getPath().equals(path) || !expected.getLabel().equals(label)
+                    || !isUpToDate(expected.getFile(), size, crc)) {
+                return false;
+            }
+        }
+        cursor.modelsOffset = cursor.position;
+        return true;
+    }
+
+    // scanModels: 各モデルの長さと型がファイルに収まるかを、記述子などの本体を読まずに確かめる
+    private static boolean scanModels(Cursor cursor, int modelCount) throws IOException {
+        for (int i = 0; i < modelCount; i++) {
+            cursor.align(8);
+            cursor.readString();
+            int keypointCount = cursor.getInt();
+            int descRows = cursor.getInt();
+            int descCols = cursor.getInt();
+            int descType = cursor.getInt();
+            if (keypointCount < 0 || descRows < 0 || descCols < 0) {
+                return false;
+            }
+            cursor.align(8);
+            cursor.skip((long) keypointCount * KEYPOINT_FLOATS * 4);
+            cursor.align(8);
+            if (descRows > 0) {
+                cursor.skip((long) descRows * descCols * CvType.ELEM_SIZE(descType));
+            }
+            cursor.align(8);
+            cursor.skip(8 + GlobalSignature.HISTOGRAM_BINS * 4);
+        }
+        return cursor.position <= cursor.channel.size() && cursor.channel.size() <= Integer.MAX_VALUE;
+    }
+
+    // readModels: マップ領域からモデルの特徴量をfeaturesに読む（scanModelsで長さは確かめてある）
+    private static void readModels(MappedByteBuffer buffer, int modelCount, List<ModelFeature> features) {
+        for (int i = 0; i < modelCount; i++) {
+            align(buffer, 8);
+            String label = readString(buffer);
+            int keypointCount = buffer.getInt();
+            int descRows = buffer.getInt();
+            int descCols = buffer.getInt();
+            int descType = buffer.getInt();
+
+            align(buffer, 8);
+            MatOfKeyPoint keypoints = keypointCount == 0 ? new MatOfKeyPoint()
+                    : new MatOfKeyPoint(new Mat(keypointCount, 1, CvType.CV_32FC(KEYPOINT_FLOATS),
+                            slice(buffer, (long) keypointCount * KEYPOINT_FLOATS * 4)));
+
+            align(buffer, 8);
+            Mat descriptors = descRows == 0 ? new Mat()
+                    : new Mat(descRows, descCols, descType, slice(buffer, (long) descRows * descCols * CvType.ELEM_SIZE(descType)));
+
+            align(buffer, 8);
+            long hash = buffer.getLong();
+            float[] histogram = new float[GlobalSignature.HISTOGRAM_BINS];
+            buffer.asFloatBuffer().get(histogram);
+            buffer.position(buffer.position() + histogram.length * 4);
+            features.add(new ModelFeature(label, keypoints, descriptors, new GlobalSignature(hash, histogram)));
+        }
+    }
+
+    // compile: ソース画像をデコードして指定の処理サイズで特徴抽出し、インデックスファイルを書き出す
+    public static void compile(List<Source> sources, File indexFile, AnalysisProfile profile) throws IOException {
+        long start = System.nanoTime();
+        // 処理サイズに近い解像度で直接Matにデコードし、1枚ずつ特徴抽出する（フル解像度の画像をヒープに作らない）
+        List<ModelFeature> features = new ArrayList<>();
+        ImageAnalyzer.Workspace workspace = new ImageAnalyzer.Workspace(); // コンパイル中だけ使うORBと作業用Mat
+        try {
+            for (Source source : sources) {
+                File file = source.getFile();
+                Mat bgr = file.exists() ? ImageDecoder.decode(file, profile.getLongEdge()) : null;
+                if (bgr != null) {
+                    features.add(ImageAnalyzer.extractFeature(source.getLabel(), bgr, profile, workspace));
+                    bgr.release();
+                } else {
+                    LOG.error("モデル画像の読み込みに失敗しました: {}", file.getPath());
+                }
+            }
+        } finally {
+            workspace.release();
+        }
+
+        // 一時ファイルに書いてから置き換え、途中で落ちても壊れたインデックスを残さない
+        File tmp = new File(indexFile.getPath() + ".tmp");
+        try (RandomAccessFile raf = new RandomAccessFile(tmp, "rw");
+             FileChannel channel = raf.getChannel()) {
+            raf.setLength(0);
+            ByteBuffer header = newBuffer(32);
+            header.putInt(MAGIC).putInt(VERSION).putInt(BYTE_ORDER_MARK).putInt(sources.size()).putInt(features.size())
+                    .putInt(profile.getLongEdge()).putInt(profile.getFeatures()).putInt(profile.getLevels());
+            write(channel, header);
+
+            for (Source source : sources) {
+                File file = source.getFile();
+                byte[] path = file.getPath().getBytes(StandardCharsets.UTF_8);
+                byte[] label = source.getLabel().getBytes(StandardCharsets.UTF_8);
+                ByteBuffer entry = newBuffer(path.length + label.length + 48);
+                putString(entry, path);
+                putString(entry, label);
+                pad(entry, 8);
+                entry.putLong(file.exists() ? file.length() : -1);
+                entry.putLong(file.exists() ? file.lastModified() : -1);
+                entry.putLong(file.exists() ? crc32(file) : -1);
+                write(channel, entry);
+            }
+
+            for (ModelFeature feature : features) {
+                byte[] label = feature.getName().getBytes(StandardCharsets.UTF_8);
+                int keypointCount = (int) feature.getKeypoints().total();
+                Mat descriptors = feature.getDescriptors();
+                int descBytes = (int) (descriptors.total() * descriptors.elemSize());
+                GlobalSignature signature = feature.getSignature();
+                ByteBuffer record = newBuffer(label.length + keypointCount * KEYPOINT_FLOATS * 4 + descBytes
+                        + 8 + GlobalSignature.HISTOGRAM_BINS * 4 + 56);
+                putString(record, label);
+                record.putInt(keypointCount).putInt(descriptors.rows()).putInt(descriptors.cols()).putInt(descriptors.type());
+                pad(record, 8);
+                if (keypointCount > 0) {
+                    float[] kp = new float[keypointCount * KEYPOINT_FLOATS];
+                    feature.getKeypoints().get(0, 0, kp);
+                    record.asFloatBuffer().put(kp);
+                    record.position(record.position() + kp.length * 4);
+                }
+                pad(record, 8);
+                if (descBytes > 0) {
+                    byte[] desc = new byte[descBytes];
+                    descriptors.get(0, 0, desc);
+                    record.put(desc);
+                }
+                pad(record, 8);
+                record.putLong(signature.getHash());
+                record.asFloatBuffer().put(signature.getHistogram());
+                record.position(record.position() + GlobalSignature.HISTOGRAM_BINS * 4);
+                write(channel, record);
+            }
+        }
+        for (ModelFeature feature : features) {
+            feature.release();
+        }
+        Files.move(tmp.toPath(), indexFile.toPath(), StandardCopyOption.REPLACE_EXISTING);
+        LOG.info("モデルインデックスを生成しました: {} ({}件, {}, {}ms)", indexFile.getPath(), features.size(), profile,
+                Log.fixed((System.nanoTime() - start) / 1_000_000.0, 1));
+    }
+
+    // isUpToDate: サイズとCRCが一致すればソース画像は変わっていない（更新日時は保たれたり粗かったりするので見ない）
+    private static boolean isUpToDate(File file, long size, long crc) throws IOException {
+        if (!file.exists()) {
+            return size == -1;
+        }
+        return file.length() == size && crc32(file) == crc;
+    }
+
+    private static long crc32(File file) throws IOException {
+        CRC32 crc = new CRC32();
+        crc.update(Files.readAllBytes(file.toPath()));
+        return crc.getValue();
+    }
+
+    // slice: 現在位置からlengthバイトをMat用のダイレクトバッファとして切り出す
+    private static ByteBuffer slice(ByteBuffer buffer, long length) {
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        ByteBuffer view = buffer.duplicate();
+        view.limit(buffer.position() + (int) length);
+        buffer.position(buffer.position() + (int) length);
+        return view.slice();
+    }
+
+    private static String readString(ByteBuffer buffer) {
+        int length = buffer.getInt();
+        if (length < 0 || length > buffer.remaining()) {
+            throw new BufferUnderflowException();
+        }
+        byte[] bytes = new byte[length];
+        buffer.get(bytes);
+        align(buffer, 4);
+        return new String(bytes, StandardCharsets.UTF_8);
+    }
+
+    private static void putString(ByteBuffer buffer, byte[] bytes) {
+        buffer.putInt(bytes.length).put(bytes);
+        pad(buffer, 4);
+    }
+
+    private static ByteBuffer newBuffer(int capacity) {
+        return ByteBuffer.allocate(capacity).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    // align / pad: 読み書きの位置を境界に揃える（書き込み側のバッファは8バイト境界から始まる）
+    private static void align(ByteBuffer buffer, int boundary) {
+        buffer.position((buffer.position() + boundary - 1) / boundary * boundary);
+    }
+
+    private static void pad(ByteBuffer buffer, int boundary) {
+        while (buffer.position() % boundary != 0) {
+            buffer.put((byte) 0);
+        }
+    }
+
+    private static void write(FileChannel channel, ByteBuffer buffer) throws IOException {
+        pad(buffer, 8);
+        buffer.flip();
+        while (buffer.hasRemaining()) {
+            channel.write(buffer);
+        }
+    }
+
+    // main: モデル画像からインデックスを生成するコンパイル手順（処理サイズは-Danalyzer.profile）
+    public static void main(String[] args) throws IOException {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        File indexFile = new File(args.length > 0 ? args[0] : ModelCatalog.INDEX_FILE);
+        compile(ModelCatalog.sources(), indexFile, AnalysisProfile.fromSystemProperties());
+    }
+}
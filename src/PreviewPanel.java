@@ -0,0 +1,100 @@
+import org.opencv.core.Mat;
+import org.opencv.core.Size;
+import org.opencv.imgproc.Imgproc;
+import javax.swing.JPanel;
+import java.awt.*;
+import java.awt.geom.AffineTransform;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+
+/**
+ * カメラ映像を表示するパネル。描画スレッドから submit でフレームを渡す。
+ * フレームはOpenCVで表示サイズ（高DPI画面では実画素数）に1回だけ縮小し、使い回す2枚の画像の裏側へ書いてから表と入れ替える。
+ * paintComponent は表の画像を等倍で描くだけなので、EDTで拡大縮小は行わない。
+ * 再描画の要求は同時に1つまで（EDTが追いつかない間に来たフレームは表を差し替えるだけ）で、
+ * 表示は取り込みとは別に MAX_FPS までに抑える。
+ */
+public class PreviewPanel extends JPanel {
+    private static final long serialVersionUID = 1L;
+    private static final int MAX_FPS = Integer.getInteger("preview.maxFps", 30); // 表示の上限フレームレート
+
+    private final long minIntervalNanos = 1_000_000_000L / Math.max(1, MAX_FPS);
+    private final AtomicBoolean repaintPending = new AtomicBoolean(); // 再描画を要求済みでまだ描いていない
+    private final transient Mat scaled = new Mat(); // 表示サイズに縮小したフレーム（描画スレッドだけが使う）
+    private transient MatImageBridge front = new MatImageBridge(); // EDTが描く画像（lockで保護）
+    private transient MatImageBridge back = new MatImageBridge(); // 描画スレッドが書き込む画像
+    private transient Image frontImage; // frontの最新の画像
+    private int frontX, frontY; // 表の画像を描く位置（実画素）
+    private final transient Object lock = new Object();
+    private long lastSubmit; // 最後に受け付けたフレームの時刻
+
+    public PreviewPanel() {
+        setBackground(Color.BLACK);
+        setOpaque(true);
+    }
+
+    // submit: フレームを表示する（どのスレッドから呼んでもよいが、同時に呼ぶのは1スレッドだけ）。表示しなかったらfalse
+    public boolean submit(Mat bgr) {
+        long now = System.nanoTime();
+        if (now - lastSubmit < minIntervalNanos || bgr.empty()) {
+            return false; // 表示の上限を超えるフレームは縮小もしない
+        }
+        Dimension device = devicePixels();
+        if (device.width <= 0 || device.height <= 0) {
+            return false; // まだ画面に出ていない
+        }
+        lastSubmit = now;
+
+        // アスペクト比を保って実画素の表示サイズに収め、OpenCVで1回だけ縮小する
+        double scale = Math.min((double) device.width / bgr.cols(), (double) device.height / bgr.rows());
+        int width = Math.max(1, (int) (bgr.cols() * scale));
+        int height = Math.max(1, (int) (bgr.rows() * scale));
+        Imgproc.resize(bgr, scaled, new Size(width, height), 0, 0, scale < 1 ? Imgproc.INTER_AREA : Imgproc.INTER_LINEAR);
+        Image image = back.toBufferedImage(scaled); // 同じサイズなら前回の画像に上書きされる
+
+        synchronized (lock) {
+            MatImageBridge drawn = front;
+            front = back;
+            back = drawn;
+            frontImage = image;
+            frontX = (device.width - width) / 2;
+            frontY = (device.height - height) / 2;
+        }
+        if (repaintPending.compareAndSet(false, true)) {
+            repaint();
+        }
+        return true;
+    }
+
+    // devicePixels: パネルの大きさを実画素で返す（高DPI画面の拡大率を掛ける）
+    private Dimension devicePixels() {
+        GraphicsConfiguration config = getGraphicsConfiguration();
+        AffineTransform transform = config == null ? new AffineTransform() : config.getDefaultTransform();
+        return new Dimension((int) Math.round(getWidth() * transform.getScaleX()),
+                (int) Math.round(getHeight() * transform.getScaleY()));
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+        repaintPending.set(false);
+        Graphics2D g2 = (Graphics2D) g.create();
+        try {
+            // 実画素で等倍に描く（高DPIの拡大を打ち消す）
+            AffineTransform transform = g2.getTransform();
+            g2.scale(1 / transform.getScaleX(), 1 / transform.getScaleY());
+            synchronized (lock) {
+                if (frontImage != null) {
+                    g2.drawImage(frontImage, frontX, frontY, null);
+                }
+            }
+        } finally {
+            g2.dispose();
+        }
+    }
+
+    // release: 縮小用のMatを解放する（ウィンドウを閉じた後に呼ぶ）
+    public void release() {
+        scaled.release();
+    }
+}
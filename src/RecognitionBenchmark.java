@@ -0,0 +1,370 @@
+import org.opencv.core.*;
+import org.opencv.imgcodecs.Imgcodecs;
+import org.opencv.imgproc.Imgproc;
+import org.opencv.objdetect.CascadeClassifier;
+import javax.imageio.ImageIO;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.lang.management.GarbageCollectorMXBean;
+import java.lang.management.ManagementFactory;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.*;
+import java.util.concurrent.Callable;
+import java.util.regex.Pattern;
+
+
+/**
+ * 画像認識と顔ログインの処理時間を計測するベンチマークの処理とフィクスチャ。
+ * 計測は jmh/ モジュールのJMHベンチマーク（mvn package でビルド）で行い、このクラスはその処理とフィクスチャを提供する。
+ * mainはMavenを使えない環境向けの簡易ハーネスで、JMHと同じ手順（ウォームアップ → 時間で区切った計測イテレーション）で
+ * 平均時間とスレッド単位の割り当てバイト数（JMHのGCプロファイラ相当）を測り、JMHのJSON形式で書き出す。
+ *
+ * 簡易ハーネスの使い方: java RecognitionBenchmark [--out benchmark_results.json] [--filter 正規表現]
+ *         [--warmup 秒] [--iterations 回数] [--time 秒]
+ * フィクスチャ: Modelimages/ のモデル画像、face_data/ の登録顔、480p・1080p・12MPの合成フレーム
+ */
+public class RecognitionBenchmark {
+    private static final Log LOG = Log.get("RecognitionBenchmark");
+    private static final String[] FRAME_NAMES = {"480p", "1080p", "12MP"};
+    private static final Size[] FRAME_SIZES = {new Size(640, 480), new Size(1920, 1080), new Size(4000, 3000)};
+
+    private static final int[] GALLERY_USERS = {1, 10, 100, 1000, 10000};
+    private static final int TEMPLATES_PER_USER = 4; // 顔登録で保存する枚数と同じ
+
+    private static volatile long sink; // 結果を消費して最適化で処理が消えないようにする
+
+    private final int warmupSeconds;
+    private final int iterations;
+    private final int iterationSeconds;
+    private final Pattern filter;
+    private final List<String> results = new ArrayList<>();
+
+    // Operation: 計測対象の1回分の処理。使い終わったらcloseでフィクスチャを解放する
+    private static final class Operation implements Callable<Object>, AutoCloseable {
+        private final Callable<Object> body;
+        private final Runnable cleanup;
+
+        Operation(Callable<Object> body, Runnable cleanup) {
+            this.body = body;
+            this.cleanup = cleanup;
+        }
+
+        @Override
+        public Object call() throws Exception {
+            return body.call();
+        }
+
+        @Override
+        public void close() {
+            cleanup.run();
+        }
+    }
+
+    // Fixtures: 全ベンチマークで共有するフィクスチャ（プロセスで1度だけ作る）
+    private static final class Fixtures {
+        final ImageAnalyzer analyzer;
+        final ImageAnalyzer parallelAnalyzer;
+        final Mat sourceMat; // 合成フレームの元にするモデル画像
+        final Mat modelDescriptors;
+        final CascadeClassifier faceDetector;
+        final Mat face; // 登録顔（なければnull）
+
+        Fixtures() throws IOException {
+            ModelIndexFile indexFile = ModelIndexFile.loadOrCompile(ModelCatalog.sources(), new File(ModelCatalog.INDEX_FILE));
+            analyzer = new ImageAnalyzer(indexFile);
+            analyzer.setParallelism(1); // 割り当て量は呼び出しスレッドで計測するため逐次で測る
+            parallelAnalyzer = new ImageAnalyzer(indexFile);
+            sourceMat = new MatImageBridge().toMat(ImageIO.read(ModelCatalog.sources().get(0).getFile()));
+            modelDescriptors = analyzer.getModelIndex().get(0).getDescriptors();
+            faceDetector = new CascadeClassifier("haarcascade_frontalface_alt.xml");
+            File[] faceFiles = new File("face_data").listFiles((dir, name) -> name.endsWith(".jpg"));
+            if (faceFiles != null && faceFiles.length > 0) {
+                Arrays.sort(faceFiles);
+                face = Imgcodecs.imread(faceFiles[0].getPath(), Imgcodecs.IMREAD_GRAYSCALE);
+            } else {
+                face = null;
+            }
+        }
+    }
+
+    private static Fixtures fixtures;
+
+    private static synchronized Fixtures fixtures() throws IOException {
+        if (fixtures == null) {
+            System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+            fixtures = new Fixtures();
+        }
+        return fixtures;
+    }
+
+    public RecognitionBenchmark(int warmupSeconds, int iterations, int iterationSeconds, Pattern filter) {
+        this.warmupSeconds = warmupSeconds;
+        this.iterations = iterations;
+        this.iterationSeconds = iterationSeconds;
+        this.filter = filter;
+    }
+
+    // frameOperations: 合成フレーム（480p/1080p/12MP）で計測する処理を名前ごとに返す。
+    // jmh/ のJMHベンチマークも同じ処理とフィクスチャを使う（無名パッケージのため、リフレクションでここを呼ぶ）
+    public static Map<String, Callable<Object>> frameOperations(String frame) throws IOException {
+        Fixtures f = fixtures();
+        ImageAnalyzer analyzer = f.analyzer;
+        Map<String, Callable<Object>> operations = new LinkedHashMap<>();
+
+        // 合成フレーム: モデル画像を各解像度に拡大したもの（実画像に近い特徴点分布になる）
+        Mat bgr = new Mat();
+        Imgproc.resize(f.sourceMat, bgr, FRAME_SIZES[Arrays.asList(FRAME_NAMES).indexOf(frame)]);
+        BufferedImage image = MatImageBridge.toNewBufferedImage(bgr);
+        Mat converted = analyzer.bufferedImageToMat(image).clone();
+        Mat gray = analyzer.prepareImage(image); // 処理サイズに縮小・前処理した入力
+        Mat grayEqualized = new Mat();
+        Imgproc.cvtColor(bgr, grayEqualized, Imgproc.COLOR_BGR2GRAY);
+        Imgproc.equalizeHist(grayEqualized, grayEqualized);
+
+        // デコード: 同じフレームをJPEGに保存し、フル解像度の読み込みと縮小デコードを比べる
+        File jpeg = File.createTempFile("benchmark_" + frame + "_", ".jpg");
+        jpeg.deleteOnExit();
+        Imgcodecs.imwrite(jpeg.getPath(), bgr);
+        operations.put("ImageIO.read", () -> ImageIO.read(jpeg).getWidth());
+        operations.put("ImageDecoder.decode", () -> {
+            Mat decoded = ImageDecoder.decode(jpeg, analyzer.getProfile().getLongEdge());
+            int cols = decoded.cols();
+            decoded.release();
+            return cols;
+        });
+
+        operations.put("ImageAnalyzer.analyzeImage", () -> analyzer.analyzeImage(image).getTopIndex());
+        operations.put("ImageAnalyzer.analyzeImage.parallel", () -> f.parallelAnalyzer.analyzeImage(image).getTopIndex());
+        operations.put("ImageAnalyzer.bufferedImageToMat", () -> analyzer.bufferedImageToMat(image).rows());
+        operations.put("ImageAnalyzer.prepareImage", () -> {
+            Mat result = analyzer.prepareImage(image);
+            int rows = result.rows();
+            MatPool.recycle(result);
+            return rows;
+        });
+        operations.put("ImageAnalyzer.preprocessImage", () -> {
+            Mat result = ImageAnalyzer.preprocessImage(converted);
+            int rows = result.rows();
+            MatPool.recycle(result);
+            return rows;
+        });
+        Mat inputDescriptors = new Mat();
+        analyzer.detector().detectAndCompute(gray, new Mat(), new MatOfKeyPoint(), inputDescriptors);
+        operations.put("ImageAnalyzer.compareDescriptors", () -> analyzer.compareDescriptors(inputDescriptors, f.modelDescriptors));
+        if (!f.faceDetector.empty()) {
+            operations.put("CascadeClassifier.detectMultiScale", () -> {
+                MatOfRect faces = new MatOfRect();
+                f.faceDetector.detectMultiScale(grayEqualized, faces);
+                int count = faces.rows();
+                faces.release();
+                return count;
+            });
+            // 静止した利用者を想定し、同じフレームを追跡モードで検出し続ける（全体検出は数フレームに1回）
+            FaceTracker tracker = new FaceTracker(f.faceDetector);
+            operations.put("FaceTracker.detect", () -> tracker.detect(grayEqualized).length);
+        }
+        return operations;
+    }
+
+    // faceOperations: 登録済みの顔画像をそのまま入力として照合する処理（登録顔がなければ空）
+    public static Map<String, Callable<Object>> faceOperations() throws IOException {
+        Fixtures f = fixtures();
+        Map<String, Callable<Object>> operations = new LinkedHashMap<>();
+        if (f.face != null) {
+            operations.put("FaceLogin.isFaceMatched", () -> FaceLogin.isFaceMatched(f.face));
+        }
+        return operations;
+    }
+
+    // galleryOperation: 合成テンプレートでusers人を登録したギャラリーで、1フレームの上位3人を識別する処理
+    // （登録顔がなければnull。closeでギャラリーを解放する）
+    public static Callable<Object> galleryOperation(int users) throws IOException {
+        Fixtures f = fixtures();
+        if (f.face == null) {
+            return null;
+        }
+        FaceGallery gallery = syntheticGallery(users, new Random(42));
+        return new Operation(() -> gallery.identify(f.face, 3).size(), gallery::release);
+    }
+
+    // runAll: フィクスチャを用意して全ベンチマークを実行する
+    public void runAll() throws IOException {
+        for (String frame : FRAME_NAMES) {
+            for (Map.Entry<String, Callable<Object>> operation : frameOperations(frame).entrySet()) {
+                bench(operation.getKey(), frame, operation.getValue());
+            }
+        }
+
+        for (Map.Entry<String, Callable<Object>> operation : faceOperations().entrySet()) {
+            bench(operation.getKey(), "face_data", operation.getValue());
+        }
+        // 顔識別のスケーリング: 登録人数を1〜10,000人に増やし、1フレームあたりの識別時間を比べる
+        for (int users : GALLERY_USERS) {
+            Callable<Object> identify = galleryOperation(users);
+            if (identify != null) {
+                bench("FaceGallery.identify", users + "users", identify);
+                ((Operation) identify).close();
+            }
+        }
+
+        fixtures().analyzer.shutdown();
+        fixtures().parallelAnalyzer.shutdown();
+        LOG.info("# MatPool: {}", MatPool.stats()); // 計測後もoutstandingが増え続けていればリーク
+    }
+
+    // syntheticGallery: 乱数の値でusers人分のテンプレート（-Dface.template の形式の長さ）を持つギャラリーを作る
+    private static FaceGallery syntheticGallery(int users, Random random) {
+        String[] userIds = new String[users];
+        int[] userStarts = new int[users + 1];
+        FaceTemplate mode = FaceTemplate.fromSystemProperties();
+        float[] data = new float[users * TEMPLATES_PER_USER * mode.getDimensions()];
+        for (int u = 0; u < users; u++) {
+            userIds[u] = "user" + u;
+            userStarts[u + 1] = (u + 1) * TEMPLATES_PER_USER;
+        }
+        for (int i = 0; i < data.length; i++) {
+            data[i] = random.nextFloat();
+        }
+        return FaceGallery.inMemory(mode, userIds, userStarts, data);
+    }
+
+    // bench: ウォームアップ後、時間で区切ったイテレーションごとに平均時間と割り当て量を記録する
+    private void bench(String name, String param, Callable<Object> body) {
+        if (filter != null && !filter.matcher(name + ":" + param).find()) {
+            return;
+        }
+        LOG.info("# {} ({})", name, param);
+        try {
+            runFor(body, warmupSeconds * 1_000_000_000L);
+            double[] msPerOp = new double[iterations];
+            double[] bytesPerOp = new double[iterations];
+            double[] allocRate = new double[iterations];
+            long gcCount = 0;
+            long gcTime = 0;
+            for (int i = 0; i < iterations; i++) {
+                long[] gcBefore = gcTotals();
+                long allocBefore = allocatedBytes();
+                long start = System.nanoTime();
+                long ops = runFor(body, iterationSeconds * 1_000_000_000L);
+                long elapsed = System.nanoTime() - start;
+                long allocated = allocatedBytes() - allocBefore;
+                long[] gcAfter = gcTotals();
+                gcCount += gcAfter[0] - gcBefore[0];
+                gcTime += gcAfter[1] - gcBefore[1];
+                msPerOp[i] = elapsed / 1_000_000.0 / ops;
+                bytesPerOp[i] = (double) allocated / ops;
+                allocRate[i] = allocated / (1024.0 * 1024.0) / (elapsed / 1_000_000_000.0);
+                LOG.info("Iteration {}: {} ms/op, {} B/op", i + 1, Log.fixed(msPerOp[i], 3), Log.fixed(bytesPerOp[i], 0));
+            }
+            results.add(toJson(name, param, msPerOp, bytesPerOp, allocRate, gcCount, gcTime));
+        } catch (Exception e) {
+            LOG.error("ベンチマークに失敗しました: {} ({})", name, e.getMessage());
+        }
+    }
+
+    // runFor: 指定時間が経つまで処理を繰り返し、実行回数を返す
+    private static long runFor(Callable<Object> body, long nanos) throws Exception {
+        long deadline = System.nanoTime() + nanos;
+        long ops = 0;
+        do {
+            Object result = body.call();
+            sink += result == null ? 0 : result.hashCode();
+            ops++;
+        } while (System.nanoTime() < deadline);
+        return ops;
+    }
+
+    // allocatedBytes: 現在のスレッドがこれまでにヒープに割り当てたバイト数
+    private static long allocatedBytes() {
+        java.lang.management.ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+        if (bean instanceof com.sun.management.ThreadMXBean) {
+            return ((com.sun.management.ThreadMXBean) bean).getThreadAllocatedBytes(Thread.currentThread().getId());
+        }
+        return 0;
+    }
+
+    // gcTotals: 全GCの回数と時間(ms)の合計
+    private static long[] gcTotals() {
+        long count = 0;
+        long time = 0;
+        for (GarbageCollectorMXBean gc : ManagementFactory.getGarbageCollectorMXBeans()) {
+            count += Math.max(0, gc.getCollectionCount());
+            time += Math.max(0, gc.getCollectionTime());
+        }
+        return new long[] {count, time};
+    }
+
+    // toJson: JMHの -rf json と同じ形の1件分を作る
+    private String toJson(String name, String param, double[] msPerOp, double[] bytesPerOp, double[] allocRate,
+                          long gcCount, long gcTime) {
+        StringBuilder raw = new StringBuilder("[");
+        for (int i = 0; i < msPerOp.length; i++) {
+            raw.append(i > 0 ? "," : "").append(String.format(Locale.ROOT, "%.6f", msPerOp[i]));
+        }
+        raw.append(']');
+        return String.format(Locale.ROOT,
+                "  {\"benchmark\":\"%s\",\"mode\":\"avgt\",\"threads\":1,\"warmupTime\":\"%d s\",\"measurementIterations\":%d,"
+                        + "\"measurementTime\":\"%d s\",\"params\":{\"fixture\":\"%s\"},"
+                        + "\"primaryMetric\":{\"score\":%.6f,\"scoreError\":%.6f,\"scoreUnit\":\"ms/op\",\"rawData\":[%s]},"
+                        + "\"secondaryMetrics\":{"
+                        + "\"·gc.alloc.rate\":{\"score\":%.3f,\"scoreUnit\":\"MB/sec\"},"
+                        + "\"·gc.alloc.rate.norm\":{\"score\":%.1f,\"scoreUnit\":\"B/op\"},"
+                        + "\"·gc.count\":{\"score\":%d,\"scoreUnit\":\"counts\"},"
+                        + "\"·gc.time\":{\"score\":%d,\"scoreUnit\":\"ms\"}}}",
+                name, warmupSeconds, iterations, iterationSeconds, param,
+                mean(msPerOp), error(msPerOp), raw, mean(allocRate), mean(bytesPerOp), gcCount, gcTime);
+    }
+
+    private static double mean(double[] values) {
+        double sum = 0;
+        for (double v : values) {
+            sum += v;
+        }
+        return sum / values.length;
+    }
+
+    // error: 99.9%信頼区間の半幅（正規近似）
+    private static double error(double[] values) {
+        if (values.length < 2) {
+            return Double.NaN;
+        }
+        double m = mean(values);
+        double squares = 0;
+        for (double v : values) {
+            squares += (v - m) * (v - m);
+        }
+        return 3.29 * Math.sqrt(squares / (values.length - 1)) / Math.sqrt(values.length);
+    }
+
+    // write: 結果をJSON配列としてファイルに書き出す
+    public void write(File file) throws IOException {
+        String json = "[\n" + String.join(",\n", results) + "\n]\n";
+        Files.write(file.toPath(), json.getBytes(StandardCharsets.UTF_8));
+        LOG.info("結果を書き出しました: {}", file.getPath());
+    }
+
+    public static void main(String[] args) throws IOException {
+        String out = "benchmark_results.json";
+        Pattern filter = null;
+        int warmup = 3;
+        int iterations = 5;
+        int time = 2;
+        for (int i = 0; i < args.length; i++) {
+            switch (args[i]) {
+                case "--out": out = args[++i]; break;
+                case "--filter": filter = Pattern.compile(args[++i]); break;
+                case "--warmup": warmup = Integer.parseInt(args[++i]); break;
+                case "--iterations": iterations = Integer.parseInt(args[++i]); break;
+                case "--time": time = Integer.parseInt(args[++i]); break;
+                default:
+                    LOG.error("不明な引数です: {}", args[i]);
+                    System.exit(1);
+            }
+        }
+        RecognitionBenchmark benchmark = new RecognitionBenchmark(warmup, iterations, time, filter);
+        benchmark.runAll();
+        benchmark.write(new File(out));
+    }
+}
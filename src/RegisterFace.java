@@ -1,129 +1,151 @@
 import org.opencv.core.*;
-import org.opencv.imgcodecs.Imgcodecs;
-import org.opencv.imgproc.Imgproc;
 import org.opencv.objdetect.CascadeClassifier;
-import org.opencv.videoio.VideoCapture;
-import org.opencv.core.Point;
 
 import javax.swing.*;
 import java.awt.*;
 import java.awt.event.KeyAdapter;
 import java.awt.event.KeyEvent;
-import java.awt.image.BufferedImage;
-import java.io.File;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.List;
+import java.util.regex.Pattern;
 
 public class RegisterFace {
+    private static final Log LOG = Log.get("RegisterFace");
     static {
         System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
     }
 
     private static final String FACE_CASCADE_PATH = "haarcascade_frontalface_alt.xml";
     private static final String FACE_DATA_PATH = "face_data/";
+    private static final Pattern USER_ID = Pattern.compile("[A-Za-z0-9_-]{1,32}"); // ディレクトリ名に使えるユーザーID
     private static volatile boolean captureRequested = false; // volatileでスレッド間同期
 
     public RegisterFace() {
     }
 
     public void start() {
-        CascadeClassifier faceDetector = new CascadeClassifier(FACE_CASCADE_PATH);
-        if (faceDetector.empty()) {
-            System.err.println("カスケード分類器の読み込みに失敗しました");
+        String userId = askUserId();
+        if (userId == null) {
+            SwingUtilities.invokeLater(() -> new FaceApp());
             return;
         }
-        System.out.println("RegisterFace: カスケード分類器の読み込み成功");
 
-        VideoCapture camera = new VideoCapture(0);
-        if (!camera.isOpened()) {
-            System.err.println("カメラを開けませんでした");
+        CascadeClassifier faceDetector = new CascadeClassifier(FACE_CASCADE_PATH);
+        if (faceDetector.empty()) {
+            LOG.error("カスケード分類器の読み込みに失敗しました");
             return;
         }
-        System.out.println("RegisterFace: カメラが正常に開きました");
+        LOG.info("カスケード分類器の読み込み成功");
 
         JFrame frame = new JFrame("顔登録");
-        JLabel label = new JLabel();
-        frame.setLayout(new FlowLayout());
-        frame.add(label);
+        PreviewPanel preview = new PreviewPanel(); // 表示サイズへの縮小と再描画の間引きはパネルが行う
+        frame.add(preview);
         frame.setSize(640, 480);
         frame.setDefaultCloseOperation(JFrame.DISPOSE_ON_CLOSE);
-        frame.setVisible(true);
 
         frame.addKeyListener(new KeyAdapter() {
             @Override
             public void keyPressed(KeyEvent e) {
                 if (e.getKeyCode() == KeyEvent.VK_SPACE) {
                     captureRequested = true;
-                    System.out.println("RegisterFace: スペースキーが押されました");
+                    LOG.info("スペースキーが押されました（連写して登録します）");
                 }
             }
         });
 
-        new Thread(() -> {
-            Mat frameMat = new Mat();
-            while (camera.read(frameMat)) {
-                System.out.println("RegisterFace: フレーム取得成功");
+        // ログインと同じ顔処理パイプラインの出口として登録処理を行う（検出した顔の枠は描画ステージが描く）
+        FaceTemplate mode = FaceGallery.shared(FACE_DATA_PATH).getMode();
+        FacePipeline pipeline = new FacePipeline(faceDetector, new FacePipeline.Sink() {
+            private BurstEnrollment burst; // 連写中の登録（認識スレッドだけが触る）
+            private volatile boolean saving; // テンプレートを保存中（保存に失敗したらEDTで戻す）
 
-                Imgproc.cvtColor(frameMat, frameMat, Imgproc.COLOR_BGR2RGB);
-                Mat gray = new Mat();
-                Imgproc.cvtColor(frameMat, gray, Imgproc.COLOR_RGB2GRAY);
-
-                MatOfRect faces = new MatOfRect();
-                faceDetector.detectMultiScale(gray, faces);
-
-                for (Rect rect : faces.toArray()) {
-                    Imgproc.rectangle(frameMat, new Point(rect.x, rect.y),
-                            new Point(rect.x + rect.width, rect.y + rect.height),
-                            new Scalar(0, 255, 0), 2);
-
-                    if (captureRequested) {
-                        saveFace(gray.submat(rect));
-                        captureRequested = false;
-                        SwingUtilities.invokeLater(() -> {
-                            JOptionPane.showMessageDialog(frame, "顔を登録しました！", "成功", JOptionPane.INFORMATION_MESSAGE);
-                            camera.release();
-                            frame.dispose();
-                        });
-                        return; // スレッド終了
+            @Override
+            public void onFaces(Mat gray, Mat raw, Rect[] faces) {
+                if (saving) {
+                    return;
+                }
+                if (burst == null) {
+                    if (!captureRequested) {
+                        return;
                     }
+                    captureRequested = false;
+                    burst = new BurstEnrollment(mode);
+                    LOG.info("連写を開始しました");
+                }
+                burst.offer(gray, raw, faces);
+                if (!burst.isComplete()) {
+                    return;
                 }
 
-                BufferedImage image = convertMatToBufferedImage(frameMat);
-                SwingUtilities.invokeLater(() -> label.setIcon(new ImageIcon(image)));
-                gray.release();
+                // 採点して近すぎる顔を除いた上位のテンプレートだけを、保存用のスレッドでまとめて書き込む
+                List<float[]> templates = burst.select();
+                LOG.info("{}枚から{}枚を選びました", burst.collected(), templates.size());
+                burst = null;
+                if (templates.isEmpty()) {
+                    SwingUtilities.invokeLater(() -> JOptionPane.showMessageDialog(frame,
+                            "顔が見つかりませんでした。もう一度スペースキーを押してください", "エラー", JOptionPane.ERROR_MESSAGE));
+                    return;
+                }
+                saving = true;
+                TemplateWriter.write(FACE_DATA_PATH, userId, mode, templates).whenComplete((done, error) ->
+                        SwingUtilities.invokeLater(() -> {
+                            if (error != null) {
+                                LOG.error("顔テンプレートの保存に失敗しました", error);
+                                JOptionPane.showMessageDialog(frame, "顔の登録に失敗しました", "エラー", JOptionPane.ERROR_MESSAGE);
+                                saving = false;
+                                return;
+                            }
+                            LOG.info("顔の登録が完了しました: {}", userId);
+                            JOptionPane.showMessageDialog(frame, "顔を登録しました！", "成功", JOptionPane.INFORMATION_MESSAGE);
+                            frame.dispose(); // windowClosedでパイプラインを止める
+                            new FaceApp();
+                        }));
             }
-            camera.release();
-        }).start();
-    }
 
-    private static void saveFace(Mat face) {
-        File dir = new File(FACE_DATA_PATH);
-        if (!dir.exists()) dir.mkdir();
-
-        Imgcodecs.imwrite(FACE_DATA_PATH + "user_face_1.jpg", face);
-
-        Mat flippedFace = new Mat();
-        Core.flip(face, flippedFace, 1);
-        Imgcodecs.imwrite(FACE_DATA_PATH + "user_face_2.jpg", flippedFace);
+            @Override
+            public void onPreview(Mat bgr) {
+                preview.submit(bgr);
+            }
 
-        Mat brightFace = new Mat();
-        face.convertTo(brightFace, -1, 1.2, 30);
-        Imgcodecs.imwrite(FACE_DATA_PATH + "user_face_3.jpg", brightFace);
+            @Override
+            public void onError(String message) {
+                LOG.error(message);
+            }
+        });
 
-        Mat blurredFace = new Mat();
-        Imgproc.GaussianBlur(face, blurredFace, new Size(3, 3), 0);
-        Imgcodecs.imwrite(FACE_DATA_PATH + "user_face_4.jpg", blurredFace);
+        // ウィンドウが閉じられたらパイプラインを止めて共有カメラを手放す
+        frame.addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                new Thread(() -> {
+                    pipeline.stop();
+                    preview.release();
+                }, "face-pipeline-stop").start();
+            }
+        });
 
-        System.out.println("顔画像の登録が完了しました！");
-        SwingUtilities.invokeLater(() -> new FaceApp());
+        if (!pipeline.start()) { // 共有カメラ（ログイン画面から開いたままのものを使う）
+            LOG.error("カメラを開けませんでした");
+            frame.dispose();
+            return;
+        }
+        LOG.info("カメラが正常に開きました");
+        frame.setVisible(true);
     }
 
-    private static BufferedImage convertMatToBufferedImage(Mat mat) {
-        int width = mat.width();
-        int height = mat.height();
-        BufferedImage image = new BufferedImage(width, height, BufferedImage.TYPE_3BYTE_BGR);
-        byte[] data = new byte[width * height * (int) mat.elemSize()];
-        mat.get(0, 0, data);
-        image.getRaster().setDataElements(0, 0, width, height, data);
-        return image;
+    // askUserId: 登録するユーザーIDを入力してもらう（キャンセルされたらnull）
+    private static String askUserId() {
+        while (true) {
+            String input = JOptionPane.showInputDialog(null, "ユーザーIDを入力してください（英数字・-・_）", "顔登録", JOptionPane.QUESTION_MESSAGE);
+            if (input == null) {
+                return null;
+            }
+            if (USER_ID.matcher(input.trim()).matches()) {
+                return input.trim();
+            }
+            JOptionPane.showMessageDialog(null, "ユーザーIDは英数字・-・_の32文字以内で入力してください", "エラー", JOptionPane.ERROR_MESSAGE);
+        }
     }
 
     public static void main(String[] args) {
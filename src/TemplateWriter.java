@@ -0,0 +1,170 @@
+import java.io.File;
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.stream.Stream;
+
+
+/**
+ * 顔テンプレートをバックグラウンドで保存するライター。
+ * 1人分のテンプレートは face_data/<ユーザーID>/v-<番号>/ の新しい版のディレクトリにまとめて書き、
+ * 書き終えてから、どの版を読むかを示すポインタファイル（.current）を名前の変更1回で置き換えて公開する。
+ * ギャラリーはポインタが指す版だけを読むので、置き換えの途中で落ちても登録前か登録後のどちらかの状態しか見えない。
+ * 古い版と書きかけの版は次に同じユーザーを登録するときに消す。
+ * .current のないユーザーディレクトリ（以前の形式）は直下のファイルをそのまま読む。
+ */
+public class TemplateWriter {
+    private static final Log LOG = Log.get("TemplateWriter");
+    static final String CURRENT = ".current"; // 公開中の版のディレクトリ名を書いたポインタファイル
+    private static final String VERSION_PREFIX = "v-";
+    private static final ExecutorService WRITER = Executors.newSingleThreadExecutor(runnable -> {
+        Thread thread = new Thread(runnable, "face-template-writer");
+        thread.setDaemon(true);
+        return thread;
+    });
+
+    private TemplateWriter() {
+    }
+
+    // write: directory/<userId>/ の登録を templates で置き換える（完了後にギャラリーを読み直させる）
+    public static CompletableFuture<Void> write(String directory, String userId, FaceTemplate mode, List<float[]> templates) {
+        return CompletableFuture.runAsync(() -> {
+            try {
+                replaceUser(new File(directory).toPath(), userId, mode, templates);
+            } catch (IOException e) {
+                throw new java.io.UncheckedIOException(e);
+            }
+            FaceGallery.shared(directory).invalidate();
+        }, WRITER);
+    }
+
+    // templateDirectory: ユーザーディレクトリのうち、ギャラリーが読むディレクトリ（ポインタがなければユーザーディレクトリ自身）
+    static File templateDirectory(File userDirectory) {
+        String version = currentVersion(userDirectory.toPath());
+        return version == null ? userDirectory : new File(userDirectory, version);
+    }
+
+    // currentVersion: ポインタが指す版のディレクトリ名（ポインタがないか読めなければnull）
+    static String currentVersion(Path userDirectory) {
+        Path pointer = userDirectory.resolve(CURRENT);
+        if (!Files.isRegularFile(pointer)) {
+            return null;
+        }
+        try {
+            String version = new String(Files.readAllBytes(pointer), StandardCharsets.UTF_8).trim();
+            return version.startsWith(VERSION_PREFIX) && !version.contains("/") && !version.contains("\\") ? version : null;
+        } catch (IOException e) {
+            return null;
+        }
+    }
+
+    private static void replaceUser(Path root, String userId, FaceTemplate mode, List<float[]> templates) throws IOException {
+        Files.createDirectories(root);
+        recoverStranded(root.toFile());
+        Path userDirectory = root.resolve(userId);
+        Files.createDirectories(userDirectory);
+        String version = VERSION_PREFIX + System.currentTimeMillis() + "-" + System.nanoTime();
+        Path staging = userDirectory.resolve(version);
+
+        // 新しい版を書く（ポインタが指すまではギャラリーから見えない）
+        Files.createDirectory(staging);
+        try {
+            for (int i = 0; i < templates.size(); i++) {
+                mode.write(staging.resolve("face_" + (i + 1) + FaceTemplate.FILE_SUFFIX).toFile(), templates.get(i));
+            }
+            // ポインタを一時ファイルに書いてディスクに落としてから、名前の変更1回で公開する
+            Path pointer = userDirectory.resolve(CURRENT + ".tmp-" + version);
+            Files.write(pointer, version.getBytes(StandardCharsets.UTF_8));
+            try (FileChannel channel = FileChannel.open(pointer, StandardOpenOption.WRITE)) {
+                channel.force(true);
+            }
+            Files.move(pointer, userDirectory.resolve(CURRENT), StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+        } catch (IOException e) {
+            deleteQuietly(staging);
+            throw e;
+        }
+        removeStale(userDirectory, version);
+    }
+
+    // removeStale: 公開中の版以外（古い版・書きかけの版・一時ポインタ・以前の形式の直下のファイル）を消す。
+    // 消せなかったものはログに残し、次の登録で消し直す（ギャラリーはポインタが指す版しか読まないので害はない）
+    private static void removeStale(Path userDirectory, String current) {
+        List<Path> stale = new ArrayList<>();
+        try (DirectoryStream<Path> entries = Files.newDirectoryStream(userDirectory)) {
+            for (Path entry : entries) {
+                String name = entry.getFileName().toString();
+                if (!name.equals(current) && !name.equals(CURRENT)) {
+                    stale.add(entry);
+                }
+            }
+        } catch (IOException e) {
+            LOG.warn("古い顔データの一覧を取得できませんでした: {} ({})", userDirectory, e.getMessage());
+            return;
+        }
+        for (Path entry : stale) {
+            deleteQuietly(entry);
+        }
+    }
+
+    // deleteQuietly: ディレクトリごと消す。消せなかったパスは警告に出す
+    private static void deleteQuietly(Path path) {
+        if (!Files.exists(path, LinkOption.NOFOLLOW_LINKS)) {
+            return;
+        }
+        List<Path> paths;
+        try (Stream<Path> walk = Files.walk(path)) {
+            paths = new ArrayList<>();
+            walk.sorted(Comparator.reverseOrder()).forEach(paths::add);
+        } catch (IOException e) {
+            LOG.warn("削除できませんでした: {} ({})", path, e.getMessage());
+            return;
+        }
+        for (Path p : paths) {
+            try {
+                Files.deleteIfExists(p);
+            } catch (IOException e) {
+                LOG.warn("削除できませんでした: {} ({})", p, e.getMessage());
+            }
+        }
+    }
+
+    // recoverStranded: 以前の書き込み方式（退避→公開の2回の名前の変更）の途中で落ちて残った
+    // .<userId>.new-* / .<userId>.old-* を片付ける。ユーザーディレクトリがなければ、
+    // 書き終えていた新しい登録（退避が済んでいれば new は完全）か、退避した元の登録を戻す
+    static void recoverStranded(File directory) {
+        File[] stranded = directory.listFiles(file -> file.isDirectory() && file.getName().startsWith(".")
+                && (file.getName().contains(".new-") || file.getName().contains(".old-")));
+        if (stranded == null) {
+            return;
+        }
+        for (File entry : stranded) {
+            String name = entry.getName();
+            int marker = Math.max(name.lastIndexOf(".new-"), name.lastIndexOf(".old-"));
+            String userId = name.substring(1, marker);
+            String stamp = name.substring(marker + 5);
+            Path root = directory.toPath();
+            Path target = root.resolve(userId);
+            Path staging = root.resolve("." + userId + ".new-" + stamp);
+            Path previous = root.resolve("." + userId + ".old-" + stamp);
+            try {
+                if (!Files.exists(target) && Files.isDirectory(previous)) {
+                    Path restore = Files.isDirectory(staging) ? staging : previous;
+                    Files.move(restore, target, StandardCopyOption.ATOMIC_MOVE);
+                    LOG.warn("書き込み途中で残った顔データを戻しました: {} -> {}", restore.getFileName(), userId);
+                }
+            } catch (IOException e) {
+                LOG.warn("書き込み途中で残った顔データを戻せませんでした: {} ({})", name, e.getMessage());
+                continue;
+            }
+            deleteQuietly(staging);
+            deleteQuietly(previous);
+        }
+    }
+}
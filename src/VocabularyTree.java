@@ -0,0 +1,313 @@
+import org.opencv.core.Core;
+import java.io.*;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+
+/**
+ * ORB記述子（バイナリ）の視覚単語辞書。ハミング空間での階層k-means（k-majority）で作る木構造で、
+ * 各ノードの中心は所属する記述子のビットごとの多数決で求める。
+ * 学習はオフラインで行い（mainを実行）、結果はファイルに保存して認識時に読み込む。
+ */
+public class VocabularyTree {
+    private static final Log LOG = Log.get("VocabularyTree");
+    private static final int MAGIC = 0x564F4342; // "VOCB"
+    private static final int VERSION = 1;
+
+    private final int words; // 1記述子あたりのlong数
+    private final int branching; // 1ノードあたりの子の数k
+    private final int depth; // 木の深さ
+    private final long[] centers; // ノードごとの中心（ルートは未使用）
+    private final int[] firstChild; // 最初の子ノード番号（葉なら-1）
+    private final int[] childCount; // 子ノードの数
+    private final int[] wordIds; // 葉ノードの単語番号（内部ノードは-1）
+    private final int wordCount; // 単語の総数（葉の数）
+
+    private VocabularyTree(int words, int branching, int depth, long[] centers, int[] firstChild, int[] childCount, int[] wordIds) {
+        this.words = words;
+        this.branching = branching;
+        this.depth = depth;
+        this.centers = centers;
+        this.firstChild = firstChild;
+        this.childCount = childCount;
+        this.wordIds = wordIds;
+        int count = 0;
+        for (int id : wordIds) {
+            count = Math.max(count, id + 1);
+        }
+        this.wordCount = count;
+    }
+
+    public int getWordCount() {
+        return wordCount;
+    }
+
+    public int getWords() {
+        return words;
+    }
+
+    // quantize: 記述子を木の上から最も近い子をたどって単語番号に変換する
+    public int quantize(long[] descriptors, int d) {
+        int node = 0;
+        while (firstChild[node] >= 0) {
+            int best = firstChild[node];
+            int bestDistance = Integer.MAX_VALUE;
+            for (int c = firstChild[node]; c < firstChild[node] + childCount[node]; c++) {
+                int distance = BinaryDescriptors.hamming(descriptors, d, centers, c, words);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = c;
+                }
+            }
+            node = best;
+        }
+        return wordIds[node];
+    }
+
+    // train: 記述子の集合から語彙木を学習する
+    public static VocabularyTree train(long[] descriptors, int count, int words, int branching, int depth, int iterations, long seed) {
+        Builder builder = new Builder(descriptors, words, branching, depth, iterations, new Random(seed));
+        int[] all = new int[count];
+        for (int i = 0; i < count; i++) {
+            all[i] = i;
+        }
+        builder.addNode(new long[words]); // ルート
+        builder.split(0, all, 0);
+        return builder.build();
+    }
+
+    // Builder: 学習中のノードを可変長リストで保持する
+    private static class Builder {
+        final long[] data;
+        final int words;
+        final int branching;
+        final int depth;
+        final int iterations;
+        final Random random;
+        final List<long[]> centers = new ArrayList<>();
+        final List<int[]> children = new ArrayList<>(); // {firstChild, childCount}
+        final List<Integer> wordIds = new ArrayList<>();
+        int nextWord;
+
+        Builder(long[] data, int words, int branching, int depth, int iterations, Random random) {
+            this.data = data;
+            this.words = words;
+            this.branching = branching;
+            this.depth = depth;
+            this.iterations = iterations;
+            this.random = random;
+        }
+
+        int addNode(long[] center) {
+            centers.add(center);
+            children.add(new int[] {-1, 0});
+            wordIds.add(-1);
+            return centers.size() - 1;
+        }
+
+        // split: ノードに属する記述子をk個に分け、子ノードを再帰的に作る
+        void split(int node, int[] members, int level) {
+            if (level == depth || members.length <= branching) {
+                wordIds.set(node, nextWord++);
+                return;
+            }
+            long[][] clusterCenters = cluster(members);
+            int[] assignment = new int[members.length];
+            int[] sizes = new int[branching];
+            for (int i = 0; i < members.length; i++) {
+                assignment[i] = nearest(clusterCenters, members[i]);
+                sizes[assignment[i]]++;
+            }
+            // 子ノードは連続した番号で確保してから再帰する
+            int first = centers.size();
+            for (int c = 0; c < branching; c++) {
+                addNode(clusterCenters[c]);
+            }
+            children.set(node, new int[] {first, branching});
+            for (int c = 0; c < branching; c++) {
+                int[] childMembers = new int[sizes[c]];
+                int n = 0;
+                for (int i = 0; i < members.length; i++) {
+                    if (assignment[i] == c) {
+                        childMembers[n++] = members[i];
+                    }
+                }
+                split(first + c, childMembers, level + 1);
+            }
+        }
+
+        // cluster: k-means++で初期化し、割り当てとビット多数決による中心更新を繰り返す
+        long[][] cluster(int[] members) {
+            long[][] result = new long[branching][];
+            result[0] = copy(members[random.nextInt(members.length)]);
+            int[] distances = new int[members.length];
+            Arrays.fill(distances, Integer.MAX_VALUE);
+            for (int c = 1; c < branching; c++) {
+                long total = 0;
+                for (int i = 0; i < members.length; i++) {
+                    int d = BinaryDescriptors.hamming(data, members[i], result[c - 1], 0, words);
+                    distances[i] = Math.min(distances[i], d);
+                    total += (long) distances[i] * distances[i];
+                }
+                long target = total == 0 ? 0 : (long) (random.nextDouble() * total);
+                int chosen = members.length - 1;
+                for (int i = 0; i < members.length; i++) {
+                    target -= (long) distances[i] * distances[i];
+                    if (target < 0) {
+                        chosen = i;
+                        break;
+                    }
+                }
+                result[c] = copy(members[chosen]);
+            }
+
+            int bits = words * 64;
+            for (int iteration = 0; iteration < iterations; iteration++) {
+                int[][] bitCounts = new int[branching][bits];
+                int[] sizes = new int[branching];
+                for (int member : members) {
+                    int c = nearest(result, member);
+                    sizes[c]++;
+                    for (int b = 0; b < bits; b++) {
+                        if ((data[member * words + b / 64] >>> (b % 64) & 1L) != 0) {
+                            bitCounts[c][b]++;
+                        }
+                    }
+                }
+                boolean changed = false;
+                for (int c = 0; c < branching; c++) {
+                    if (sizes[c] == 0) {
+                        continue; // 空になったクラスタは前回の中心を残す
+                    }
+                    long[] center = new long[words];
+                    for (int b = 0; b < bits; b++) {
+                        if (bitCounts[c][b] * 2 > sizes[c]) {
+                            center[b / 64] |= 1L << (b % 64);
+                        }
+                    }
+                    if (!Arrays.equals(center, result[c])) {
+                        result[c] = center;
+                        changed = true;
+                    }
+                }
+                if (!changed) {
+                    break;
+                }
+            }
+            return result;
+        }
+
+        int nearest(long[][] clusterCenters, int member) {
+            int best = 0;
+            int bestDistance = Integer.MAX_VALUE;
+            for (int c = 0; c < clusterCenters.length; c++) {
+                int distance = BinaryDescriptors.hamming(data, member, clusterCenters[c], 0, words);
+                if (distance < bestDistance) {
+                    bestDistance = distance;
+                    best = c;
+                }
+            }
+            return best;
+        }
+
+        long[] copy(int member) {
+            return Arrays.copyOfRange(data, member * words, (member + 1) * words);
+        }
+
+        VocabularyTree build() {
+            int nodes = centers.size();
+            long[] flatCenters = new long[nodes * words];
+            int[] first = new int[nodes];
+            int[] count = new int[nodes];
+            int[] ids = new int[nodes];
+            for (int n = 0; n < nodes; n++) {
+                System.arraycopy(centers.get(n), 0, flatCenters, n * words, words);
+                first[n] = children.get(n)[0];
+                count[n] = children.get(n)[1];
+                ids[n] = wordIds.get(n);
+            }
+            return new VocabularyTree(words, branching, depth, flatCenters, first, count, ids);
+        }
+    }
+
+    // save: 語彙木をファイルに保存
+    public void save(File file) throws IOException {
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)))) {
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(words);
+            out.writeInt(branching);
+            out.writeInt(depth);
+            out.writeInt(firstChild.length);
+            for (int n = 0; n < firstChild.length; n++) {
+                out.writeInt(firstChild[n]);
+                out.writeInt(childCount[n]);
+                out.writeInt(wordIds[n]);
+                for (int w = 0; w < words; w++) {
+                    out.writeLong(centers[n * words + w]);
+                }
+            }
+        }
+    }
+
+    // load: 保存済みの語彙木を読み込む
+    public static VocabularyTree load(File file) throws IOException {
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            if (in.readInt() != MAGIC || in.readInt() != VERSION) {
+                throw new IOException("語彙ファイルの形式が違います: " + file.getPath());
+            }
+            int words = in.readInt();
+            int branching = in.readInt();
+            int depth = in.readInt();
+            int nodes = in.readInt();
+            long[] centers = new long[nodes * words];
+            int[] first = new int[nodes];
+            int[] count = new int[nodes];
+            int[] ids = new int[nodes];
+            for (int n = 0; n < nodes; n++) {
+                first[n] = in.readInt();
+                count[n] = in.readInt();
+                ids[n] = in.readInt();
+                for (int w = 0; w < words; w++) {
+                    centers[n * words + w] = in.readLong();
+                }
+            }
+            return new VocabularyTree(words, branching, depth, centers, first, count, ids);
+        }
+    }
+
+    // main: モデルインデックスの全記述子から語彙木を学習して保存する（オフライン手順）
+    // 使い方: java VocabularyTree [k=10] [depth=3] [出力先]
+    public static void main(String[] args) throws IOException {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        int branching = args.length > 0 ? Integer.parseInt(args[0]) : 10;
+        int depth = args.length > 1 ? Integer.parseInt(args[1]) : 3;
+        File output = new File(args.length > 2 ? args[2] : ModelCatalog.VOCABULARY_FILE);
+
+        ModelIndexFile indexFile = ModelIndexFile.loadOrCompile(ModelCatalog.sources(), new File(ModelCatalog.INDEX_FILE));
+        List<long[]> packed = new ArrayList<>();
+        int words = 0;
+        int count = 0;
+        for (ModelFeature feature : indexFile.getFeatures()) {
+            if (!feature.isEmpty()) {
+                words = BinaryDescriptors.wordsPerDescriptor(feature.getDescriptors());
+                packed.add(BinaryDescriptors.pack(feature.getDescriptors()));
+                count += feature.getDescriptors().rows();
+            }
+        }
+        long[] all = new long[count * words];
+        int position = 0;
+        for (long[] p : packed) {
+            System.arraycopy(p, 0, all, position, p.length);
+            position += p.length;
+        }
+
+        long start = System.nanoTime();
+        VocabularyTree tree = train(all, count, words, branching, depth, 10, 42);
+        tree.save(output);
+        LOG.info("語彙木を保存しました: {} (単語数 {}, 記述子 {}件, {}ms)", output.getPath(), tree.getWordCount(), count,
+                Log.fixed((System.nanoTime() - start) / 1_000_000.0, 1));
+    }
+}
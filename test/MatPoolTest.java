@@ -0,0 +1,108 @@
+import org.opencv.core.Core;
+import org.opencv.core.CvType;
+import org.opencv.core.Mat;
+import org.opencv.core.MatOfKeyPoint;
+import java.util.ArrayList;
+import java.util.List;
+
+
+/**
+ * MatPoolとMatArenaのリーク検査。使い終わったらoutstandingMatsとliveBytesが開始時の値に戻ること、
+ * サイズの違う入力が続いても待機中のメモリと種類数が上限を超えないことを確かめる。
+ *
+ * 実行: javac -cp "lib/*" -d out src/*.java test/MatPoolTest.java
+ *       java -cp "lib/*:out" -Djava.library.path=<OpenCVのネイティブライブラリ> -Dmatpool.maxIdleShapes=8 MatPoolTest
+ */
+public class MatPoolTest {
+    private static int failures;
+
+    public static void main(String[] args) {
+        System.loadLibrary(Core.NATIVE_LIBRARY_NAME);
+        acquireAndRecycleReturnToBaseline();
+        arenaReturnsToBaseline();
+        variedShapesStayWithinIdleLimits();
+        clearReleasesIdleMemory();
+        if (failures > 0) {
+            System.err.println(failures + "件の検査に失敗しました");
+            System.exit(1);
+        }
+        System.out.println("MatPoolTest: OK (" + MatPool.stats() + ")");
+    }
+
+    // acquireで借りたMatをすべて返せば、使用中の数は元に戻り、確保した分は待機中として残る
+    private static void acquireAndRecycleReturnToBaseline() {
+        MatPool.clear();
+        int outstanding = MatPool.outstandingMats();
+        long live = MatPool.liveBytes();
+
+        List<Mat> mats = new ArrayList<>();
+        for (int i = 0; i < 3; i++) {
+            mats.add(MatPool.acquire(120, 160, CvType.CV_8UC1));
+        }
+        check(MatPool.outstandingMats() == outstanding + 3, "acquire後のoutstandingMats");
+        check(MatPool.liveBytes() == live + 3 * 120 * 160, "acquire後のliveBytes");
+        for (Mat mat : mats) {
+            MatPool.recycle(mat);
+        }
+        check(MatPool.outstandingMats() == outstanding, "recycle後のoutstandingMats");
+        check(MatPool.liveBytes() - MatPool.idleBytes() == live, "recycle後の使用中のバイト数");
+
+        // 同じ形は待機中のものを使い回し、新しく確保しない
+        long before = MatPool.liveBytes();
+        MatPool.recycle(MatPool.acquire(120, 160, CvType.CV_8UC1));
+        check(MatPool.liveBytes() == before, "再利用時のliveBytes");
+    }
+
+    // アリーナで作ったMatも借りたMatも、closeで数が元に戻る
+    private static void arenaReturnsToBaseline() {
+        MatPool.clear();
+        int outstanding = MatPool.outstandingMats();
+        long live = MatPool.liveBytes();
+        try (MatArena arena = new MatArena()) {
+            arena.mat();
+            arena.track(new MatOfKeyPoint());
+            arena.acquire(48, 64, CvType.CV_8UC3);
+            check(MatPool.outstandingMats() == outstanding + 3, "アリーナ使用中のoutstandingMats");
+        }
+        check(MatPool.outstandingMats() == outstanding, "アリーナのclose後のoutstandingMats");
+        MatPool.clear();
+        check(MatPool.liveBytes() == live, "アリーナのclose後のliveBytes");
+    }
+
+    // バッチ処理のように毎回サイズが違っても、待機中の種類数とバイト数は上限で止まる
+    private static void variedShapesStayWithinIdleLimits() {
+        MatPool.clear();
+        int maxShapes = Integer.getInteger("matpool.maxIdleShapes", 32);
+        long maxBytes = Long.getLong("matpool.maxIdleBytes", 64L * 1024 * 1024);
+        for (int i = 0; i < maxShapes * 4; i++) {
+            MatPool.recycle(MatPool.acquire(100 + i, 100, CvType.CV_8UC1));
+        }
+        check(MatPool.idleShapes() <= maxShapes, "待機中の種類数 " + MatPool.idleShapes() + " <= " + maxShapes);
+        check(MatPool.idleBytes() <= maxBytes, "待機中のバイト数");
+        check(MatPool.liveBytes() == MatPool.idleBytes(), "追い出したMatはliveBytesから引かれる");
+
+        // 最後に使った形は残り、最も古い形から追い出される
+        long live = MatPool.liveBytes();
+        MatPool.recycle(MatPool.acquire(100 + maxShapes * 4 - 1, 100, CvType.CV_8UC1));
+        check(MatPool.liveBytes() == live, "直近の形は待機中に残る");
+        Mat evicted = MatPool.acquire(100, 100, CvType.CV_8UC1);
+        check(MatPool.liveBytes() == live + 100 * 100, "最も古い形は追い出されていて新しく確保する");
+        MatPool.recycle(evicted);
+        check(MatPool.idleShapes() <= maxShapes, "入れ替わりで別の形が解放される");
+    }
+
+    private static void clearReleasesIdleMemory() {
+        MatPool.recycle(MatPool.acquire(32, 32, CvType.CV_8UC1));
+        MatPool.clear();
+        check(MatPool.idleBytes() == 0, "clear後のidleBytes");
+        check(MatPool.idleShapes() == 0, "clear後の種類数");
+        check(MatPool.liveBytes() == 0, "clear後のliveBytes");
+    }
+
+    private static void check(boolean condition, String what) {
+        if (!condition) {
+            failures++;
+            System.err.println("失敗: " + what + " (" + MatPool.stats() + ")");
+        }
+    }
+}